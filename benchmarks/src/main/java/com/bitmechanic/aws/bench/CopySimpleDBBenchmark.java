@@ -0,0 +1,91 @@
+package com.bitmechanic.aws.bench;
+
+import com.bitmechanic.aws.CopySimpleDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CopySimpleDB.run copying a domain within an in-memory SimpleDB, including the
+ * verification pass at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopySimpleDBBenchmark {
+
+    private static final String SOURCE = "source";
+    private static final String DEST = "dest";
+
+    @Param({ "10000" })
+    int itemCount;
+
+    @Param({ "10" })
+    int attributesPerItem;
+
+    @Param({ "32" })
+    int valueSize;
+
+    @Param({ "0", "20" })
+    long rttMillis;
+
+    @Param({ "1", "8" })
+    int threads;
+
+    @Param({ "4" })
+    int segmentsPerThread;
+
+    @Param({ "16" })
+    int writers;
+
+    // with true, every run after the first finds the domains already in sync
+    @Param({ "false", "true" })
+    boolean incremental;
+
+    FakeSimpleDB simpleDb;
+    CopySimpleDB copy;
+
+    @Setup(Level.Trial)
+    public void createSource() {
+        simpleDb = new FakeSimpleDB(new Latency(rttMillis, 0));
+        for (int i = 0; i < itemCount; i++) {
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            for (int a = 0; a < attributesPerItem; a++) {
+                attributes.put("attr" + a, Fixtures.value(i + a, valueSize));
+            }
+            simpleDb.put(SOURCE, Fixtures.itemName(i), attributes);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createCopy() {
+        copy = new CopySimpleDB(simpleDb, SOURCE, simpleDb, DEST, false);
+        copy.setThreads(threads);
+        copy.setSegments(threads * segmentsPerThread);
+        copy.setWriters(writers);
+        copy.setIncremental(incremental);
+        copy.setProgress(0, null);
+    }
+
+    @Benchmark
+    public void copyDomain() throws Exception {
+        copy.run();
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.bitmechanic.aws.bench;
+
+import com.bitmechanic.aws.ImportExport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImportExport.exportData writing a SimpleDB domain and the S3 objects named after its
+ * items to a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+    private static final String BUCKET = "bucket";
+    private static final String DOMAIN = "domain";
+
+    @Param({ "1000" })
+    int itemCount;
+
+    @Param({ "5" })
+    int objectsPerItem;
+
+    @Param({ "1024", "1048576" })
+    int objectSize;
+
+    @Param({ "0", "20" })
+    long rttMillis;
+
+    @Param({ ImportExport.FORMAT_SNAPSHOT, ImportExport.FORMAT_JSON })
+    String format;
+
+    @Param({ "false", "true" })
+    boolean archive;
+
+    FakeS3 s3;
+    FakeSimpleDB simpleDb;
+    File dir;
+    ImportExport export;
+
+    @Setup(Level.Trial)
+    public void createSource() {
+        Latency latency = new Latency(rttMillis, 0);
+        s3 = new FakeS3(latency);
+        simpleDb = new FakeSimpleDB(latency);
+        byte[] payload = Fixtures.payload(objectSize);
+        for (int i = 0; i < itemCount; i++) {
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            attributes.put("name", Fixtures.value(i, 16));
+            simpleDb.put(DOMAIN, Fixtures.itemName(i), attributes);
+            for (int j = 0; j < objectsPerItem; j++) {
+                s3.put(BUCKET, Fixtures.itemName(i) + "/" + j, payload);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createExport() throws IOException {
+        dir = Fixtures.tempDir("export");
+        export = new ImportExport(s3, simpleDb, BUCKET, DOMAIN);
+        export.setProgress(0, null);
+        export.setFormat(format);
+        export.setArchive(archive);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteExport() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void exportAll() throws Exception {
+        export.exportData(dir.getAbsolutePath());
+    }
+
+}
@@ -0,0 +1,474 @@
+package com.bitmechanic.aws.bench;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.bitmechanic.aws.BucketListing;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory S3 holding the requests the tools make: listing, get and put (including
+ * ranged gets), server side copy, multi-object delete and multipart uploads.  Anything
+ * else falls through to AmazonS3Client and fails for lack of real credentials.
+ *
+ * Every request pays the round trip and transfer time of its Latency before it runs.
+ */
+public class FakeS3 extends AmazonS3Client {
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return BucketListing.compareKeys(a, b);
+        }
+    };
+
+    private final Latency latency;
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, StoredObject>> buckets =
+            new ConcurrentHashMap<String, ConcurrentNavigableMap<String, StoredObject>>();
+    private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+    private final AtomicLong nextUploadId = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    public FakeS3(Latency latency) {
+        super(new BasicAWSCredentials("fake", "fake"));
+        this.latency = latency;
+    }
+
+    /**
+     * Stores an object without any simulated latency, for setting up a benchmark.
+     */
+    public void put(String bucket, String key, byte[] data) {
+        bucket(bucket).put(key, new StoredObject(data, new ObjectMetadata()));
+    }
+
+    public int size(String bucket) {
+        ConcurrentNavigableMap<String, StoredObject> objects = buckets.get(bucket);
+        return objects == null ? 0 : objects.size();
+    }
+
+    public void clear(String bucket) {
+        buckets.remove(bucket);
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    //////////////////////////////////
+
+    @Override
+    public String getBucketLocation(String bucketName) {
+        request(0);
+        existingBucket(bucketName);
+        return "US";
+    }
+
+    @Override
+    public Bucket createBucket(String bucketName) {
+        request(0);
+        bucket(bucketName);
+        return new Bucket(bucketName);
+    }
+
+    @Override
+    public Bucket createBucket(CreateBucketRequest request) {
+        return createBucket(request.getBucketName());
+    }
+
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        request(0);
+        ConcurrentNavigableMap<String, StoredObject> objects = existingBucket(request.getBucketName());
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        int maxKeys = request.getMaxKeys() == null ? 1000 : Math.min(1000, request.getMaxKeys());
+
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setMarker(request.getMarker());
+        listing.setDelimiter(request.getDelimiter());
+        listing.setMaxKeys(maxKeys);
+        List<String> commonPrefixes = new ArrayList<String>();
+
+        ConcurrentNavigableMap<String, StoredObject> range = objects;
+        if (request.getMarker() != null)
+            range = range.tailMap(request.getMarker(), false);
+        else if (prefix.length() > 0)
+            range = range.tailMap(prefix, true);
+
+        String last = null;
+        int count = 0;
+        for (Map.Entry<String, StoredObject> entry : range.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                if (KEY_ORDER.compare(key, prefix) > 0)
+                    break;
+                continue;
+            }
+            if (count == maxKeys) {
+                listing.setTruncated(true);
+                break;
+            }
+
+            int delimiter = request.getDelimiter() == null ? -1 : key.indexOf(request.getDelimiter(), prefix.length());
+            if (delimiter >= 0) {
+                String commonPrefix = key.substring(0, delimiter + request.getDelimiter().length());
+                if (commonPrefixes.isEmpty() || !commonPrefixes.get(commonPrefixes.size() - 1).equals(commonPrefix)) {
+                    commonPrefixes.add(commonPrefix);
+                    count++;
+                }
+            }
+            else {
+                listing.getObjectSummaries().add(entry.getValue().summary(request.getBucketName(), key));
+                count++;
+            }
+            last = key;
+        }
+        listing.setCommonPrefixes(commonPrefixes);
+        // like S3, NextMarker is only returned for delimiter listings
+        if (listing.isTruncated() && request.getDelimiter() != null)
+            listing.setNextMarker(last);
+        return listing;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        request(0);
+        return existingObject(request.getBucketName(), request.getKey()).metadata();
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        StoredObject stored = existingObject(request.getBucketName(), request.getKey());
+        int offset = 0;
+        int length = stored.data.length;
+        if (request.getRange() != null) {
+            offset = (int) request.getRange()[0];
+            length = (int) Math.min(request.getRange()[1] + 1, stored.data.length) - offset;
+        }
+        request(length);
+
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(stored.metadata());
+        object.setObjectContent(new ByteArrayInputStream(stored.data, offset, length));
+        return object;
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+        return putObject(new PutObjectRequest(bucketName, key, input, metadata));
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        byte[] data;
+        try {
+            InputStream input = request.getInputStream();
+            if (input == null)
+                input = new FileInputStream(request.getFile());
+            data = readFully(input);
+        }
+        catch (IOException e) {
+            throw new AmazonServiceException("Unable to read request body", e);
+        }
+        request(data.length);
+        ConcurrentNavigableMap<String, StoredObject> objects = existingBucket(request.getBucketName());
+        StoredObject stored = new StoredObject(data, request.getMetadata());
+        objects.put(request.getKey(), stored);
+
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(stored.etag);
+        return result;
+    }
+
+    @Override
+    public CopyObjectResult copyObject(String sourceBucketName, String sourceKey,
+                                       String destinationBucketName, String destinationKey) {
+        return copyObject(new CopyObjectRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey));
+    }
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+        request(0);
+        StoredObject source = existingObject(request.getSourceBucketName(), request.getSourceKey());
+        StoredObject copy = new StoredObject(source.data, source.metadata());
+        existingBucket(request.getDestinationBucketName()).put(request.getDestinationKey(), copy);
+
+        CopyObjectResult result = new CopyObjectResult();
+        result.setETag(copy.etag);
+        result.setLastModifiedDate(copy.lastModified);
+        return result;
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+        request(0);
+        ConcurrentNavigableMap<String, StoredObject> objects = existingBucket(request.getBucketName());
+        List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<DeleteObjectsResult.DeletedObject>();
+        for (DeleteObjectsRequest.KeyVersion keyVersion : request.getKeys()) {
+            objects.remove(keyVersion.getKey());
+            if (!request.getQuiet()) {
+                DeleteObjectsResult.DeletedObject d = new DeleteObjectsResult.DeletedObject();
+                d.setKey(keyVersion.getKey());
+                deleted.add(d);
+            }
+        }
+        return new DeleteObjectsResult(deleted);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        request(0);
+        existingBucket(request.getBucketName());
+        String uploadId = "upload-" + nextUploadId.incrementAndGet();
+        uploads.put(uploadId, new Upload(request.getBucketName(), request.getKey(), request.getObjectMetadata()));
+
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        byte[] data;
+        try {
+            InputStream input = request.getInputStream();
+            if (input == null) {
+                FileInputStream fis = new FileInputStream(request.getFile());
+                fis.skip(request.getFileOffset());
+                input = fis;
+            }
+            data = readFully(input, request.getPartSize());
+        }
+        catch (IOException e) {
+            throw new AmazonServiceException("Unable to read request body", e);
+        }
+        request(data.length);
+        existingUpload(request.getUploadId()).parts.put(request.getPartNumber(), data);
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(DigestUtils.md5Hex(data));
+        return result;
+    }
+
+    @Override
+    public CopyPartResult copyPart(CopyPartRequest request) {
+        request(0);
+        StoredObject source = existingObject(request.getSourceBucketName(), request.getSourceKey());
+        int first = request.getFirstByte() == null ? 0 : request.getFirstByte().intValue();
+        int last = request.getLastByte() == null ? source.data.length - 1 : request.getLastByte().intValue();
+        byte[] data = new byte[last - first + 1];
+        System.arraycopy(source.data, first, data, 0, data.length);
+        existingUpload(request.getUploadId()).parts.put(request.getPartNumber(), data);
+
+        CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(DigestUtils.md5Hex(data));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        request(0);
+        Upload upload = uploads.remove(request.getUploadId());
+        if (upload == null)
+            throw error(404, "NoSuchUpload", request.getUploadId());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (PartETag part : request.getPartETags()) {
+            byte[] data = upload.parts.get(part.getPartNumber());
+            if (data == null)
+                throw error(400, "InvalidPart", request.getKey() + " part " + part.getPartNumber());
+            out.write(data, 0, data.length);
+        }
+        StoredObject stored = new StoredObject(out.toByteArray(), upload.metadata);
+        stored.etag = stored.etag + "-" + request.getPartETags().size();
+        existingBucket(upload.bucket).put(upload.key, stored);
+
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(upload.bucket);
+        result.setKey(upload.key);
+        result.setETag(stored.etag);
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        request(0);
+        uploads.remove(request.getUploadId());
+    }
+
+    //////////////////////////////////
+
+    private void request(long bytes) {
+        requests.incrementAndGet();
+        latency.request(bytes);
+    }
+
+    private ConcurrentNavigableMap<String, StoredObject> bucket(String name) {
+        ConcurrentNavigableMap<String, StoredObject> objects = buckets.get(name);
+        if (objects == null) {
+            buckets.putIfAbsent(name, new ConcurrentSkipListMap<String, StoredObject>(KEY_ORDER));
+            objects = buckets.get(name);
+        }
+        return objects;
+    }
+
+    private ConcurrentNavigableMap<String, StoredObject> existingBucket(String name) {
+        ConcurrentNavigableMap<String, StoredObject> objects = buckets.get(name);
+        if (objects == null)
+            throw error(404, "NoSuchBucket", name);
+        return objects;
+    }
+
+    private StoredObject existingObject(String bucket, String key) {
+        StoredObject stored = existingBucket(bucket).get(key);
+        if (stored == null)
+            throw error(404, "NoSuchKey", key);
+        return stored;
+    }
+
+    private Upload existingUpload(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null)
+            throw error(404, "NoSuchUpload", uploadId);
+        return upload;
+    }
+
+    private static AmazonServiceException error(int status, String code, String resource) {
+        AmazonServiceException e = new AmazonServiceException(code + ": " + resource);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        e.setServiceName("Amazon S3");
+        return e;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        return readFully(input, -1);
+    }
+
+    private static byte[] readFully(InputStream input, long limit) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(limit > 0 ? (int) limit : 8192);
+            byte[] buffer = new byte[8192];
+            long remaining = limit < 0 ? Long.MAX_VALUE : limit;
+            int read;
+            while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            return out.toByteArray();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    static class StoredObject {
+
+        final byte[] data;
+        final Date lastModified = new Date();
+        final String contentType;
+        final Map<String, String> userMetadata;
+        String etag;
+
+        StoredObject(byte[] data, ObjectMetadata metadata) {
+            this.data = data;
+            this.etag = DigestUtils.md5Hex(data);
+            this.contentType = metadata == null ? null : metadata.getContentType();
+            this.userMetadata = metadata == null || metadata.getUserMetadata() == null
+                    ? new HashMap<String, String>() : new HashMap<String, String>(metadata.getUserMetadata());
+        }
+
+        ObjectMetadata metadata() {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(data.length);
+            metadata.setContentType(contentType);
+            metadata.setLastModified(lastModified);
+            metadata.setHeader("ETag", etag);
+            metadata.setUserMetadata(new HashMap<String, String>(userMetadata));
+            return metadata;
+        }
+
+        S3ObjectSummary summary(String bucket, String key) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucket);
+            summary.setKey(key);
+            summary.setETag(etag);
+            summary.setSize(data.length);
+            summary.setLastModified(lastModified);
+            return summary;
+        }
+    }
+
+    static class Upload {
+
+        final String bucket;
+        final String key;
+        final ObjectMetadata metadata;
+        final ConcurrentMap<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        Upload(String bucket, String key, ObjectMetadata metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+
+}
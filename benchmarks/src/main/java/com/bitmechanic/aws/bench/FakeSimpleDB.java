@@ -0,0 +1,327 @@
+package com.bitmechanic.aws.bench;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.DeleteDomainRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataResult;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory SimpleDB for the requests the tools make: domain management, batch put and
+ * delete, and select.
+ *
+ * Select understands "select * | count(*) | itemName() | attr, ... from domain", optional
+ * itemName() comparisons joined by "and" in the where clause, "order by itemName() [desc]"
+ * and "limit n".  Items always come back in itemName() order.  Other predicates are ignored.
+ */
+public class FakeSimpleDB extends AmazonSimpleDBClient {
+
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 2500;
+
+    private static final Pattern SELECT = Pattern.compile(
+            "select\\s+(.+?)\\s+from\\s+`?([\\w.-]+)`?(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ITEM_NAME_CONDITION = Pattern.compile(
+            "itemName\\(\\)\\s*(>=|<=|!=|>|<|=)\\s*'((?:[^']|'')*)'", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DESCENDING = Pattern.compile(
+            "order\\s+by\\s+itemName\\(\\)\\s+desc", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIMIT = Pattern.compile("limit\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    private final Latency latency;
+    private final ConcurrentMap<String, NavigableMap<String, Map<String, List<String>>>> domains =
+            new ConcurrentHashMap<String, NavigableMap<String, Map<String, List<String>>>>();
+
+    public FakeSimpleDB(Latency latency) {
+        super(new BasicAWSCredentials("fake", "fake"));
+        this.latency = latency;
+    }
+
+    /**
+     * Stores an item without any simulated latency, for setting up a benchmark.
+     */
+    public void put(String domain, String itemName, Map<String, String> attributes) {
+        NavigableMap<String, Map<String, List<String>>> items = domain(domain);
+        synchronized (items) {
+            Map<String, List<String>> item = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                item.put(attribute.getKey(), new ArrayList<String>(Arrays.asList(attribute.getValue())));
+            }
+            items.put(itemName, item);
+        }
+    }
+
+    public int size(String domain) {
+        NavigableMap<String, Map<String, List<String>>> items = domains.get(domain);
+        return items == null ? 0 : count(items);
+    }
+
+    //////////////////////////////////
+
+    @Override
+    public ListDomainsResult listDomains() {
+        return listDomains(new ListDomainsRequest());
+    }
+
+    @Override
+    public ListDomainsResult listDomains(ListDomainsRequest request) {
+        latency.request();
+        return new ListDomainsResult().withDomainNames(new TreeMap<String, Object>(domains).keySet());
+    }
+
+    @Override
+    public void createDomain(CreateDomainRequest request) {
+        latency.request();
+        domain(request.getDomainName());
+    }
+
+    @Override
+    public void deleteDomain(DeleteDomainRequest request) {
+        latency.request();
+        domains.remove(request.getDomainName());
+    }
+
+    @Override
+    public DomainMetadataResult domainMetadata(DomainMetadataRequest request) {
+        latency.request();
+        DomainMetadataResult result = new DomainMetadataResult();
+        result.setItemCount(count(existingDomain(request.getDomainName())));
+        return result;
+    }
+
+    @Override
+    public void batchPutAttributes(BatchPutAttributesRequest request) {
+        long bytes = 0;
+        for (ReplaceableItem item : request.getItems()) {
+            bytes += item.getName().length();
+            for (ReplaceableAttribute attribute : item.getAttributes()) {
+                bytes += attribute.getName().length() + attribute.getValue().length();
+            }
+        }
+        latency.request(bytes);
+
+        NavigableMap<String, Map<String, List<String>>> items = existingDomain(request.getDomainName());
+        synchronized (items) {
+            for (ReplaceableItem repItem : request.getItems()) {
+                Map<String, List<String>> item = items.get(repItem.getName());
+                if (item == null) {
+                    item = new LinkedHashMap<String, List<String>>();
+                    items.put(repItem.getName(), item);
+                }
+                Set<String> replaced = new HashSet<String>();
+                for (ReplaceableAttribute attribute : repItem.getAttributes()) {
+                    List<String> values = item.get(attribute.getName());
+                    if (values == null || (Boolean.TRUE.equals(attribute.getReplace()) && replaced.add(attribute.getName()))) {
+                        values = new ArrayList<String>();
+                        item.put(attribute.getName(), values);
+                    }
+                    if (!values.contains(attribute.getValue()))
+                        values.add(attribute.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void batchDeleteAttributes(BatchDeleteAttributesRequest request) {
+        latency.request();
+        NavigableMap<String, Map<String, List<String>>> items = existingDomain(request.getDomainName());
+        synchronized (items) {
+            for (DeletableItem delItem : request.getItems()) {
+                Map<String, List<String>> item = items.get(delItem.getName());
+                if (item == null)
+                    continue;
+                if (delItem.getAttributes() == null || delItem.getAttributes().isEmpty()) {
+                    items.remove(delItem.getName());
+                    continue;
+                }
+                for (Attribute attribute : delItem.getAttributes()) {
+                    if (attribute.getValue() == null)
+                        item.remove(attribute.getName());
+                    else if (item.containsKey(attribute.getName()))
+                        item.get(attribute.getName()).remove(attribute.getValue());
+                }
+                if (item.isEmpty())
+                    items.remove(delItem.getName());
+            }
+        }
+    }
+
+    @Override
+    public SelectResult select(SelectRequest request) {
+        Matcher select = SELECT.matcher(request.getSelectExpression().trim());
+        if (!select.matches())
+            throw error(400, "InvalidQueryExpression", request.getSelectExpression());
+        String output = select.group(1).trim();
+        String domain = select.group(2);
+        String rest = select.group(3);
+        NavigableMap<String, Map<String, List<String>>> items = existingDomain(domain);
+
+        if (output.equalsIgnoreCase("count(*)")) {
+            latency.request();
+            int count = 0;
+            synchronized (items) {
+                for (String itemName : range(items, rest).keySet()) {
+                    if (matches(itemName, rest))
+                        count++;
+                }
+            }
+            Item item = new Item("Domain", Arrays.asList(new Attribute("Count", String.valueOf(count))));
+            return new SelectResult().withItems(item);
+        }
+
+        int limit = DEFAULT_LIMIT;
+        Matcher m = LIMIT.matcher(rest);
+        if (m.find())
+            limit = Math.min(MAX_LIMIT, Integer.parseInt(m.group(1)));
+        Set<String> projection = null;
+        if (output.equalsIgnoreCase("itemName()"))
+            projection = new HashSet<String>();
+        else if (!output.equals("*"))
+            projection = new HashSet<String>(Arrays.asList(output.split("\\s*,\\s*")));
+
+        List<Item> page = new ArrayList<Item>();
+        long bytes = 0;
+        String last = null;
+        boolean more = false;
+        synchronized (items) {
+            NavigableMap<String, Map<String, List<String>>> range = range(items, rest);
+            if (DESCENDING.matcher(rest).find()) {
+                range = range.descendingMap();
+                if (request.getNextToken() != null)
+                    range = range.tailMap(request.getNextToken(), false);
+            }
+            else if (request.getNextToken() != null) {
+                range = range.tailMap(request.getNextToken(), false);
+            }
+            for (Map.Entry<String, Map<String, List<String>>> entry : range.entrySet()) {
+                if (!matches(entry.getKey(), rest))
+                    continue;
+                if (page.size() == limit) {
+                    more = true;
+                    break;
+                }
+                List<Attribute> attributes = new ArrayList<Attribute>();
+                for (Map.Entry<String, List<String>> attribute : entry.getValue().entrySet()) {
+                    if (projection != null && !projection.contains(attribute.getKey()))
+                        continue;
+                    for (String value : attribute.getValue()) {
+                        attributes.add(new Attribute(attribute.getKey(), value));
+                        bytes += attribute.getKey().length() + value.length();
+                    }
+                }
+                page.add(new Item(entry.getKey(), attributes));
+                bytes += entry.getKey().length();
+                last = entry.getKey();
+            }
+        }
+        latency.request(bytes);
+
+        SelectResult result = new SelectResult().withItems(page);
+        if (more)
+            result.setNextToken(last);
+        return result;
+    }
+
+    //////////////////////////////////
+
+    /**
+     * Narrows items to the bounds set by the itemName() comparisons in the query, so
+     * scanning a segment doesn't walk the whole domain.
+     */
+    private NavigableMap<String, Map<String, List<String>>> range(
+            NavigableMap<String, Map<String, List<String>>> items, String rest) {
+        NavigableMap<String, Map<String, List<String>>> range = items;
+        Matcher m = ITEM_NAME_CONDITION.matcher(rest);
+        while (m.find()) {
+            String op = m.group(1);
+            String value = m.group(2).replace("''", "'");
+            if (op.startsWith(">"))
+                range = range.tailMap(value, op.equals(">="));
+            else if (op.startsWith("<"))
+                range = range.headMap(value, op.equals("<="));
+        }
+        return range;
+    }
+
+    private boolean matches(String itemName, String rest) {
+        Matcher m = ITEM_NAME_CONDITION.matcher(rest);
+        while (m.find()) {
+            int cmp = itemName.compareTo(m.group(2).replace("''", "'"));
+            String op = m.group(1);
+            boolean ok;
+            if (op.equals(">"))
+                ok = cmp > 0;
+            else if (op.equals(">="))
+                ok = cmp >= 0;
+            else if (op.equals("<"))
+                ok = cmp < 0;
+            else if (op.equals("<="))
+                ok = cmp <= 0;
+            else if (op.equals("="))
+                ok = cmp == 0;
+            else
+                ok = cmp != 0;
+            if (!ok)
+                return false;
+        }
+        return true;
+    }
+
+    private NavigableMap<String, Map<String, List<String>>> domain(String name) {
+        NavigableMap<String, Map<String, List<String>>> items = domains.get(name);
+        if (items == null) {
+            domains.putIfAbsent(name, new TreeMap<String, Map<String, List<String>>>());
+            items = domains.get(name);
+        }
+        return items;
+    }
+
+    private NavigableMap<String, Map<String, List<String>>> existingDomain(String name) {
+        NavigableMap<String, Map<String, List<String>>> items = domains.get(name);
+        if (items == null)
+            throw error(400, "NoSuchDomain", name);
+        return items;
+    }
+
+    private static int count(NavigableMap<String, Map<String, List<String>>> items) {
+        synchronized (items) {
+            return items.size();
+        }
+    }
+
+    private static AmazonServiceException error(int status, String code, String message) {
+        AmazonServiceException e = new AmazonServiceException(code + ": " + message);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        e.setServiceName("AmazonSimpleDB");
+        return e;
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.bitmechanic.aws.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+public class Fixtures {
+
+    /**
+     * Spreads keys over this many top level prefixes, so the buckets shard like a real
+     * one with "directories".
+     */
+    private static final int PREFIXES = 64;
+
+    /**
+     * Random bytes, the same for a given size so that runs are comparable.
+     */
+    public static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    public static String key(int i) {
+        return String.format("dir%02d/object-%08d", i % PREFIXES, i);
+    }
+
+    public static String itemName(int i) {
+        return String.format("item-%08d", i);
+    }
+
+    public static String value(int i, int size) {
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append(Integer.toHexString(i * 31 + sb.length()));
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    public static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Unable to create: " + dir);
+        return dir;
+    }
+
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
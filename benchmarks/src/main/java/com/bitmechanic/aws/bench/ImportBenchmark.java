@@ -0,0 +1,94 @@
+package com.bitmechanic.aws.bench;
+
+import com.bitmechanic.aws.ImportExport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImportExport.importData restoring an export directory into an empty domain and bucket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+    private static final String BUCKET = "bucket";
+    private static final String DOMAIN = "domain";
+
+    @Param({ "10000" })
+    int itemCount;
+
+    @Param({ "1" })
+    int objectsPerItem;
+
+    @Param({ "1024" })
+    int objectSize;
+
+    @Param({ "0", "20" })
+    long rttMillis;
+
+    @Param({ ImportExport.FORMAT_SNAPSHOT, ImportExport.FORMAT_JSON })
+    String format;
+
+    Latency latency;
+    File dir;
+    ImportExport restore;
+
+    @Setup(Level.Trial)
+    public void createExport() throws Exception {
+        latency = new Latency(rttMillis, 0);
+        FakeS3 s3 = new FakeS3(new Latency(0, 0));
+        FakeSimpleDB simpleDb = new FakeSimpleDB(new Latency(0, 0));
+        byte[] payload = Fixtures.payload(objectSize);
+        for (int i = 0; i < itemCount; i++) {
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            attributes.put("name", Fixtures.value(i, 16));
+            simpleDb.put(DOMAIN, Fixtures.itemName(i), attributes);
+            for (int j = 0; j < objectsPerItem; j++) {
+                s3.put(BUCKET, Fixtures.itemName(i) + "/" + j, payload);
+            }
+        }
+
+        dir = Fixtures.tempDir("import");
+        ImportExport export = new ImportExport(s3, simpleDb, BUCKET, DOMAIN);
+        export.setProgress(0, null);
+        export.setFormat(format);
+        export.exportData(dir.getAbsolutePath());
+    }
+
+    @Setup(Level.Invocation)
+    public void createDestination() {
+        restore = new ImportExport(new FakeS3(latency), new FakeSimpleDB(latency), BUCKET, DOMAIN);
+        restore.setProgress(0, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteExport() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void importAll() throws Exception {
+        restore.importData(dir.getAbsolutePath());
+    }
+
+}
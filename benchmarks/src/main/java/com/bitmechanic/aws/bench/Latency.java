@@ -0,0 +1,35 @@
+package com.bitmechanic.aws.bench;
+
+/**
+ * Simulated network cost of a request: a fixed round trip time, plus the time to move
+ * the request or response body at bytesPerSecond (0 means unlimited).
+ */
+public class Latency {
+
+    private final long rttMillis;
+    private final long bytesPerSecond;
+
+    public Latency(long rttMillis, long bytesPerSecond) {
+        this.rttMillis = rttMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void request() {
+        request(0);
+    }
+
+    public void request(long bytes) {
+        long nanos = rttMillis * 1000000L;
+        if (bytesPerSecond > 0)
+            nanos += bytes * 1000000000L / bytesPerSecond;
+        if (nanos <= 0)
+            return;
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.bitmechanic.aws.bench;
+
+import com.bitmechanic.aws.SyncBuckets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncBuckets.run against an in-memory S3, either copying every object of the source
+ * bucket or comparing two buckets that are already in sync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SyncBucketsBenchmark {
+
+    private static final String SOURCE = "source";
+    private static final String DEST = "dest";
+
+    @Param({ "10000" })
+    int objectCount;
+
+    @Param({ "1024", "1048576" })
+    int objectSize;
+
+    @Param({ "0", "20" })
+    long rttMillis;
+
+    // per connection, 0 for unlimited
+    @Param({ "0" })
+    long bytesPerSecond;
+
+    @Param({ "false", "true" })
+    boolean serverSideCopy;
+
+    @Param({ "10" })
+    int threads;
+
+    FakeS3 s3;
+    SyncBuckets sync;
+
+    @Setup(Level.Trial)
+    public void createBuckets(BenchmarkParams params) throws Exception {
+        s3 = new FakeS3(new Latency(rttMillis, bytesPerSecond));
+        byte[] payload = Fixtures.payload(objectSize);
+        for (int i = 0; i < objectCount; i++) {
+            s3.put(SOURCE, Fixtures.key(i), payload);
+            if (!copies(params))
+                s3.put(DEST, Fixtures.key(i), payload);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createSync(BenchmarkParams params) {
+        if (copies(params)) {
+            s3.clear(DEST);
+            s3.put(DEST, "placeholder", new byte[0]);
+        }
+        sync = new SyncBuckets(s3, SOURCE, s3, DEST, false);
+        sync.setServerSideCopy(serverSideCopy);
+        sync.setThreads(threads);
+        sync.setProgress(0, null);
+    }
+
+    /**
+     * Copies every object into a destination holding a single stale object.
+     */
+    @Benchmark
+    public void copyAll() throws Exception {
+        sync.run();
+    }
+
+    /**
+     * Lists and compares both buckets without copying anything.
+     */
+    @Benchmark
+    public void alreadyInSync() throws Exception {
+        sync.run();
+    }
+
+    private static boolean copies(BenchmarkParams params) {
+        return params.getBenchmark().endsWith("copyAll");
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.bitmechanic.aws;
+
+/**
+ * Limits how many workers may run at once, adjusting the limit AIMD style: it is halved
+ * when a request is throttled (at most once per second, so one burst of throttling
+ * doesn't collapse it to 1) and grows back by about one for every limit's worth of
+ * successful requests.
+ */
+public class AdaptiveLimiter {
+
+    private static final long DECREASE_INTERVAL_MILLIS = 1000;
+
+    private final int min;
+    private final int max;
+    private double limit;
+    private int active;
+    private long lastDecrease;
+
+    public AdaptiveLimiter(int max) {
+        this(1, max);
+    }
+
+    public AdaptiveLimiter(int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.limit = this.max;
+    }
+
+    public synchronized void acquire() throws InterruptedException {
+        while (active >= (int) limit)
+            wait();
+        active++;
+    }
+
+    public synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    public synchronized void onSuccess() {
+        if (limit < max) {
+            int before = (int) limit;
+            limit = Math.min(max, limit + 1.0 / limit);
+            if ((int) limit > before)
+                notifyAll();
+        }
+    }
+
+    public synchronized void onThrottle() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease >= DECREASE_INTERVAL_MILLIS) {
+            limit = Math.max(min, limit / 2);
+            lastDecrease = now;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.bitmechanic.aws;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Caps the rate at which bytes pass through the streams it throttles, shared by every
+ * thread reading them.
+ *
+ * Readers are charged for each read after it returns.  Up to a second's worth of bytes
+ * may be read at full speed; beyond that a reader sleeps until the rate is back under
+ * the limit, so the limit holds on average over a second or so.
+ *
+ * A limiter may have a parent that every read is also charged to, such as a per-lane
+ * limit within the budget of a whole batch.
+ */
+public class BandwidthLimiter {
+
+    private final long bytesPerSecond;
+    private final BandwidthLimiter parent;
+    private double available;
+    private long updated = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, null);
+    }
+
+    public BandwidthLimiter(long bytesPerSecond, BandwidthLimiter parent) {
+        if (bytesPerSecond < 1)
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+        this.parent = parent;
+        this.available = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Charges bytes against the limit, sleeping if it has been exceeded.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long sleepNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - updated) * (double) bytesPerSecond / 1e9);
+            updated = now;
+            // may go below zero: later readers then wait for this one's bytes too
+            available -= bytes;
+            sleepNanos = available >= 0 ? 0 : (long) (-available * 1e9 / bytesPerSecond);
+        }
+        if (sleepNanos > 0)
+            Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+        if (parent != null)
+            parent.acquire(bytes);
+    }
+
+    /**
+     * Wraps in so that reads from it are charged against the limit.
+     */
+    public InputStream throttle(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1)
+                    charge(1);
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    charge(n);
+                return n;
+            }
+
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                if (skipped > 0)
+                    charge(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    private void charge(long bytes) throws InterruptedIOException {
+        try {
+            acquire(bytes);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for bandwidth");
+        }
+    }
+
+}
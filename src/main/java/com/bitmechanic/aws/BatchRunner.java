@@ -0,0 +1,404 @@
+package com.bitmechanic.aws;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many SyncBuckets, CopySimpleDB and ImportExport jobs in one process.  The job file
+ * has a job per line: the tool's class name followed by the arguments it takes on the
+ * command line, separated by spaces.  Blank lines and lines starting with # are skipped.
+ *
+ *     SyncBuckets --from key:secret:photos --to key2:secret2:photos-backup --server-side-copy
+ *     CopySimpleDB --from key:secret:users --to key2:secret2:users --incremental
+ *     ImportExport --accessKey key --secretKey secret --domain orders --bucket orders --export /backup/orders
+ *
+ * Up to --jobs jobs run at once, in file order, on one TransferEngine: they share the HTTP
+ * connections of each account, and at most --threads of their tasks run at a time, split
+ * evenly between the jobs with work waiting (see FairShare).  A job's own --threads still
+ * limits that job.  --bandwidth caps the object data streamed by all jobs together.
+ * Options on a job line that configure the engine (--connections, --socket-buffer,
+ * --virtual-threads) are ignored, and jobs print no progress of their own unless their
+ * line asks for it.
+ *
+ * Once every job has finished, a line per job and the totals are printed, and written as
+ * JSON to --report.  The exit status is 1 if any job failed.
+ */
+public class BatchRunner {
+
+    public static void main(String argv[]) throws Exception {
+        String jobFile = null;
+        int jobs = DEFAULT_JOBS;
+        int threads = DEFAULT_THREADS;
+        int bandwidthMB = 0;
+        int progressSeconds = 10;
+        String report = null;
+        boolean virtualThreads = false;
+        int connections = 0;
+        int socketBufferKB = 0;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("--job-file"))
+                jobFile = argv[++i];
+            else if (argv[i].equals("--jobs"))
+                jobs = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--bandwidth"))
+                bandwidthMB = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--progress"))
+                progressSeconds = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--report"))
+                report = argv[++i];
+            else if (argv[i].equals("--virtual-threads"))
+                virtualThreads = true;
+            else if (argv[i].equals("--connections"))
+                connections = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--socket-buffer"))
+                socketBufferKB = Integer.parseInt(argv[++i]);
+        }
+        if (jobFile == null)
+            usage();
+
+        List<Job> list = readJobs(new File(jobFile));
+        TransferEngine engine = new TransferEngine(threads + jobs * JOB_OVERHEAD);
+        engine.setFairShare(threads);
+        if (virtualThreads)
+            engine.setVirtualThreads(threads);
+        if (connections > 0)
+            engine.setConnections(connections);
+        engine.setSocketBufferSize(socketBufferKB * 1024);
+        engine.setBandwidth((long) bandwidthMB * MB);
+
+        BatchRunner runner = new BatchRunner(engine, list);
+        runner.setJobs(jobs);
+        runner.setProgress(progressSeconds);
+        try {
+            runner.run();
+        }
+        finally {
+            engine.shutdown();
+        }
+        runner.print(System.out);
+        if (report != null)
+            runner.writeReport(new File(report));
+        if (runner.getFailedCount() > 0)
+            System.exit(1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java BatchRunner --job-file file [--jobs n] [--threads n] [--bandwidth mb/s] [--progress seconds] [--report file] [--virtual-threads] [--connections n] [--socket-buffer kb]");
+        System.exit(1);
+    }
+
+    ////////////////////////////////////////
+
+    private static final int MB = 1024 * 1024;
+    public static final int DEFAULT_JOBS = 4;
+    public static final int DEFAULT_THREADS = 32;
+    // connections per running job for listings and part transfers, which aren't tasks
+    private static final int JOB_OVERHEAD = 16;
+
+    private TransferEngine engine;
+    private List<Job> jobs;
+    private int concurrentJobs = DEFAULT_JOBS;
+    private int progressSeconds;
+    private long started;
+    private long finished;
+
+    public BatchRunner(TransferEngine engine, List<Job> jobs) {
+        this.engine = engine;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Reads a job file.
+     */
+    public static List<Job> readJobs(File file) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] words = line.split("\\s+");
+                String tool = words[0];
+                if (!tool.equals("SyncBuckets") && !tool.equals("CopySimpleDB") && !tool.equals("ImportExport"))
+                    throw new IOException(file + " line " + number + ": unknown tool " + tool);
+                String[] args = new String[words.length - 1];
+                System.arraycopy(words, 1, args, 0, args.length);
+                jobs.add(new Job(tool + "-" + number, tool, args));
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    /**
+     * Number of jobs run at once.
+     */
+    public void setJobs(int concurrentJobs) {
+        this.concurrentJobs = concurrentJobs;
+    }
+
+    /**
+     * Prints a line with the progress of the whole batch every progressSeconds (never if 0).
+     */
+    public void setProgress(int progressSeconds) {
+        this.progressSeconds = progressSeconds;
+    }
+
+    /**
+     * Runs every job and returns once all have finished.  A job that fails doesn't stop
+     * the others.
+     */
+    public void run() throws InterruptedException {
+        started = System.currentTimeMillis();
+        System.out.println("Running " + jobs.size() + " jobs, " + concurrentJobs + " at a time");
+
+        Thread reporter = null;
+        if (progressSeconds > 0) {
+            reporter = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(progressSeconds * 1000L);
+                            System.out.println(progressLine());
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        // finished
+                    }
+                }
+            }, "progress-batch");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        List<Thread> runners = new ArrayList<Thread>();
+        for (int i = 0; i < Math.min(concurrentJobs, jobs.size()); i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < jobs.size()) {
+                        runJob(jobs.get(i));
+                    }
+                }
+            }, "job-runner-" + i);
+            t.start();
+            runners.add(t);
+        }
+        for (Thread t : runners) {
+            t.join();
+        }
+        if (reporter != null)
+            reporter.interrupt();
+        finished = System.currentTimeMillis();
+    }
+
+    private void runJob(Job job) {
+        System.out.println("Starting " + job.name);
+        job.started = System.currentTimeMillis();
+        TransferEngine jobEngine = engine.job(job.name);
+        try {
+            // jobs print no progress unless their line asks for it
+            String[] args = new String[job.args.length + 2];
+            args[0] = "--progress";
+            args[1] = "0";
+            System.arraycopy(job.args, 0, args, 2, job.args.length);
+
+            if (job.tool.equals("SyncBuckets")) {
+                SyncBuckets sync = SyncBuckets.configure(jobEngine, args);
+                job.metrics = sync.getMetrics();
+                sync.run();
+            }
+            else if (job.tool.equals("CopySimpleDB")) {
+                CopySimpleDB copy = CopySimpleDB.configure(jobEngine, args);
+                job.metrics = copy.getMetrics();
+                copy.run();
+            }
+            else {
+                ImportExport importExport = ImportExport.configure(jobEngine, args);
+                job.metrics = importExport.getMetrics();
+                importExport.run();
+            }
+        }
+        catch (Exception e) {
+            job.error = e;
+            System.err.println(job.name + " failed: " + e);
+        }
+        finally {
+            try {
+                jobEngine.shutdown();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // metrics keep counting time, so take the job's summary as it ends
+            if (job.metrics != null)
+                job.summary = job.metrics.summary();
+            job.finished = System.currentTimeMillis();
+        }
+        System.out.println("Finished " + job.name + ": " + job.getStatus());
+    }
+
+    /**
+     * Jobs running, done and failed, with objects and bytes moved by all of them so far.
+     */
+    public String progressLine() {
+        int running = 0;
+        int done = 0;
+        long objects = 0;
+        long bytes = 0;
+        for (Job job : jobs) {
+            if (job.finished > 0)
+                done++;
+            else if (job.started > 0)
+                running++;
+            if (job.metrics != null) {
+                objects += job.metrics.getObjects();
+                bytes += job.metrics.getBytes();
+            }
+        }
+        double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+        return String.format("Jobs: %d running, %d done (%d failed), %d waiting | %d objects, %.1f MB (%.1f MB/s)",
+                running, done, getFailedCount(), jobs.size() - running - done, objects,
+                bytes / (double) MB, bytes / (double) MB / seconds);
+    }
+
+    public int getFailedCount() {
+        int failed = 0;
+        for (Job job : jobs) {
+            if (job.isFailed())
+                failed++;
+        }
+        return failed;
+    }
+
+    /**
+     * Prints a line per job and the totals.
+     */
+    public void print(PrintStream out) {
+        out.println(String.format("%-24s %-8s %12s %16s %9s %9s", "Job", "Status", "Objects", "Bytes", "Failures", "Seconds"));
+        long objects = 0;
+        long bytes = 0;
+        long failures = 0;
+        for (Job job : jobs) {
+            long jobObjects = job.metrics == null ? 0 : job.metrics.getObjects();
+            long jobBytes = job.metrics == null ? 0 : job.metrics.getBytes();
+            long jobFailures = job.metrics == null ? 0 : job.metrics.getFailures();
+            out.println(String.format("%-24s %-8s %12d %16d %9d %9d", job.name, job.getStatus(),
+                    jobObjects, jobBytes, jobFailures, job.getElapsedMillis() / 1000));
+            if (job.error != null)
+                out.println("    " + job.error);
+            objects += jobObjects;
+            bytes += jobBytes;
+            failures += jobFailures;
+        }
+        long seconds = (finished - started) / 1000;
+        out.println(String.format("%-24s %-8s %12d %16d %9d %9d", "Total",
+                getFailedCount() + " failed", objects, bytes, failures, seconds));
+    }
+
+    /**
+     * Writes the summary of each job's metrics and the totals as JSON.
+     */
+    public void writeReport(File file) throws IOException {
+        List<Map<String, Object>> jobSummaries = new ArrayList<Map<String, Object>>();
+        long objects = 0;
+        long bytes = 0;
+        for (Job job : jobs) {
+            Map<String, Object> summary = new LinkedHashMap<String, Object>();
+            summary.put("job", job.name);
+            summary.put("status", job.getStatus());
+            if (job.error != null)
+                summary.put("error", job.error.toString());
+            if (job.metrics != null) {
+                summary.put("metrics", job.summary != null ? job.summary : job.metrics.summary());
+                objects += job.metrics.getObjects();
+                bytes += job.metrics.getBytes();
+            }
+            jobSummaries.add(summary);
+        }
+        Map<String, Object> total = new LinkedHashMap<String, Object>();
+        total.put("jobs", jobs.size());
+        total.put("failed", getFailedCount());
+        total.put("objects", objects);
+        total.put("bytes", bytes);
+        total.put("elapsedSeconds", (finished - started) / 1000.0);
+
+        Map<String, Object> reportJson = new LinkedHashMap<String, Object>();
+        reportJson.put("jobs", jobSummaries);
+        reportJson.put("total", total);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(new GsonBuilder().setPrettyPrinting().create().toJson(reportJson));
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    //////////////////////////////////
+
+    /**
+     * A line of the job file and, once it has run, how it went.
+     */
+    public static class Job {
+
+        String name;
+        String tool;
+        String[] args;
+        volatile TransferMetrics metrics;
+        volatile Map<String, Object> summary;
+        volatile Exception error;
+        volatile long started;
+        volatile long finished;
+
+        public Job(String name, String tool, String[] args) {
+            this.name = name;
+            this.tool = tool;
+            this.args = args;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * True if the job threw, or any of its objects or items failed.
+         */
+        public boolean isFailed() {
+            return error != null || (metrics != null && metrics.getFailures() > 0);
+        }
+
+        public String getStatus() {
+            if (started == 0)
+                return "waiting";
+            if (finished == 0)
+                return "running";
+            return isFailed() ? "failed" : "ok";
+        }
+
+        public long getElapsedMillis() {
+            return started == 0 ? 0 : (finished == 0 ? System.currentTimeMillis() : finished) - started;
+        }
+    }
+
+}
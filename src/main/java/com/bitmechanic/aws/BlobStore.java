@@ -0,0 +1,555 @@
+package com.bitmechanic.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local store of object bodies shared by many exports, each body kept once however
+ * many exports, keys or buckets it appears under.
+ *
+ * Bodies (blobs) are named by ETag and size, which S3 listings return for every object,
+ * so whether an object needs downloading is decided from the listing alone.  Each export
+ * records a snapshot: the key, blob and export name of every object it saw.  gc() deletes
+ * all but the newest snapshots and then every blob no remaining snapshot refers to.
+ *
+ * Layout:
+ *
+ *     blobs/xx/id      bodies, xx being the first two characters of the id
+ *     blobs.idx        id, size and metadata (as JSON) of each blob, appended as added
+ *     snapshots/name.refs
+ *     store.lock       locked by every open store, see StoreLock
+ *
+ * Snapshots are named by the time they were started and a sequence number, so they sort
+ * oldest first.  gc() waits until no other process or thread has the store open, and
+ * stores opened meanwhile wait for it to finish, so it never deletes a blob a running
+ * export has just added or is still downloading.
+ *
+ * Run with --store dir --gc [--keep n] to collect garbage, keeping the newest n (default
+ * 7) snapshots.
+ */
+public class BlobStore {
+
+    public static void main(String argv[]) throws Exception {
+        String dir = null;
+        int keep = DEFAULT_KEEP;
+        boolean gc = false;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("--store"))
+                dir = argv[++i];
+            else if (argv[i].equals("--keep"))
+                keep = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--gc"))
+                gc = true;
+        }
+        if (dir == null || !gc) {
+            usage();
+            return;
+        }
+
+        BlobStore store = open(new File(dir));
+        try {
+            store.gc(keep);
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java BlobStore --store dir --gc [--keep n]");
+        System.exit(1);
+    }
+
+    ////////////////////////////////////////
+
+    public static final int DEFAULT_KEEP = 7;
+
+    private static final String BLOBS = "blobs";
+    private static final String INDEX = "blobs.idx";
+    private static final String SNAPSHOTS = "snapshots";
+    private static final String REFS_SUFFIX = ".refs";
+    private static final String LOCK = "store.lock";
+
+    private File dir;
+    private Set<String> blobs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Map<String, String> metadata;
+    private DataOutputStream index;
+    private AtomicLong tempCount = new AtomicLong();
+    private StoreLock lock;
+    private boolean closed;
+
+    public static BlobStore open(File dir) throws IOException {
+        return new BlobStore(dir);
+    }
+
+    private BlobStore(File dir) throws IOException {
+        this.dir = dir;
+        new File(dir, BLOBS).mkdirs();
+        new File(dir, SNAPSHOTS).mkdirs();
+        if (!new File(dir, BLOBS).isDirectory())
+            throw new IOException("Unable to create: " + new File(dir, BLOBS).getAbsolutePath());
+        lock = StoreLock.forDir(dir);
+        lock.open();
+
+        File indexFile = new File(dir, INDEX);
+        try {
+            if (indexFile.exists()) {
+                IndexReader entries = new IndexReader(indexFile);
+                try {
+                    while (entries.next()) {
+                        blobs.add(entries.id);
+                    }
+                }
+                finally {
+                    entries.close();
+                }
+            }
+            index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        }
+        catch (IOException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The id of the blob holding an object with this ETag and size.
+     */
+    public static String blobId(String etag, long size) {
+        return etag.replace("\"", "").toLowerCase() + "-" + size;
+    }
+
+    public boolean contains(String id) {
+        return blobs.contains(id);
+    }
+
+    public File blobFile(String id) {
+        return new File(new File(new File(dir, BLOBS), id.substring(0, Math.min(2, id.length()))), id);
+    }
+
+    /**
+     * A file to download a new blob into before add() moves it into place.
+     */
+    public File tempFile() {
+        return new File(new File(dir, BLOBS), "tmp-" + System.nanoTime() + "-" + tempCount.incrementAndGet());
+    }
+
+    /**
+     * Moves a downloaded body into the store as blob id, recording its metadata.
+     */
+    public void add(String id, File temp, String metadataJson) throws IOException {
+        File file = blobFile(id);
+        file.getParentFile().mkdirs();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + file);
+        }
+        synchronized (this) {
+            index.writeUTF(id);
+            index.writeLong(file.length());
+            byte[] json = metadataJson.getBytes("UTF-8");
+            index.writeInt(json.length);
+            index.write(json);
+            index.flush();
+            if (metadata != null)
+                metadata.put(id, metadataJson);
+        }
+        blobs.add(id);
+    }
+
+    /**
+     * The metadata of a blob, as JSON, or null if it isn't in the store.  The first call
+     * reads the metadata of every blob into memory.
+     */
+    public synchronized String getMetadata(String id) throws IOException {
+        if (metadata == null) {
+            metadata = new HashMap<String, String>();
+            IndexReader entries = new IndexReader(new File(dir, INDEX));
+            try {
+                while (entries.next()) {
+                    metadata.put(entries.id, entries.metadata);
+                }
+            }
+            finally {
+                entries.close();
+            }
+        }
+        return metadata.get(id);
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            index.close();
+        }
+        finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Starts recording a new snapshot, named by the current time and a sequence number
+     * that tells apart snapshots started in the same second.
+     */
+    public Snapshot startSnapshot() throws IOException {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File snapshots = new File(dir, SNAPSHOTS);
+        for (int i = 0; ; i++) {
+            File file = new File(snapshots, time + "-" + String.format("%04d", i) + REFS_SUFFIX);
+            if (file.exists())
+                continue;
+            // a name is claimed by creating its .tmp file, which is all a snapshot is until
+            // closed; the second check catches one closed between the two
+            File tmp = new File(file.getPath() + ".tmp");
+            if (tmp.createNewFile()) {
+                if (!file.exists())
+                    return new Snapshot(file);
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Lists the objects of a snapshot written by an earlier export.
+     */
+    public RefReader readSnapshot(String name) throws IOException {
+        return new RefReader(new File(new File(dir, SNAPSHOTS), name + REFS_SUFFIX));
+    }
+
+    /**
+     * Deletes all but the newest keep snapshots, then every blob that none of the
+     * remaining snapshots refers to, and rewrites the blob index without them.  Returns
+     * the number of blobs deleted.  Waits until this is the only store open on dir.
+     */
+    public synchronized int gc(int keep) throws IOException {
+        lock.startCollecting();
+        try {
+            return collect(keep);
+        }
+        finally {
+            lock.stopCollecting();
+        }
+    }
+
+    private int collect(int keep) throws IOException {
+        File[] snapshots = new File(dir, SNAPSHOTS).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(REFS_SUFFIX);
+            }
+        });
+        // by name without the suffix, which is oldest first
+        Arrays.sort(snapshots, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return snapshotName(a).compareTo(snapshotName(b));
+            }
+        });
+        for (int i = 0; i < snapshots.length - keep; i++) {
+            System.out.println("Deleting snapshot " + snapshots[i].getName());
+            snapshots[i].delete();
+        }
+
+        Set<String> live = new HashSet<String>();
+        for (int i = Math.max(0, snapshots.length - keep); i < snapshots.length; i++) {
+            RefReader refs = new RefReader(snapshots[i]);
+            try {
+                while (refs.next()) {
+                    live.add(refs.getBlobId());
+                }
+            }
+            finally {
+                refs.close();
+            }
+        }
+
+        int deleted = 0;
+        long bytes = 0;
+        File[] dirs = new File(dir, BLOBS).listFiles();
+        for (File subdir : dirs == null ? new File[0] : dirs) {
+            File[] files = subdir.isDirectory() ? subdir.listFiles() : new File[] { subdir };
+            for (File file : files) {
+                if (!live.contains(file.getName())) {
+                    bytes += file.length();
+                    if (file.delete())
+                        deleted++;
+                    blobs.remove(file.getName());
+                }
+            }
+        }
+
+        // rewrite the index with only the blobs that are left
+        index.close();
+        File indexFile = new File(dir, INDEX);
+        File tmp = new File(dir, INDEX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        Set<String> written = new HashSet<String>();
+        IndexReader entries = new IndexReader(indexFile);
+        try {
+            while (entries.next()) {
+                if (live.contains(entries.id) && written.add(entries.id)) {
+                    out.writeUTF(entries.id);
+                    out.writeLong(entries.size);
+                    byte[] json = entries.metadata.getBytes("UTF-8");
+                    out.writeInt(json.length);
+                    out.write(json);
+                }
+            }
+        }
+        finally {
+            entries.close();
+            out.close();
+        }
+        if (!indexFile.delete() || !tmp.renameTo(indexFile))
+            throw new IOException("Unable to replace " + indexFile);
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        metadata = null;
+
+        System.out.println("Deleted " + deleted + " blobs (" + bytes + " bytes), " + written.size() + " left");
+        return deleted;
+    }
+
+    private static String snapshotName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.length() - REFS_SUFFIX.length());
+    }
+
+    //////////////////////////////////
+
+    /**
+     * The objects seen by one export.  add() may be called from many threads; the
+     * snapshot only becomes visible to gc() and restores once closed.
+     */
+    public static class Snapshot {
+
+        private File file;
+        private File tmp;
+        private DataOutputStream out;
+
+        Snapshot(File file) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        }
+
+        public String getName() {
+            return snapshotName(file);
+        }
+
+        public synchronized void add(String key, String blobId, String exportName) throws IOException {
+            out.writeUTF(key);
+            out.writeUTF(blobId);
+            out.writeUTF(exportName);
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+            if (!tmp.renameTo(file))
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the key, blob id and export name of each object in a snapshot.
+     */
+    public static class RefReader {
+
+        private DataInputStream in;
+        private String key;
+        private String blobId;
+        private String exportName;
+
+        RefReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        }
+
+        /**
+         * Moves to the next object, returning false at the end of the snapshot.
+         */
+        public boolean next() throws IOException {
+            try {
+                key = in.readUTF();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            blobId = in.readUTF();
+            exportName = in.readUTF();
+            return true;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getBlobId() {
+            return blobId;
+        }
+
+        public String getExportName() {
+            return exportName;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Keeps gc() from running while any other store is open on the same directory, in
+     * this process or another.  Every open store shares a lock on store.lock, which gc()
+     * trades for an exclusive one.  A FileLock is held for the whole JVM, so the stores
+     * open in one JVM share a single lock and count themselves here.
+     */
+    private static class StoreLock {
+
+        private static final Map<File, StoreLock> LOCKS = new HashMap<File, StoreLock>();
+
+        private File file;
+        private FileChannel channel;
+        private FileLock fileLock;
+        private int open;
+        private boolean collecting;
+
+        static StoreLock forDir(File dir) throws IOException {
+            File file = new File(dir, LOCK).getCanonicalFile();
+            synchronized (LOCKS) {
+                StoreLock lock = LOCKS.get(file);
+                if (lock == null) {
+                    lock = new StoreLock();
+                    lock.file = file;
+                    LOCKS.put(file, lock);
+                }
+                return lock;
+            }
+        }
+
+        /**
+         * Called as a store opens, waiting while a gc() runs.
+         */
+        synchronized void open() throws IOException {
+            while (collecting)
+                await();
+            if (open == 0) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                try {
+                    fileLock = channel.lock(0, Long.MAX_VALUE, true);
+                }
+                catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            open++;
+        }
+
+        synchronized void close() throws IOException {
+            if (--open == 0) {
+                fileLock = null;
+                // closing the channel releases the lock
+                channel.close();
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until the store calling gc() is the only one open, in this JVM and any
+         * other, keeping others from opening until stopCollecting().
+         */
+        synchronized void startCollecting() throws IOException {
+            if (collecting)
+                throw new IOException("Already collecting garbage in " + file.getParent());
+            collecting = true;
+            try {
+                while (open > 1)
+                    await();
+                fileLock.release();
+                fileLock = null;
+                fileLock = channel.lock();
+            }
+            catch (IOException e) {
+                stopCollecting();
+                throw e;
+            }
+        }
+
+        synchronized void stopCollecting() throws IOException {
+            try {
+                if (fileLock == null || !fileLock.isShared()) {
+                    if (fileLock != null)
+                        fileLock.release();
+                    fileLock = channel.lock(0, Long.MAX_VALUE, true);
+                }
+            }
+            finally {
+                collecting = false;
+                notifyAll();
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + file);
+            }
+        }
+    }
+
+    private static class IndexReader {
+
+        DataInputStream in;
+        String id;
+        long size;
+        String metadata;
+
+        IndexReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        }
+
+        boolean next() throws IOException {
+            try {
+                id = in.readUTF();
+                size = in.readLong();
+                byte[] json = new byte[in.readInt()];
+                in.readFully(json);
+                metadata = new String(json, "UTF-8");
+                return true;
+            }
+            catch (EOFException e) {
+                // the end of the file, or an entry cut short by a crash
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Iterates over the objects in a bucket in key order.  Once started, pages are listed by
+ * a background thread a couple of pages ahead of the caller, so two listings can be walked side by
+ * side without either one waiting on the other's requests.  Memory use is bounded by
+ * the number of prefetched pages.
+ *
+ * A listing can be limited to a prefix and/or a key range, which is how BucketSharder
+ * shards are listed.  Each LIST request is retried according to a RetryPolicy.
+ *
+ * If start() isn't called, pages are listed by the caller as it iterates instead.  That
+ * suits short listings, such as the objects under one prefix, where a thread would cost
+ * more than it saves.
+ */
+public class BucketListing implements Iterator<S3ObjectSummary> {
+
+    private static final int PREFETCH_PAGES = 2;
+    private static final List<S3ObjectSummary> END = new ArrayList<S3ObjectSummary>();
+
+    private AmazonS3 client;
+    private String bucket;
+    private String prefix;
+    private String after;
+    private String upTo;
+    private RetryPolicy retry = new RetryPolicy();
+
+    private BlockingQueue<List<S3ObjectSummary>> pages =
+            new ArrayBlockingQueue<List<S3ObjectSummary>>(PREFETCH_PAGES);
+    private Iterator<S3ObjectSummary> page;
+    private ListObjectsRequest request;
+    private boolean more = true;
+    private boolean done;
+    private volatile RuntimeException error;
+    private Thread thread;
+
+    public BucketListing(AmazonS3 client, String bucket) {
+        this.client = client;
+        this.bucket = bucket;
+    }
+
+    public BucketListing(AmazonS3 client, String bucket, String after, String upTo) {
+        this(client, bucket);
+        this.after = after;
+        this.upTo = upTo;
+    }
+
+    /**
+     * Only list keys starting with prefix.
+     */
+    public BucketListing setPrefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    public BucketListing setRetryPolicy(RetryPolicy retry) {
+        this.retry = retry;
+        return this;
+    }
+
+    public BucketListing start() {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                list();
+            }
+        }, "list-" + bucket);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Stops the background listing.  Only needed if the caller stops iterating early.
+     */
+    public void close() {
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private void list() {
+        try {
+            List<S3ObjectSummary> summaries;
+            while ((summaries = listPage()) != null) {
+                pages.put(summaries);
+            }
+        }
+        catch (InterruptedException e) {
+            return;
+        }
+        catch (RuntimeException e) {
+            error = e;
+        }
+        catch (Exception e) {
+            error = new RuntimeException(e);
+        }
+
+        try {
+            pages.put(END);
+        }
+        catch (InterruptedException e) {
+            // closed by the caller
+        }
+    }
+
+    /**
+     * Lists the next page, or returns null once the listing is complete.
+     */
+    private List<S3ObjectSummary> listPage() throws Exception {
+        if (!more)
+            return null;
+        if (request == null) {
+            request = new ListObjectsRequest();
+            request.setBucketName(bucket);
+            request.setPrefix(prefix);
+            request.setMarker(after);
+        }
+        ObjectListing listing = retry.call("list", new Callable<ObjectListing>() {
+            public ObjectListing call() {
+                return client.listObjects(request);
+            }
+        });
+        more = listing.isTruncated();
+        if (more)
+            request.setMarker(nextMarker(listing));
+
+        List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+        if (upTo != null && !summaries.isEmpty()
+                && compareKeys(summaries.get(summaries.size() - 1).getKey(), upTo) > 0) {
+            summaries = inRange(summaries);
+            more = false;
+        }
+        return summaries;
+    }
+
+    private List<S3ObjectSummary> inRange(List<S3ObjectSummary> summaries) {
+        List<S3ObjectSummary> list = new ArrayList<S3ObjectSummary>();
+        for (S3ObjectSummary summary : summaries) {
+            if (compareKeys(summary.getKey(), upTo) > 0)
+                break;
+            list.add(summary);
+        }
+        return list;
+    }
+
+    /**
+     * S3 only returns NextMarker when a delimiter is used, otherwise the last key
+     * of the page is the marker for the next one.
+     */
+    static String nextMarker(ObjectListing listing) {
+        if (listing.getNextMarker() != null)
+            return listing.getNextMarker();
+        List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+        return summaries.get(summaries.size() - 1).getKey();
+    }
+
+    public boolean hasNext() {
+        while (page == null || !page.hasNext()) {
+            if (done)
+                return false;
+
+            List<S3ObjectSummary> next;
+            try {
+                if (thread == null) {
+                    next = listPage();
+                    if (next == null)
+                        next = END;
+                }
+                else {
+                    next = pages.take();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted listing bucket: " + bucket, e);
+            }
+            catch (RuntimeException e) {
+                done = true;
+                throw e;
+            }
+            catch (Exception e) {
+                done = true;
+                throw new RuntimeException(e);
+            }
+
+            if (next == END) {
+                done = true;
+                if (error != null)
+                    throw error;
+                return false;
+            }
+            page = next.iterator();
+        }
+        return true;
+    }
+
+    public S3ObjectSummary next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return page.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Compares two keys in the order S3 lists them, which is by their UTF-8 bytes.  This
+     * is code point order, and differs from String.compareTo for characters outside the
+     * basic multilingual plane.
+     */
+    public static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb)
+                return ca < cb ? -1 : 1;
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Splits the key space of a bucket into contiguous ranges that can be listed in parallel.
+ *
+ * Split points come from the common prefixes of a delimiter listing of the bucket root.
+ * If that yields fewer than the requested number of shards (a flat bucket, or one with
+ * only a few top level "directories"), each prefix is split again by its next character.
+ * Shards that turn out to be empty only cost a single LIST request.
+ *
+ * Shard i covers the keys k with split[i-1] < k <= split[i], where the first shard has
+ * no lower bound and the last has no upper bound, so the shards always cover every key.
+ */
+public class BucketSharder {
+
+    private static final String SPLIT_CHARS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int MAX_PREFIXES = 10000;
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return BucketListing.compareKeys(a, b);
+        }
+    };
+
+    private AmazonS3 client;
+    private String bucket;
+    private String delimiter = "/";
+    private RetryPolicy retry = new RetryPolicy();
+
+    public BucketSharder(AmazonS3 client, String bucket) {
+        this.client = client;
+        this.bucket = bucket;
+    }
+
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    public void setRetryPolicy(RetryPolicy retry) {
+        this.retry = retry;
+    }
+
+    /**
+     * Returns the shards for the bucket.  Each entry is a two element array of the
+     * exclusive lower bound and inclusive upper bound, either of which may be null.
+     */
+    public List<String[]> shards(int minShards) {
+        List<String> splits = splitPoints(minShards);
+        List<String[]> shards = new ArrayList<String[]>();
+        String after = null;
+        for (String split : splits) {
+            shards.add(new String[] { after, split });
+            after = split;
+        }
+        shards.add(new String[] { after, null });
+        return shards;
+    }
+
+    List<String> splitPoints(int minShards) {
+        List<String> splits = new ArrayList<String>();
+        if (minShards <= 1)
+            return splits;
+
+        List<String> prefixes = commonPrefixes();
+        splits.addAll(prefixes);
+
+        if (splits.size() + 1 < minShards) {
+            prefixes.add("");
+            for (String prefix : prefixes) {
+                for (int i = 0; i < SPLIT_CHARS.length(); i++) {
+                    splits.add(prefix + SPLIT_CHARS.charAt(i));
+                }
+            }
+        }
+
+        Collections.sort(splits, KEY_ORDER);
+        List<String> unique = new ArrayList<String>();
+        for (String split : splits) {
+            if (unique.isEmpty() || !unique.get(unique.size() - 1).equals(split))
+                unique.add(split);
+        }
+        return unique;
+    }
+
+    private List<String> commonPrefixes() {
+        List<String> prefixes = new ArrayList<String>();
+        final ListObjectsRequest request = new ListObjectsRequest();
+        request.setBucketName(bucket);
+        request.setDelimiter(delimiter);
+        ObjectListing listing = null;
+        do {
+            if (listing != null)
+                request.setMarker(listing.getNextMarker());
+
+            listing = retry.callUnchecked("list", new Callable<ObjectListing>() {
+                public ObjectListing call() {
+                    return client.listObjects(request);
+                }
+            });
+            prefixes.addAll(listing.getCommonPrefixes());
+        }
+        while (listing.isTruncated() && listing.getNextMarker() != null && prefixes.size() < MAX_PREFIXES);
+        return prefixes;
+    }
+
+}
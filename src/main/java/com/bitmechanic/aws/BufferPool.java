@@ -0,0 +1,47 @@
+package com.bitmechanic.aws;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of reusable byte buffers.  acquire() blocks while all of them are in
+ * use, which puts a hard limit on the memory used for buffering parts of large objects.
+ * Buffers are allocated the first time they are needed.
+ */
+public class BufferPool {
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+    private final int size;
+
+    public BufferPool(int count, int size) {
+        this.permits = new Semaphore(count);
+        this.size = size;
+    }
+
+    public byte[] acquire() throws InterruptedException {
+        return acquire(size);
+    }
+
+    /**
+     * Returns a buffer of at least minSize bytes.  Buffers larger than the pool's buffer
+     * size are allocated on demand but still count against the pool.
+     */
+    public byte[] acquire(int minSize) throws InterruptedException {
+        permits.acquire();
+        byte[] buffer = free.poll();
+        if (buffer == null || buffer.length < minSize)
+            buffer = new byte[Math.max(size, minSize)];
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        free.add(buffer);
+        permits.release();
+    }
+
+    public int getBufferSize() {
+        return size;
+    }
+
+}
@@ -0,0 +1,386 @@
+package com.bitmechanic.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only record of how far a long job has got, so a run that dies part way can
+ * be resumed instead of starting again.
+ *
+ * A job splits its work into ranges (bucket shards, domain segments) and records the
+ * plan first, so a resumed run works on the same ranges.  Within a range, work is handed
+ * out in order: add() returns a ticket for each piece of work, marked with the position
+ * (a key, an item name, a select NextToken) to restart from once it and everything
+ * before it is done.  Tickets complete in any order; the range's mark only moves past
+ * the tickets that have all completed, so a failed ticket holds it back and its work is
+ * redone on resume.  Jobs can also record individual completed keys.
+ *
+ * Appends only touch memory or a buffer.  A background thread writes the latest mark of
+ * each range and fsyncs the file once a second, so a crash loses at most the last
+ * second of progress, which is redone.  A record cut short by a crash is dropped when
+ * the journal is reopened.
+ */
+public class CheckpointJournal {
+
+    private static final long SYNC_MILLIS = 1000;
+
+    private static final byte JOB = 1;
+    private static final byte PLAN = 2;
+    private static final byte MARK = 3;
+    private static final byte DONE = 4;
+    private static final byte COMPLETED = 5;
+
+    private File file;
+    private FileOutputStream fos;
+    private DataOutputStream out;
+    private boolean resumed;
+    private List<String[]> plan;
+    private Map<Integer, Range> ranges = new HashMap<Integer, Range>();
+    private Map<String, String> completed = new HashMap<String, String>();
+    private Thread syncer;
+    private boolean closed;
+
+    /**
+     * Opens the journal for job.  If resume is true and the file exists, the state
+     * recorded by the last run is read back, and the file must be for the same job.
+     * Otherwise any existing file is replaced.
+     */
+    public static CheckpointJournal open(File file, String job, boolean resume) throws IOException {
+        return new CheckpointJournal(file, job, resume && file.exists());
+    }
+
+    private CheckpointJournal(File file, String job, boolean resume) throws IOException {
+        this.file = file;
+        long length = resume ? read(job) : 0;
+        // a file cut short before its first record is started again
+        resume = length > 0;
+        if (resume) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            }
+            finally {
+                raf.close();
+            }
+            resumed = true;
+        }
+        fos = new FileOutputStream(file, resume);
+        out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+        if (!resume) {
+            out.writeByte(JOB);
+            out.writeUTF(job);
+        }
+
+        syncer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(SYNC_MILLIS);
+                        sync();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    catch (IOException e) {
+                        System.err.println("Unable to write checkpoint " + CheckpointJournal.this.file + ": " + e);
+                    }
+                }
+            }
+        }, "checkpoint-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * True if the state of an earlier run was read back.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The ranges recorded by setPlan(), or null if none were.
+     */
+    public synchronized List<String[]> getPlan() {
+        return plan;
+    }
+
+    /**
+     * Records the ranges a job is split into.  Each range is an array of strings, any of
+     * which may be null.
+     */
+    public synchronized void setPlan(List<String[]> plan) throws IOException {
+        this.plan = plan;
+        out.writeByte(PLAN);
+        out.writeInt(plan.size());
+        for (String[] range : plan) {
+            out.writeInt(range.length);
+            for (String s : range) {
+                writeNullable(s);
+            }
+        }
+    }
+
+    public synchronized Range range(int index) {
+        Range range = ranges.get(index);
+        if (range == null) {
+            range = new Range();
+            ranges.put(index, range);
+        }
+        return range;
+    }
+
+    /**
+     * Records that the work for key is done, with a value of the job's choosing.
+     */
+    public synchronized void completed(String key, String value) throws IOException {
+        completed.put(key, value);
+        out.writeByte(COMPLETED);
+        out.writeUTF(key);
+        out.writeUTF(value);
+    }
+
+    /**
+     * The value recorded for a completed key, or null.
+     */
+    public synchronized String getCompleted(String key) {
+        return completed.get(key);
+    }
+
+    /**
+     * The values of every completed key.
+     */
+    public synchronized Collection<String> getCompletedValues() {
+        return new ArrayList<String>(completed.values());
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * Writes the marks that have moved since the last sync, and fsyncs the file.
+     */
+    public synchronized void sync() throws IOException {
+        if (closed)
+            return;
+        for (Map.Entry<Integer, Range> entry : ranges.entrySet()) {
+            Range range = entry.getValue();
+            synchronized (range) {
+                if (!range.dirty)
+                    continue;
+                if (range.done) {
+                    out.writeByte(DONE);
+                    out.writeInt(entry.getKey());
+                }
+                else {
+                    out.writeByte(MARK);
+                    out.writeInt(entry.getKey());
+                    out.writeUTF(range.mark);
+                }
+                range.dirty = false;
+            }
+        }
+        out.flush();
+        fos.getChannel().force(false);
+    }
+
+    public void close() throws IOException {
+        syncer.interrupt();
+        synchronized (this) {
+            if (closed)
+                return;
+            sync();
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Closes and removes the journal, once the job has finished without failures.
+     */
+    public void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+    // reads back the records of an earlier run and returns the length of the complete ones
+    private long read(String job) throws IOException {
+        long size = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        long length = 0;
+        try {
+            if (in.readByte() != JOB)
+                throw new IOException("Not a checkpoint: " + file);
+            String recorded = in.readUTF();
+            if (!recorded.equals(job))
+                throw new IOException("Checkpoint " + file + " is for \"" + recorded + "\", not \"" + job + "\"");
+            length = size - in.available();
+
+            while (true) {
+                byte type = in.readByte();
+                if (type == PLAN) {
+                    List<String[]> ranges = new ArrayList<String[]>();
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        String[] range = new String[in.readInt()];
+                        for (int j = 0; j < range.length; j++) {
+                            range[j] = readNullable(in);
+                        }
+                        ranges.add(range);
+                    }
+                    plan = ranges;
+                }
+                else if (type == MARK) {
+                    Range range = range(in.readInt());
+                    range.mark = in.readUTF();
+                }
+                else if (type == DONE) {
+                    range(in.readInt()).done = true;
+                }
+                else if (type == COMPLETED) {
+                    String key = in.readUTF();
+                    completed.put(key, in.readUTF());
+                }
+                else {
+                    throw new IOException("Corrupt checkpoint " + file + " at " + length);
+                }
+                length = size - in.available();
+            }
+        }
+        catch (EOFException e) {
+            // the end of the file, or a record cut short by a crash
+        }
+        finally {
+            in.close();
+        }
+        return length;
+    }
+
+    private void writeNullable(String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    //////////////////////////////////
+
+    /**
+     * The progress of one range of a job.
+     */
+    public static class Range {
+
+        private String mark;
+        private boolean done;
+        private boolean finished;
+        private boolean dirty;
+        private ArrayDeque<Ticket> pending = new ArrayDeque<Ticket>();
+
+        /**
+         * The position to restart the range from, or null to start at the beginning.
+         */
+        public synchronized String getMark() {
+            return mark;
+        }
+
+        /**
+         * True if every piece of work in the range has completed.
+         */
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Hands out a piece of work.  Once it and all earlier ones have completed, the
+         * range restarts from position (unchanged if null).
+         */
+        public synchronized Ticket add(String position) {
+            Ticket ticket = new Ticket(this, position);
+            pending.add(ticket);
+            return ticket;
+        }
+
+        /**
+         * Notes that everything up to position has been handed out, for stretches with
+         * nothing to do.
+         */
+        public synchronized void reached(String position) {
+            if (pending.isEmpty())
+                advance(position);
+            else
+                pending.getLast().position = position;
+        }
+
+        /**
+         * Called once all of the range's work has been handed out.
+         */
+        public synchronized void finish() {
+            finished = true;
+            checkDone();
+        }
+
+        synchronized void completed(Ticket ticket) {
+            ticket.complete = true;
+            while (!pending.isEmpty() && pending.getFirst().complete) {
+                advance(pending.removeFirst().position);
+            }
+            checkDone();
+        }
+
+        private void advance(String position) {
+            if (position != null) {
+                mark = position;
+                dirty = true;
+            }
+        }
+
+        private void checkDone() {
+            if (finished && pending.isEmpty() && !done) {
+                done = true;
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * A piece of work handed out by a Range.
+     */
+    public static class Ticket {
+
+        private Range range;
+        private String position;
+        private boolean complete;
+
+        Ticket(Range range, String position) {
+            this.range = range;
+            this.position = position;
+        }
+
+        public void complete() {
+            range.completed(this);
+        }
+    }
+
+}
@@ -1,11 +1,11 @@
 package com.bitmechanic.aws;
 
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
 import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
 import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
 import com.amazonaws.services.simpledb.model.DeleteDomainRequest;
 import com.amazonaws.services.simpledb.model.Item;
 import com.amazonaws.services.simpledb.model.ListDomainsResult;
@@ -14,8 +14,16 @@ import com.amazonaws.services.simpledb.model.ReplaceableItem;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by James Cooper <james@bitmechanic.com>
@@ -24,9 +32,66 @@ import java.util.List;
 public class CopySimpleDB {
 
     public static void main(String argv[]) throws Exception {
+        int threads = 8;
+        int writers = 16;
+        boolean virtualThreads = false;
+        int connections = 0;
+        int socketBufferKB = 0;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--writers"))
+                writers = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--virtual-threads"))
+                virtualThreads = true;
+            else if (argv[i].equals("--connections"))
+                connections = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--socket-buffer"))
+                socketBufferKB = Integer.parseInt(argv[++i]);
+        }
+
+        // readers listing both domains, and writers
+        TransferEngine engine = new TransferEngine(threads * 2 + writers);
+        if (virtualThreads)
+            engine.setVirtualThreads(writers);
+        if (connections > 0)
+            engine.setConnections(connections);
+        engine.setSocketBufferSize(socketBufferKB * 1024);
+
+        try {
+            CopySimpleDB copy;
+            try {
+                copy = configure(engine, argv);
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                usage();
+                return;
+            }
+            copy.run();
+        }
+        finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Creates a copy with engine and sets it up from command line arguments, ignoring
+     * the ones that configure the engine.
+     */
+    public static CopySimpleDB configure(TransferEngine engine, String argv[]) {
         String from = null;
         String to = null;
         boolean verbose = false;
+        int threads = 8;
+        int segments = 0;
+        int writers = 16;
+        boolean incremental = false;
+        boolean verify = true;
+        int progressSeconds = 10;
+        String metricsJson = null;
+        String checkpoint = null;
+        boolean resume = false;
         for (int i = 0; i < argv.length; i++) {
             if (argv[i].equals("--from"))
                 from = argv[++i];
@@ -34,98 +99,643 @@ public class CopySimpleDB {
                 to = argv[++i];
             else if (argv[i].equals("--verbose"))
                 verbose = true;
+            else if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--segments"))
+                segments = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--writers"))
+                writers = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--incremental"))
+                incremental = true;
+            else if (argv[i].equals("--no-verify"))
+                verify = false;
+            else if (argv[i].equals("--progress"))
+                progressSeconds = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--metrics-json"))
+                metricsJson = argv[++i];
+            else if (argv[i].equals("--checkpoint"))
+                checkpoint = argv[++i];
+            else if (argv[i].equals("--resume"))
+                resume = true;
         }
-
         if (from == null || to == null)
-            usage();
+            throw new IllegalArgumentException("--from and --to are required");
+        if (resume && checkpoint == null)
+            throw new IllegalArgumentException("--resume requires --checkpoint");
 
-        CopySimpleDB copy = new CopySimpleDB(from, to, verbose);
-        copy.run();
+        CopySimpleDB copy = new CopySimpleDB(engine, from, to, verbose);
+        copy.setThreads(threads);
+        copy.setWriters(writers);
+        copy.setIncremental(incremental);
+        copy.setVerify(verify);
+        copy.setSegments(segments > 0 ? segments : threads * SEGMENTS_PER_THREAD);
+        copy.setProgress(progressSeconds, metricsJson == null ? null : new File(metricsJson));
+        if (checkpoint != null)
+            copy.setCheckpoint(new File(checkpoint), resume);
+        return copy;
     }
 
     private static void usage() {
-        System.err.println("Usage: java CopySimpleDB [--verbose] --from accessKey:secretKey:bucketName --to accessKey:secretKey:bucketName");
+        System.err.println("Usage: java CopySimpleDB [--verbose] [--incremental] [--no-verify] [--threads n] [--segments n] [--writers n] [--progress seconds] [--metrics-json file] [--checkpoint file [--resume]] [--virtual-threads] [--connections n] [--socket-buffer kb] --from accessKey:secretKey:bucketName --to accessKey:secretKey:bucketName");
         System.exit(1);
     }
 
     ////////////////////////////////
 
+    private static final int SEGMENTS_PER_THREAD = 4;
+    // largest page a select returns
+    private static final int SELECT_LIMIT = 2500;
+    // most items a BatchPutAttributes request accepts
+    private static final int BATCH_PUT_SIZE = 25;
+    // most items a BatchDeleteAttributes request accepts
+    private static final int BATCH_DELETE_SIZE = 25;
+    private static final int QUEUED_BATCHES_PER_WRITER = 10;
+    private static final int MAX_MISMATCHES_SHOWN = 20;
+
+    TransferEngine engine;
+    // set if the engine was created here, and so is shut down by run()
+    boolean ownsEngine;
     SimpleDBConfig fromSimple;
     SimpleDBConfig toSimple;
     boolean verbose;
+    int threads = 8;
+    int segmentCount = 32;
+    int writers = 16;
+    boolean incremental;
+    boolean verify = true;
+    int progressSeconds;
+    File metricsJson;
+    File checkpointFile;
+    boolean resume;
+    CheckpointJournal journal;
+    AtomicLong itemCount = new AtomicLong();
+    AtomicLong unchangedCount = new AtomicLong();
+    AtomicLong deleteCount = new AtomicLong();
+
+    RetryPolicy retry = new RetryPolicy();
+    FailureReport failures = new FailureReport();
+    TransferMetrics metrics = new TransferMetrics("copydb");
 
     public CopySimpleDB(String from, String to, boolean verbose) {
+        this(new TransferEngine(), from, to, verbose);
+        this.ownsEngine = true;
+    }
+
+    /**
+     * Creates the clients for from and to with engine, which also runs the writers.
+     */
+    public CopySimpleDB(TransferEngine engine, String from, String to, boolean verbose) {
+        this.engine      = engine;
         this.fromSimple  = createSimpleDB(from);
         this.toSimple    = createSimpleDB(to);
         this.verbose     = verbose;
+        if (engine.getJobName() != null)
+            metrics.setName(engine.getJobName());
+        retry.setMetrics(metrics);
+        failures.setMetrics(metrics);
+    }
+
+    public CopySimpleDB(AmazonSimpleDB fromClient, String fromDomain, AmazonSimpleDB toClient, String toDomain,
+                        boolean verbose) {
+        this.engine      = new TransferEngine();
+        this.ownsEngine  = true;
+        this.fromSimple  = simpleDBConfig(fromClient, fromDomain);
+        this.toSimple    = simpleDBConfig(toClient, toDomain);
+        this.verbose     = verbose;
+        retry.setMetrics(metrics);
+        failures.setMetrics(metrics);
+    }
+
+    /**
+     * Number of worker threads, each scanning one segment of the source domain at a time
+     * and writing what it reads.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Number of threads writing to the destination domain.  Readers hand pages to the
+     * writers through a bounded queue of BATCH_PUT_SIZE item batches, and block when it
+     * is full.
+     */
+    public void setWriters(int writers) {
+        this.writers = writers;
+    }
+
+    /**
+     * If true, the destination domain is kept and brought up to date: only new or changed
+     * items are written, and items no longer in the source are deleted.  Otherwise it is
+     * deleted and recreated, and every item is written.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * If true, both domains are read again after the copy, and items that are missing or
+     * differ (by content hash) are reported.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Number of itemName() ranges the source domain is split into (see DomainSegmenter).
+     * With 1 the domain is copied with a single scan.
+     */
+    public void setSegments(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Prints a progress line every progressSeconds (never if 0), and writes a JSON summary
+     * of the run's metrics to metricsJson if it is not null.
+     */
+    public void setProgress(int progressSeconds, File metricsJson) {
+        this.progressSeconds = progressSeconds;
+        this.metricsJson = metricsJson;
+    }
+
+    /**
+     * Records the segments and how far each has been copied in a CheckpointJournal: the
+     * select NextToken of a full copy, or the last item name of an incremental one.  If
+     * resume is true and the file exists, the run picks up where the one that wrote it
+     * stopped, without deleting the destination domain: finished segments are skipped
+     * and the others continue from their mark.  The file is removed once a run finishes
+     * without failures.
+     */
+    public void setCheckpoint(File checkpointFile, boolean resume) {
+        this.checkpointFile = checkpointFile;
+        this.resume = resume;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
     }
 
     public void run() throws Exception {
+        try {
+            copy();
+        }
+        finally {
+            if (ownsEngine)
+                engine.shutdown();
+        }
+    }
+
+    private void copy() throws Exception {
 
         long start = System.currentTimeMillis();
-        long itemCount = 0;
+
+        if (checkpointFile != null)
+            journal = CheckpointJournal.open(checkpointFile, "copy " + fromSimple.domain + " " + toSimple.domain
+                    + (incremental ? " incremental" : ""), resume);
+        boolean resuming = journal != null && journal.getPlan() != null;
 
         ListDomainsResult domains = toSimple.client.listDomains();
-        if (domains.getDomainNames().contains(toSimple.domain)) {
+        if (resuming) {
+            System.out.println("Resuming from checkpoint: " + checkpointFile);
+        }
+        else if (!incremental && domains.getDomainNames().contains(toSimple.domain)) {
             System.out.println("Deleting destination domain: " + toSimple.domain);
             toSimple.client.deleteDomain(new DeleteDomainRequest(toSimple.domain));
         }
-        System.out.println("Creating destination domain: " + toSimple.domain);
-        toSimple.client.createDomain(new CreateDomainRequest(toSimple.domain));
+        if ((!incremental && !resuming) || !domains.getDomainNames().contains(toSimple.domain)) {
+            System.out.println("Creating destination domain: " + toSimple.domain);
+            toSimple.client.createDomain(new CreateDomainRequest(toSimple.domain));
+        }
+
+        final TaskExecutor executor = engine.executor("write", writers, writers * QUEUED_BATCHES_PER_WRITER);
+        retry = new RetryPolicy(new AdaptiveLimiter(writers));
+        retry.setMetrics(metrics);
+        executor.setLimiter(retry.getLimiter());
+        metrics.watch(executor);
+        metrics.start(System.out, progressSeconds);
+
+        final List<DomainSegmenter.Segment> segments;
+        if (resuming) {
+            segments = new ArrayList<DomainSegmenter.Segment>();
+            for (String[] range : journal.getPlan()) {
+                DomainSegmenter.Segment segment = new DomainSegmenter.Segment(range[0], range[1]);
+                segment.count = Long.parseLong(range[2]);
+                segments.add(segment);
+            }
+        }
+        else {
+            DomainSegmenter segmenter = new DomainSegmenter(fromSimple.client, fromSimple.domain);
+            segmenter.setRetryPolicy(retry);
+            segmenter.setProbeThreads(threads);
+            segments = segmenter.segments(segmentCount);
+            if (journal != null) {
+                List<String[]> plan = new ArrayList<String[]>();
+                for (DomainSegmenter.Segment segment : segments) {
+                    plan.add(new String[] { segment.getAfter(), segment.getUpTo(), String.valueOf(segment.getCount()) });
+                }
+                journal.setPlan(plan);
+            }
+        }
+        long expected = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (journal == null || !journal.range(i).isDone())
+                expected += segments.get(i).getCount();
+        }
+        metrics.scheduled(expected, 0);
+        metrics.scheduleComplete();
+        if (verbose)
+            System.out.println((incremental ? "Comparing " : "Copying ") + segments.size() + " segments with "
+                    + threads + " readers and " + writers + " writers");
+
+        try {
+            runSegments(segments, new SegmentJob() {
+                public void run(int index, DomainSegmenter.Segment segment) throws Exception {
+                    if (journal != null && journal.range(index).isDone()) {
+                        if (verbose)
+                            System.out.println("Segment " + (index + 1) + " of " + segments.size() + " " + segment
+                                    + ": finished by an earlier run");
+                    }
+                    else if (incremental)
+                        syncSegment(executor, index, segments.size(), segment);
+                    else
+                        copySegment(executor, index, segments.size(), segment);
+                }
+            });
+            executor.awaitCompletion();
+            if (journal != null && failures.size() == 0)
+                journal.delete();
+        }
+        finally {
+            executor.shutdown();
+            metrics.stop(metricsJson);
+            if (journal != null && journal.getFile().exists()) {
+                journal.close();
+                System.out.println("Progress saved to " + checkpointFile + ", run again with --resume to continue");
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        if (verify)
+            verify(segments);
+
+        System.out.println("Elapsed time: " + (elapsed / 1000) + " seconds");
+        System.out.println("     Written: " + itemCount.get());
+        if (incremental) {
+            System.out.println("   Unchanged: " + unchangedCount.get());
+            System.out.println("     Deleted: " + deleteCount.get());
+        }
+        System.out.println("      Failed: " + failures.size());
+        failures.print(System.out);
+    }
+
+    interface SegmentJob {
+        void run(int index, DomainSegmenter.Segment segment) throws Exception;
+    }
+
+    /**
+     * Runs job over every segment with the reader threads, each taking the next segment
+     * when it finishes one.  The first exception stops the remaining segments and is
+     * rethrown.
+     */
+    private void runSegments(final List<DomainSegmenter.Segment> segments, final SegmentJob job) throws Exception {
+        final AtomicInteger nextSegment = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < Math.min(threads, segments.size()); i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    int i;
+                    while (error.get() == null && (i = nextSegment.getAndIncrement()) < segments.size()) {
+                        try {
+                            job.run(i, segments.get(i));
+                        }
+                        catch (Exception e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+
+        for (Thread t : workers) {
+            t.join();
+        }
+        if (error.get() != null)
+            throw error.get();
+    }
+
+    /**
+     * Reads the items of one segment a page at a time, queueing them for the writers in
+     * BATCH_PUT_SIZE batches.
+     */
+    private void copySegment(TaskExecutor executor, int index, int total, DomainSegmenter.Segment segment)
+            throws Exception {
+        long segmentStart = System.currentTimeMillis();
+        long segmentItems = 0;
 
-        String query = "select * from " + fromSimple.domain + " limit 20";
-        SelectRequest request = new SelectRequest(query);
+        String query = "select * from `" + fromSimple.domain + "`"
+                + DomainSegmenter.itemNameRange(segment.getAfter(), segment.getUpTo()) + " limit " + SELECT_LIMIT;
+        final SelectRequest request = new SelectRequest(query);
         request.setConsistentRead(true);
+        CheckpointJournal.Range range = journal == null ? null : journal.range(index);
+        if (range != null)
+            request.setNextToken(range.getMark());
         SelectResult result = null;
         do {
             if (result != null)
                 request.setNextToken(result.getNextToken());
 
-            result = fromSimple.client.select(request);
+            result = retry.call("select", new Callable<SelectResult>() {
+                public SelectResult call() {
+                    return fromSimple.client.select(request);
+                }
+            });
             List<Item> items = result.getItems();
-            if (items != null && items.size() > 0) {
-                BatchPutAttributesRequest put = new BatchPutAttributesRequest();
-                put.setDomainName(toSimple.domain);
-
-                List<ReplaceableItem> repItems = new ArrayList<ReplaceableItem>();
-                for (Item item : items) {
-                    ReplaceableItem repItem = new ReplaceableItem();
-                    repItem.setName(item.getName());
-
-                    List<ReplaceableAttribute> repAttribs = new ArrayList<ReplaceableAttribute>();
-                    for (Attribute attrib : item.getAttributes()) {
-                        ReplaceableAttribute repAttrib = new ReplaceableAttribute();
-                        repAttrib.setName(attrib.getName());
-                        repAttrib.setValue(attrib.getValue());
-                        repAttribs.add(repAttrib);
-                    }
-                    repItem.setAttributes(repAttribs);
-                    
-                    repItems.add(repItem);
-                    itemCount++;
+            String nextToken = result.getNextToken() == null || result.getNextToken().length() == 0
+                    ? null : result.getNextToken();
+            if (items != null) {
+                for (int i = 0; i < items.size(); i += BATCH_PUT_SIZE) {
+                    int end = Math.min(i + BATCH_PUT_SIZE, items.size());
+                    // a later run can restart from the next page once the last batch of this one is written
+                    CheckpointJournal.Ticket ticket = range == null ? null
+                            : range.add(end == items.size() ? nextToken : null);
+                    executor.submit(new PutTask(items.subList(i, end), false, ticket));
                 }
-                put.setItems(repItems);
-
-                toSimple.client.batchPutAttributes(put);
+                segmentItems += items.size();
             }
+            if (range != null)
+                range.reached(nextToken);
         }
         while (result.getNextToken() != null && result.getNextToken().length() > 0);
+        if (range != null)
+            range.finish();
 
-        long elapsed = System.currentTimeMillis() - start;
-        
-        System.out.println("Items in from domain: " + getCount(fromSimple));
-        System.out.println("  Items in to domain: " + getCount(toSimple));
+        if (verbose || total > 1)
+            System.out.println("Segment " + (index + 1) + " of " + total + " " + segment + ": read " + segmentItems
+                    + " items in " + ((System.currentTimeMillis() - segmentStart) / 1000) + " seconds");
+    }
 
-        System.out.println("Elapsed time: " + (elapsed / 1000) + " seconds");
-        System.out.println("       Items: " + itemCount);
+    /**
+     * Merges the source and destination items of one segment in itemName() order, and
+     * queues puts for items that are new or whose content hash differs, and deletes for
+     * items that are gone from the source, or attributes gone from a changed item.
+     */
+    private void syncSegment(TaskExecutor executor, int index, int total, DomainSegmenter.Segment segment)
+            throws Exception {
+        long segmentStart = System.currentTimeMillis();
+        long segmentChanges = 0;
+
+        CheckpointJournal.Range range = journal == null ? null : journal.range(index);
+        String after = range != null && range.getMark() != null ? range.getMark() : segment.getAfter();
+        DomainListing fromListing = new DomainListing(fromSimple.client, fromSimple.domain,
+                after, segment.getUpTo()).setRetryPolicy(retry);
+        DomainListing toListing = new DomainListing(toSimple.client, toSimple.domain,
+                after, segment.getUpTo()).setRetryPolicy(retry);
+        List<Item> puts = new ArrayList<Item>();
+        List<DeletableItem> deletes = new ArrayList<DeletableItem>();
+        CheckpointJournal.Ticket putsTicket = null;
+        CheckpointJournal.Ticket deletesTicket = null;
+
+        Item fromItem = fromListing.hasNext() ? fromListing.next() : null;
+        Item toItem = toListing.hasNext() ? toListing.next() : null;
+        while (fromItem != null || toItem != null) {
+            int cmp;
+            if (fromItem == null)
+                cmp = 1;
+            else if (toItem == null)
+                cmp = -1;
+            else
+                cmp = BucketListing.compareKeys(fromItem.getName(), toItem.getName());
+            String name = cmp <= 0 ? fromItem.getName() : toItem.getName();
+            boolean newPuts = puts.isEmpty();
+            boolean newDeletes = deletes.isEmpty();
+
+            if (cmp < 0) {
+                puts.add(fromItem);
+            }
+            else if (cmp > 0) {
+                metrics.scheduled(1, 0);
+                deletes.add(new DeletableItem(toItem.getName(), null));
+            }
+            else if (DomainListing.contentHash(fromItem) != DomainListing.contentHash(toItem)) {
+                puts.add(fromItem);
+                List<Attribute> removed = removedAttributes(fromItem, toItem);
+                if (!removed.isEmpty()) {
+                    metrics.scheduled(1, 0);
+                    deletes.add(new DeletableItem(toItem.getName(), removed));
+                }
+            }
+            else {
+                unchangedCount.incrementAndGet();
+                metrics.completed(1, 0);
+            }
+            if (range != null) {
+                // a batch's ticket is taken with its first item, so the mark can't pass items waiting in it
+                if (newPuts && !puts.isEmpty())
+                    putsTicket = range.add(name);
+                if (newDeletes && !deletes.isEmpty())
+                    deletesTicket = range.add(name);
+                range.reached(name);
+            }
+
+            if (puts.size() == BATCH_PUT_SIZE) {
+                segmentChanges += puts.size();
+                executor.submit(new PutTask(puts, true, putsTicket));
+                puts = new ArrayList<Item>();
+            }
+            if (deletes.size() == BATCH_DELETE_SIZE) {
+                segmentChanges += deletes.size();
+                executor.submit(new DeleteTask(deletes, deletesTicket));
+                deletes = new ArrayList<DeletableItem>();
+            }
+
+            if (cmp <= 0)
+                fromItem = fromListing.hasNext() ? fromListing.next() : null;
+            if (cmp >= 0)
+                toItem = toListing.hasNext() ? toListing.next() : null;
+        }
+        segmentChanges += puts.size() + deletes.size();
+        if (!puts.isEmpty())
+            executor.submit(new PutTask(puts, true, putsTicket));
+        if (!deletes.isEmpty())
+            executor.submit(new DeleteTask(deletes, deletesTicket));
+        if (range != null)
+            range.finish();
+
+        if (verbose || total > 1)
+            System.out.println("Segment " + (index + 1) + " of " + total + " " + segment + ": " + segmentChanges
+                    + " changes in " + ((System.currentTimeMillis() - segmentStart) / 1000) + " seconds");
     }
 
-    private int getCount(SimpleDBConfig config) {
-        String query = "select count(*) from " + config.domain;
-        SelectRequest request = new SelectRequest(query);
-        request.setConsistentRead(true);
-        SelectResult result = config.client.select(request);
-        return Integer.parseInt(result.getItems().get(0).getAttributes().get(0).getValue());
+    /**
+     * The attributes of the destination item that the source item no longer has.  Put
+     * with replace only overwrites the attributes it names, so these must be deleted.
+     */
+    private static List<Attribute> removedAttributes(Item fromItem, Item toItem) {
+        Set<String> names = new HashSet<String>();
+        for (Attribute attribute : fromItem.getAttributes()) {
+            names.add(attribute.getName());
+        }
+        List<Attribute> removed = new ArrayList<Attribute>();
+        Set<String> seen = new HashSet<String>();
+        for (Attribute attribute : toItem.getAttributes()) {
+            if (!names.contains(attribute.getName()) && seen.add(attribute.getName()))
+                removed.add(new Attribute().withName(attribute.getName()));
+        }
+        return removed;
+    }
+
+    /**
+     * Compares every segment of the two domains by item name and content hash, with the
+     * reader threads, and prints what doesn't match.
+     */
+    private void verify(List<DomainSegmenter.Segment> segments) throws Exception {
+        final AtomicLong fromItems = new AtomicLong();
+        final AtomicLong toItems = new AtomicLong();
+        final AtomicLong mismatched = new AtomicLong();
+        final List<String> examples = Collections.synchronizedList(new ArrayList<String>());
+
+        runSegments(segments, new SegmentJob() {
+            public void run(int index, DomainSegmenter.Segment segment) {
+                DomainListing fromListing = new DomainListing(fromSimple.client, fromSimple.domain,
+                        segment.getAfter(), segment.getUpTo()).setRetryPolicy(retry);
+                DomainListing toListing = new DomainListing(toSimple.client, toSimple.domain,
+                        segment.getAfter(), segment.getUpTo()).setRetryPolicy(retry);
+                Item fromItem = fromListing.hasNext() ? fromListing.next() : null;
+                Item toItem = toListing.hasNext() ? toListing.next() : null;
+                while (fromItem != null || toItem != null) {
+                    int cmp;
+                    if (fromItem == null)
+                        cmp = 1;
+                    else if (toItem == null)
+                        cmp = -1;
+                    else
+                        cmp = BucketListing.compareKeys(fromItem.getName(), toItem.getName());
+
+                    String problem = null;
+                    if (cmp < 0)
+                        problem = "missing from destination: " + fromItem.getName();
+                    else if (cmp > 0)
+                        problem = "not in source: " + toItem.getName();
+                    else if (DomainListing.contentHash(fromItem) != DomainListing.contentHash(toItem))
+                        problem = "different: " + fromItem.getName();
+                    if (problem != null) {
+                        mismatched.incrementAndGet();
+                        if (examples.size() < MAX_MISMATCHES_SHOWN)
+                            examples.add(problem);
+                    }
+
+                    if (cmp <= 0) {
+                        fromItems.incrementAndGet();
+                        fromItem = fromListing.hasNext() ? fromListing.next() : null;
+                    }
+                    if (cmp >= 0) {
+                        toItems.incrementAndGet();
+                        toItem = toListing.hasNext() ? toListing.next() : null;
+                    }
+                }
+            }
+        });
+
+        System.out.println("Items in from domain: " + fromItems.get());
+        System.out.println("  Items in to domain: " + toItems.get());
+        System.out.println("          Mismatched: " + mismatched.get());
+        for (String example : examples) {
+            System.out.println("  " + example);
+        }
+    }
+
+    /**
+     * Writes one batch of items with BatchPutAttributes.
+     */
+    class PutTask implements Runnable {
+
+        List<Item> items;
+        boolean replace;
+        CheckpointJournal.Ticket ticket;
+
+        PutTask(List<Item> items, boolean replace, CheckpointJournal.Ticket ticket) {
+            this.items = items;
+            this.replace = replace;
+            this.ticket = ticket;
+        }
+
+        public void run() {
+            final BatchPutAttributesRequest put = new BatchPutAttributesRequest();
+            put.setDomainName(toSimple.domain);
+
+            // the SDK's setters copy their argument, so fill the lists they already hold
+            List<ReplaceableItem> repItems = put.getItems();
+            for (Item item : items) {
+                ReplaceableItem repItem = new ReplaceableItem();
+                repItem.setName(item.getName());
+
+                List<ReplaceableAttribute> repAttribs = repItem.getAttributes();
+                for (Attribute attrib : item.getAttributes()) {
+                    repAttribs.add(new ReplaceableAttribute(attrib.getName(), attrib.getValue(), replace));
+                }
+
+                repItems.add(repItem);
+                itemCount.incrementAndGet();
+            }
+
+            try {
+                retry.call("batchPut", new Callable<Void>() {
+                    public Void call() {
+                        toSimple.client.batchPutAttributes(put);
+                        return null;
+                    }
+                });
+                metrics.completed(repItems.size(), 0);
+                if (ticket != null)
+                    ticket.complete();
+            }
+            catch (Exception e) {
+                for (ReplaceableItem repItem : repItems) {
+                    failures.add(repItem.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes items, or some of their attributes, with BatchDeleteAttributes.
+     */
+    class DeleteTask implements Runnable {
+
+        List<DeletableItem> items;
+        CheckpointJournal.Ticket ticket;
+
+        DeleteTask(List<DeletableItem> items, CheckpointJournal.Ticket ticket) {
+            this.items = items;
+            this.ticket = ticket;
+        }
+
+        public void run() {
+            final BatchDeleteAttributesRequest delete = new BatchDeleteAttributesRequest(toSimple.domain, items);
+            try {
+                retry.call("batchDelete", new Callable<Void>() {
+                    public Void call() {
+                        toSimple.client.batchDeleteAttributes(delete);
+                        return null;
+                    }
+                });
+                for (DeletableItem item : items) {
+                    if (item.getAttributes().isEmpty())
+                        deleteCount.incrementAndGet();
+                }
+                metrics.completed(items.size(), 0);
+                if (ticket != null)
+                    ticket.complete();
+            }
+            catch (Exception e) {
+                for (DeletableItem item : items) {
+                    failures.add(item.getName(), e);
+                }
+            }
+        }
     }
 
     private SimpleDBConfig createSimpleDB(String conf) {
@@ -134,14 +744,17 @@ public class CopySimpleDB {
             throw new IllegalArgumentException("Invalid SimpleDB creds: " + conf + " should be  accessKey:secretKey:domain");
         }
         else {
-            AmazonSimpleDBClient simpleDB = new AmazonSimpleDBClient(new BasicAWSCredentials(parts[0], parts[1]));
-            SimpleDBConfig config = new SimpleDBConfig();
-            config.client = simpleDB;
-            config.domain = parts[2];
-            return config;
+            return simpleDBConfig(engine.simpleDB(parts[0], parts[1]), parts[2]);
         }
     }
 
+    private SimpleDBConfig simpleDBConfig(AmazonSimpleDB client, String domain) {
+        SimpleDBConfig config = new SimpleDBConfig();
+        config.client = client;
+        config.domain = domain;
+        return config;
+    }
+
     class SimpleDBConfig {
         AmazonSimpleDB client;
         String domain;
@@ -0,0 +1,124 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+/**
+ * Iterates over the items of a SimpleDB domain with after < itemName() <= upTo (either
+ * bound may be null) in itemName() order, a page of select results at a time.
+ *
+ * Two listings of the same range, one per domain, can be merged to find the items that
+ * differ, the way SyncBuckets merges two bucket listings.
+ */
+public class DomainListing implements Iterator<Item> {
+
+    // largest page a select returns
+    private static final int SELECT_LIMIT = 2500;
+
+    private AmazonSimpleDB client;
+    private String domain;
+    private String after;
+    private String upTo;
+    private RetryPolicy retry = new RetryPolicy();
+
+    private SelectRequest request;
+    private Iterator<Item> page;
+    private String nextToken;
+
+    public DomainListing(AmazonSimpleDB client, String domain, String after, String upTo) {
+        this.client = client;
+        this.domain = domain;
+        this.after = after;
+        this.upTo = upTo;
+    }
+
+    public DomainListing setRetryPolicy(RetryPolicy retry) {
+        this.retry = retry;
+        return this;
+    }
+
+    public boolean hasNext() {
+        while (page == null || (!page.hasNext() && nextToken != null)) {
+            fetch();
+        }
+        return page.hasNext();
+    }
+
+    public Item next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return page.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fetch() {
+        if (request == null) {
+            // order by needs itemName() in the where clause, so bound it below by '' if need be
+            String where = DomainSegmenter.itemNameRange(after == null ? "" : after, upTo);
+            request = new SelectRequest("select * from `" + domain + "`" + where
+                    + " order by itemName() limit " + SELECT_LIMIT);
+            request.setConsistentRead(true);
+        }
+        else {
+            request.setNextToken(nextToken);
+        }
+
+        SelectResult result = retry.callUnchecked("select", new Callable<SelectResult>() {
+            public SelectResult call() {
+                return client.select(request);
+            }
+        });
+        List<Item> items = result.getItems();
+        page = items == null ? Collections.<Item>emptyList().iterator() : items.iterator();
+        nextToken = result.getNextToken() == null || result.getNextToken().length() == 0 ? null : result.getNextToken();
+    }
+
+    /**
+     * A hash of an item's attribute names and values that doesn't depend on the order
+     * SimpleDB returns them in.  Two items with the same hash have the same content.
+     */
+    public static long contentHash(Item item) {
+        List<String> pairs = new ArrayList<String>(item.getAttributes().size());
+        for (Attribute attribute : item.getAttributes()) {
+            pairs.add(attribute.getName() + '\u0000' + attribute.getValue());
+        }
+        Collections.sort(pairs);
+
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            for (String pair : pairs) {
+                md5.update(pair.getBytes("UTF-8"));
+                md5.update((byte) 0xff);
+            }
+            byte[] digest = md5.digest();
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
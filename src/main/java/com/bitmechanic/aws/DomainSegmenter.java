@@ -0,0 +1,329 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a SimpleDB domain into itemName() ranges that can be scanned in parallel.
+ *
+ * The key space is probed rather than scanned: the first and last item names bound it,
+ * and their common prefix extended by each character gives the first split points.  Each
+ * range is counted with select count(*).  Then, in rounds, the ranges holding more than
+ * their share of the items are cut at a few more points, a character further along once
+ * no shorter point falls inside them, and the pieces are counted in turn.  The probes
+ * are limited to a few per segment wanted, spent on the largest ranges first, so sparse
+ * parts of the key space cost little.  Adjacent ranges are then merged into segments
+ * holding roughly the same number of items.
+ *
+ * Like BucketSharder, segment i covers the names n with after < n <= upTo, where the
+ * first segment has no lower bound and the last has no upper bound.
+ */
+public class DomainSegmenter {
+
+    private static final String SPLIT_CHARS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int CANDIDATES_PER_SEGMENT = 4;
+    // most points a range is cut at in one round of probes
+    private static final int MAX_CUTS = 8;
+
+    private static final Comparator<Segment> LARGEST_FIRST = new Comparator<Segment>() {
+        public int compare(Segment a, Segment b) {
+            return a.count > b.count ? -1 : (a.count < b.count ? 1 : 0);
+        }
+    };
+
+    private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return BucketListing.compareKeys(a, b);
+        }
+    };
+
+    private AmazonSimpleDB client;
+    private String domain;
+    private RetryPolicy retry = new RetryPolicy();
+    private int probeThreads = 4;
+
+    public DomainSegmenter(AmazonSimpleDB client, String domain) {
+        this.client = client;
+        this.domain = domain;
+    }
+
+    public void setRetryPolicy(RetryPolicy retry) {
+        this.retry = retry;
+    }
+
+    /**
+     * Number of count(*) probes run at once.
+     */
+    public void setProbeThreads(int probeThreads) {
+        this.probeThreads = probeThreads;
+    }
+
+    /**
+     * Returns at most maxSegments segments covering the whole domain, each with the number
+     * of items it held when probed.
+     */
+    public List<Segment> segments(int maxSegments) throws InterruptedException {
+        List<Segment> ranges = new ArrayList<Segment>();
+        ranges.add(new Segment(null, null));
+        if (maxSegments <= 1)
+            return ranges;
+
+        String first = edgeName(false);
+        String last = edgeName(true);
+        if (first == null || first.equals(last))
+            return ranges;
+
+        ranges = split(ranges.get(0), first, last, SPLIT_CHARS.length());
+        if (ranges.size() == 1)
+            return ranges;
+        count(ranges);
+
+        int probes = maxSegments * CANDIDATES_PER_SEGMENT - ranges.size();
+        while (probes > 0) {
+            long total = 0;
+            for (Segment range : ranges) {
+                total += range.count;
+            }
+            long share = Math.max(1, total / maxSegments);
+
+            // the largest ranges over their share get the probes first
+            List<Segment> largest = new ArrayList<Segment>(ranges);
+            Collections.sort(largest, LARGEST_FIRST);
+            Map<Segment, List<Segment>> splits = new HashMap<Segment, List<Segment>>();
+            for (Segment range : largest) {
+                if (range.count <= share)
+                    break;
+                int cuts = (int) Math.min(MAX_CUTS, range.count / share);
+                List<Segment> pieces = split(range, first, last, cuts);
+                if (pieces.size() > 1 && pieces.size() <= probes) {
+                    splits.put(range, pieces);
+                    probes -= pieces.size();
+                }
+            }
+            if (splits.isEmpty())
+                break;
+
+            List<Segment> refined = new ArrayList<Segment>();
+            List<Segment> probed = new ArrayList<Segment>();
+            for (Segment range : ranges) {
+                List<Segment> pieces = splits.get(range);
+                if (pieces == null) {
+                    refined.add(range);
+                }
+                else {
+                    refined.addAll(pieces);
+                    probed.addAll(pieces);
+                }
+            }
+            count(probed);
+            ranges = refined;
+        }
+        return merge(ranges, maxSegments);
+    }
+
+    /**
+     * Cuts range at up to cuts evenly spaced split points, each a prefix of its lower bound
+     * (or of first) extended by one character.  The shortest prefix with points inside the
+     * range is used, so a range is cut between neighbouring prefixes before it is cut
+     * within one.  Returns range alone if it can't be cut.
+     */
+    static List<Segment> split(Segment range, String first, String last, int cuts) {
+        String lower = range.after != null ? range.after : first;
+        String upper = range.upTo != null ? range.upTo : last;
+        List<String> candidates = new ArrayList<String>();
+        for (int length = commonPrefix(lower, upper).length(); length <= lower.length() && candidates.isEmpty(); length++) {
+            String base = lower.substring(0, length);
+            for (int i = 0; i < SPLIT_CHARS.length(); i++) {
+                String candidate = base + SPLIT_CHARS.charAt(i);
+                if (NAME_ORDER.compare(candidate, first) >= 0 && NAME_ORDER.compare(candidate, last) < 0
+                        && (range.after == null || NAME_ORDER.compare(candidate, range.after) > 0)
+                        && (range.upTo == null || NAME_ORDER.compare(candidate, range.upTo) < 0))
+                    candidates.add(candidate);
+            }
+        }
+
+        List<Segment> pieces = new ArrayList<Segment>();
+        String after = range.after;
+        int n = Math.min(cuts, candidates.size());
+        for (int i = 0; i < n; i++) {
+            String candidate = candidates.get((int) ((2L * i + 1) * candidates.size() / (2 * n)));
+            pieces.add(new Segment(after, candidate));
+            after = candidate;
+        }
+        pieces.add(new Segment(after, range.upTo));
+        return pieces;
+    }
+
+    private void count(List<Segment> ranges) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(probeThreads, ranges.size())));
+        try {
+            List<Future<Long>> counts = new ArrayList<Future<Long>>();
+            for (final Segment range : ranges) {
+                counts.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return count(range.after, range.upTo);
+                    }
+                }));
+            }
+            for (int i = 0; i < ranges.size(); i++) {
+                try {
+                    ranges.get(i).count = counts.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Joins adjacent ranges until there are at most maxSegments, cutting whenever the
+     * running count reaches an even share of what is left.
+     */
+    static List<Segment> merge(List<Segment> ranges, int maxSegments) {
+        long total = 0;
+        for (Segment range : ranges) {
+            total += range.count;
+        }
+
+        List<Segment> segments = new ArrayList<Segment>();
+        Segment current = null;
+        long remaining = total;
+        for (Segment range : ranges) {
+            if (current == null) {
+                current = new Segment(range.after, range.upTo);
+            }
+            else {
+                current.upTo = range.upTo;
+            }
+            current.count += range.count;
+
+            int segmentsLeft = maxSegments - segments.size();
+            if (segmentsLeft > 1 && current.count > 0 && current.count * segmentsLeft >= remaining) {
+                segments.add(current);
+                remaining -= current.count;
+                current = null;
+            }
+        }
+        if (current != null) {
+            if (current.count == 0 && !segments.isEmpty())
+                segments.get(segments.size() - 1).upTo = current.upTo;
+            else
+                segments.add(current);
+        }
+        return segments;
+    }
+
+    private long count(String after, String upTo) throws Exception {
+        final SelectRequest request = new SelectRequest(
+                "select count(*) from `" + domain + "`" + itemNameRange(after, upTo));
+        request.setConsistentRead(true);
+        long count = 0;
+        SelectResult result = null;
+        do {
+            if (result != null)
+                request.setNextToken(result.getNextToken());
+
+            result = retry.call("select", new Callable<SelectResult>() {
+                public SelectResult call() {
+                    return client.select(request);
+                }
+            });
+            for (Item item : result.getItems()) {
+                count += Long.parseLong(item.getAttributes().get(0).getValue());
+            }
+        }
+        while (result.getNextToken() != null && result.getNextToken().length() > 0);
+        return count;
+    }
+
+    private String edgeName(boolean last) {
+        final SelectRequest request = new SelectRequest("select itemName() from `" + domain
+                + "` where itemName() > '' order by itemName()" + (last ? " desc" : "") + " limit 1");
+        request.setConsistentRead(true);
+        SelectResult result = retry.callUnchecked("select", new Callable<SelectResult>() {
+            public SelectResult call() {
+                return client.select(request);
+            }
+        });
+        return result.getItems().isEmpty() ? null : result.getItems().get(0).getName();
+    }
+
+    /**
+     * A where clause selecting the item names n with after < n <= upTo, either of which
+     * may be null.
+     */
+    public static String itemNameRange(String after, String upTo) {
+        if (after == null && upTo == null)
+            return "";
+        StringBuilder sb = new StringBuilder(" where ");
+        if (after != null)
+            sb.append("itemName() > ").append(quote(after));
+        if (after != null && upTo != null)
+            sb.append(" and ");
+        if (upTo != null)
+            sb.append("itemName() <= ").append(quote(upTo));
+        return sb.toString();
+    }
+
+    public static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private static String commonPrefix(String a, String b) {
+        int i = 0;
+        while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return a.substring(0, i);
+    }
+
+    public static class Segment {
+
+        String after;
+        String upTo;
+        long count;
+
+        Segment(String after, String upTo) {
+            this.after = after;
+            this.upTo = upTo;
+        }
+
+        public String getAfter() {
+            return after;
+        }
+
+        public String getUpTo() {
+            return upTo;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public String toString() {
+            return "(" + (after == null ? "" : after) + ", " + (upTo == null ? "" : upTo) + "]";
+        }
+    }
+
+}
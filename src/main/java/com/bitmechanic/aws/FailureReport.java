@@ -0,0 +1,52 @@
+package com.bitmechanic.aws;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keys or items that could not be transferred after all retries, with the last error
+ * for each, printed at the end of a run.
+ */
+public class FailureReport {
+
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger count = new AtomicInteger();
+    private TransferMetrics metrics;
+
+    /**
+     * Failures are also counted in metrics.
+     */
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void add(String name, Throwable cause) {
+        failures.add(name + ": " + describe(cause));
+        count.incrementAndGet();
+        if (metrics != null)
+            metrics.failed();
+        System.err.println("Failed: " + name + ": " + describe(cause));
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public void print(PrintStream out) {
+        if (count.get() == 0)
+            return;
+        out.println("Not transferred (" + count.get() + "):");
+        for (String failure : failures) {
+            out.println("  " + failure);
+        }
+    }
+
+    private static String describe(Throwable cause) {
+        if (cause == null)
+            return "unknown error";
+        String message = cause.getMessage();
+        return cause.getClass().getSimpleName() + (message == null ? "" : " " + message);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.bitmechanic.aws;
+
+/**
+ * A fixed number of permits shared fairly between members, such as the jobs of a batch.
+ *
+ * A member may take any free permit while no other member is waiting for one.  While
+ * others are waiting, it only gets a permit if it holds fewer than its fair share: the
+ * permits divided evenly between the members that hold or want one.  Permits are never
+ * taken back, so a member over its share hands them on as its tasks finish.
+ */
+public class FairShare {
+
+    private final int permits;
+    private int used;
+    // members holding or waiting for a permit, and those waiting
+    private int active;
+    private int waiting;
+
+    public FairShare(int permits) {
+        if (permits < 1)
+            throw new IllegalArgumentException("permits must be positive");
+        this.permits = permits;
+    }
+
+    public Member join(String name) {
+        return new Member(name);
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    public synchronized int getUsed() {
+        return used;
+    }
+
+    private boolean mayTake(Member member) {
+        if (used >= permits)
+            return false;
+        if (waiting <= 1)
+            return true;
+        return member.held < (permits + active - 1) / active;
+    }
+
+    /**
+     * One user of the permits.
+     */
+    public class Member {
+
+        private final String name;
+        private int held;
+        private int waiters;
+
+        Member(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void acquire() throws InterruptedException {
+            synchronized (FairShare.this) {
+                if (held == 0 && waiters == 0)
+                    active++;
+                if (waiters++ == 0)
+                    waiting++;
+                try {
+                    while (!mayTake(this))
+                        FairShare.this.wait();
+                }
+                catch (InterruptedException e) {
+                    stopWaiting();
+                    if (held == 0 && waiters == 0)
+                        active--;
+                    FairShare.this.notifyAll();
+                    throw e;
+                }
+                stopWaiting();
+                held++;
+                used++;
+            }
+        }
+
+        public void release() {
+            synchronized (FairShare.this) {
+                held--;
+                used--;
+                if (held == 0 && waiters == 0)
+                    active--;
+                FairShare.this.notifyAll();
+            }
+        }
+
+        public int getHeld() {
+            synchronized (FairShare.this) {
+                return held;
+            }
+        }
+
+        private void stopWaiting() {
+            if (--waiters == 0)
+                waiting--;
+        }
+    }
+
+}
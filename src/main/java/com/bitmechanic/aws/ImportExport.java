@@ -1,27 +1,51 @@
 package com.bitmechanic.aws;
 
-import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
 import com.amazonaws.services.simpledb.model.Item;
-import com.amazonaws.services.simpledb.model.SelectRequest;
-import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by James Cooper <james@bitmechanic.com>
@@ -30,12 +54,67 @@ import java.util.List;
 public class ImportExport {
 
     public static void main(String argv[]) throws Exception {
+        int threads = EXPORT_THREADS;
+        int partThreads = MultipartTransfer.DEFAULT_THREADS;
+        boolean virtualThreads = false;
+        int connections = 0;
+        int socketBufferKB = 0;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--part-threads"))
+                partThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--virtual-threads"))
+                virtualThreads = true;
+            else if (argv[i].equals("--connections"))
+                connections = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--socket-buffer"))
+                socketBufferKB = Integer.parseInt(argv[++i]);
+        }
+
+        // export's object workers and bucket listings (import's writers, then uploads, run
+        // threads at a time), plus part transfers
+        TransferEngine engine = new TransferEngine(threads + LIST_THREADS + partThreads);
+        if (virtualThreads)
+            engine.setVirtualThreads(threads);
+        if (connections > 0)
+            engine.setConnections(connections);
+        engine.setSocketBufferSize(socketBufferKB * 1024);
+
+        try {
+            configure(engine, argv).run();
+        }
+        finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Creates an import or export with engine and sets it up from command line arguments,
+     * ignoring the ones that configure the engine.
+     */
+    public static ImportExport configure(TransferEngine engine, String argv[]) {
         String accessKey = null;
         String secretKey = null;
         String bucket = null;
         String domain = null;
         String importFile = null;
         String exportFile = null;
+        int threads = EXPORT_THREADS;
+        int partThreads = MultipartTransfer.DEFAULT_THREADS;
+        int partSizeMB = MultipartTransfer.DEFAULT_PART_SIZE / MB;
+        long thresholdMB = MultipartTransfer.DEFAULT_THRESHOLD / MB;
+        int progressSeconds = 10;
+        String metricsJson = null;
+        String format = FORMAT_SNAPSHOT;
+        long shardSizeMB = 0;
+        boolean gzip = false;
+        boolean scanBucket = false;
+        boolean archive = false;
+        String store = null;
+        String checkpoint = null;
+        boolean resume = false;
+        boolean verbose = false;
         for (int i = 0; i < argv.length; i++) {
             if (argv[i].equals("--accessKey"))
                 accessKey = argv[++i];
@@ -49,23 +128,87 @@ public class ImportExport {
                 importFile = argv[++i];
             else if (argv[i].equals("--export"))
                 exportFile = argv[++i];
+            else if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--part-threads"))
+                partThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--part-size"))
+                partSizeMB = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--multipart-threshold"))
+                thresholdMB = Long.parseLong(argv[++i]);
+            else if (argv[i].equals("--progress"))
+                progressSeconds = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--metrics-json"))
+                metricsJson = argv[++i];
+            else if (argv[i].equals("--format"))
+                format = argv[++i];
+            else if (argv[i].equals("--shard-size"))
+                shardSizeMB = Long.parseLong(argv[++i]);
+            else if (argv[i].equals("--gzip"))
+                gzip = true;
+            else if (argv[i].equals("--scan-bucket"))
+                scanBucket = true;
+            else if (argv[i].equals("--archive"))
+                archive = true;
+            else if (argv[i].equals("--store"))
+                store = argv[++i];
+            else if (argv[i].equals("--checkpoint"))
+                checkpoint = argv[++i];
+            else if (argv[i].equals("--resume"))
+                resume = true;
+            else if (argv[i].equals("--verbose"))
+                verbose = true;
         }
+        if (importFile == null && exportFile == null)
+            throw new IllegalArgumentException("--export or --import is required");
+        if (resume && checkpoint == null)
+            throw new IllegalArgumentException("--resume requires --checkpoint");
 
-        ImportExport importExport = new ImportExport(accessKey, secretKey, bucket, domain);
-        if (importFile != null) {
-            importExport.importData(importFile);
-        }
-        else if (exportFile != null) {
-            importExport.exportData(exportFile);
-        }
-        else {
-            throw new Exception("--export or --import is required");
-        }
+        ImportExport importExport = new ImportExport(engine, accessKey, secretKey, bucket, domain);
+        importExport.setVerbose(verbose);
+        importExport.setThreads(threads);
+        importExport.setTransfer(new MultipartTransfer(partThreads, partSizeMB * MB, thresholdMB * MB));
+        importExport.setProgress(progressSeconds, metricsJson == null ? null : new File(metricsJson));
+        importExport.setFormat(format);
+        importExport.setJsonOutput(shardSizeMB * MB, gzip);
+        importExport.setScanBucket(scanBucket);
+        importExport.setArchive(archive);
+        importExport.setStore(store == null ? null : new File(store));
+        if (checkpoint != null)
+            importExport.setCheckpoint(new File(checkpoint), resume);
+        if (importFile != null)
+            importExport.setImport(importFile);
+        else
+            importExport.setExport(exportFile);
+        return importExport;
     }
 
     ////////////////////////////////////////
 
-    BasicAWSCredentials creds;
+    private static final int MB = 1024 * 1024;
+    private static final int EXPORT_THREADS = 10;
+    private static final int QUEUED_IDS_PER_THREAD = 100;
+    private static final int LIST_THREADS = 4;
+    private static final int SHARDS_PER_LIST_THREAD = 4;
+    private static final int READ_THREADS = 4;
+    private static final int BATCH_PUT_SIZE = 25;
+    private static final int QUEUED_BATCHES_PER_THREAD = 10;
+    private static final String KEY_SUFFIX = "_key";
+    private static final String META_SUFFIX = "_meta";
+    // names the BlobStore and snapshot an export's objects were saved to
+    private static final String STORE_FILE = "objects.store";
+    // metadata headers that can be set on an upload
+    private static final String[] RESTORED_HEADERS = {
+            "Content-Type", "Content-Encoding", "Cache-Control", "Content-Disposition" };
+
+    public static final String FORMAT_SNAPSHOT = "snapshot";
+    public static final String FORMAT_JSON = "json";
+    public static final String SNAPSHOT_FILE = "simpledb.snapshot";
+    public static final String JSON_NAME = "simpledb";
+
+    TransferEngine engine;
+    // set if the engine was created here, and so is shut down after each import or export
+    boolean ownsEngine;
     AmazonSimpleDB simpleDb;
     AmazonS3 s3;
     String bucket;
@@ -73,20 +216,210 @@ public class ImportExport {
 
     Gson gson;
 
-    List<String> idList;
+    String importDir;
+    String exportDir;
+    boolean verbose;
+    int threads = EXPORT_THREADS;
+    File objectDir;
+    TaskExecutor objectExport;
+    boolean scanBucket;
+    ItemNameSet itemNames;
+    boolean archiveObjects;
+    ObjectArchive archive;
+    File storeDir;
+    BlobStore store;
+    BlobStore.Snapshot storeSnapshot;
+    AtomicLong reused = new AtomicLong();
+    File checkpointFile;
+    boolean resume;
+    CheckpointJournal journal;
+    Set<String> resumedNames;
+    AtomicLong itemCount = new AtomicLong();
+
+    MultipartTransfer transfer;
+    RetryPolicy retry = new RetryPolicy(new AdaptiveLimiter(EXPORT_THREADS));
+    FailureReport failures = new FailureReport();
+    TransferMetrics metrics = new TransferMetrics("export");
+    int progressSeconds;
+    File metricsJson;
+    String format = FORMAT_SNAPSHOT;
+    long shardSize;
+    boolean gzip;
 
     public ImportExport(String accessKey, String secretKey, String bucket, String domain) {
-        creds = new BasicAWSCredentials(accessKey, secretKey);
-        simpleDb = new AmazonSimpleDBClient(creds);
-        s3 = new AmazonS3Client(creds);
+        this(new TransferEngine(), accessKey, secretKey, bucket, domain);
+        this.ownsEngine = true;
+    }
+
+    /**
+     * Creates the clients with engine, which also runs the workers.
+     */
+    public ImportExport(TransferEngine engine, String accessKey, String secretKey, String bucket, String domain) {
+        this(engine, engine.s3(accessKey, secretKey), engine.simpleDB(accessKey, secretKey), bucket, domain);
+    }
+
+    public ImportExport(AmazonS3 s3, AmazonSimpleDB simpleDb, String bucket, String domain) {
+        this(new TransferEngine(), s3, simpleDb, bucket, domain);
+        this.ownsEngine = true;
+    }
 
+    private ImportExport(TransferEngine engine, AmazonS3 s3, AmazonSimpleDB simpleDb, String bucket, String domain) {
+        this.engine = engine;
+        if (engine.getJobName() != null)
+            metrics.setName(engine.getJobName());
+        this.s3 = s3;
+        this.simpleDb = simpleDb;
         this.bucket = bucket;
         this.domain = domain;
         this.gson = new Gson();
+        retry.setMetrics(metrics);
+        failures.setMetrics(metrics);
         System.out.println("Bucket: " + bucket + " domain: " + domain);
     }
 
+    /**
+     * Makes run() import the directory written by an export.
+     */
+    public void setImport(String directory) {
+        this.importDir = directory;
+        this.exportDir = null;
+    }
+
+    /**
+     * Makes run() export to directory.
+     */
+    public void setExport(String directory) {
+        this.exportDir = directory;
+        this.importDir = null;
+    }
+
+    /**
+     * Imports or exports, as set by setImport or setExport.
+     */
+    public void run() throws IOException, InterruptedException {
+        if (importDir != null)
+            importData(importDir);
+        else if (exportDir != null)
+            exportData(exportDir);
+        else
+            throw new IllegalStateException("Neither an import nor an export directory is set");
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Prints a line for each object saved, which the progress line otherwise sums up.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Number of objects exported or uploaded, and of item batches restored, at once.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+        retry = new RetryPolicy(new AdaptiveLimiter(threads));
+        retry.setMetrics(metrics);
+    }
+
+    /**
+     * Used for objects large enough to be downloaded in parallel ranges, and shut down
+     * after the import or export.  One with the default settings is used if none is set.
+     */
+    public void setTransfer(MultipartTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    /**
+     * Prints a progress line every progressSeconds (never if 0), and writes a JSON summary
+     * of the run's metrics to metricsJson if it is not null.
+     */
+    public void setProgress(int progressSeconds, File metricsJson) {
+        this.progressSeconds = progressSeconds;
+        this.metricsJson = metricsJson;
+    }
+
+    /**
+     * FORMAT_SNAPSHOT (the default) exports the domain as a SimpleDBSnapshot, FORMAT_JSON
+     * as a JSON array of items for other tools to read.
+     */
+    public void setFormat(String format) {
+        if (!format.equals(FORMAT_SNAPSHOT) && !format.equals(FORMAT_JSON))
+            throw new IllegalArgumentException("Unknown format: " + format);
+        this.format = format;
+    }
+
+    /**
+     * With FORMAT_JSON, starts a new file every shardSize bytes (0 for one file) and
+     * gzips the files if gzip is true.
+     */
+    public void setJsonOutput(long shardSize, boolean gzip) {
+        this.shardSize = shardSize;
+        this.gzip = gzip;
+    }
+
+    /**
+     * If true, objects are found by listing the whole bucket once and matching keys
+     * against the exported item names, rather than with a LIST per item.  Cheaper when
+     * most items have no objects; the names are held in memory until the domain has been
+     * read.
+     */
+    public void setScanBucket(boolean scanBucket) {
+        this.scanBucket = scanBucket;
+    }
+
+    /**
+     * If true, objects are packed into ObjectArchive segments under objects instead of
+     * being saved as three files each.
+     */
+    public void setArchive(boolean archiveObjects) {
+        this.archiveObjects = archiveObjects;
+    }
+
+    /**
+     * If not null, objects are saved to a BlobStore in storeDir instead of under the
+     * export directory.  Objects already in the store from an earlier export are not
+     * downloaded again.  Overrides setArchive.
+     */
+    public void setStore(File storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    /**
+     * Records each object saved as files in a CheckpointJournal.  If resume is true and
+     * the file exists, objects saved by the run that wrote it are not downloaded again;
+     * the domain itself is always exported in full.  Not used with setArchive or
+     * setStore.  The file is removed once an export finishes without failures.
+     */
+    public void setCheckpoint(File checkpointFile, boolean resume) {
+        this.checkpointFile = checkpointFile;
+        this.resume = resume;
+    }
+
     public void exportData(String directory) throws IOException, InterruptedException {
+        if (transfer == null)
+            transfer = new MultipartTransfer();
+        try {
+            exportTo(directory);
+        }
+        finally {
+            finish();
+        }
+    }
+
+    /**
+     * Shuts down the transfer, and the engine if it was created here.
+     */
+    private void finish() throws InterruptedException {
+        transfer.shutdown();
+        if (ownsEngine)
+            engine.shutdown();
+    }
+
+    private void exportTo(String directory) throws IOException, InterruptedException {
         File dir = new File(directory);
         if (!dir.exists() || !dir.isDirectory()) {
             throw new IOException("Not a directory: " + directory);
@@ -94,146 +427,909 @@ public class ImportExport {
 
         System.out.println("Exporting data to dir: " + directory);
 
-        this.idList = new ArrayList<String>();
-        exportSimpledb(directory);
+        transfer.setRetryPolicy(retry);
+        transfer.setBandwidth(engine.getBandwidth());
+        metrics.start(System.out, progressSeconds);
+        if (bucket != null) {
+            objectDir = new File(dir, "objects");
+            objectDir.mkdirs();
+            if (!objectDir.exists() || !objectDir.isDirectory()) {
+                throw new IOException("Unable to create: " + objectDir.getAbsolutePath());
+            }
+            // objects are exported while the domain is still being read
+            objectExport = engine.executor("export", threads, threads * QUEUED_IDS_PER_THREAD);
+            metrics.watch(objectExport);
+            if (storeDir != null) {
+                store = BlobStore.open(storeDir);
+                storeSnapshot = store.startSnapshot();
+                reused.set(0);
+            }
+            else if (archiveObjects) {
+                // a segment per thread, but no more than the default: each holds a 1 MB buffer
+                archive = new ObjectArchive(objectDir, Math.min(threads, EXPORT_THREADS));
+            }
+
+            if (checkpointFile != null && (store != null || archive != null)) {
+                System.out.println("Checkpoints are only kept for objects saved as files, ignoring " + checkpointFile);
+            }
+            else if (checkpointFile != null) {
+                journal = CheckpointJournal.open(checkpointFile, "export " + domain + " " + bucket, resume);
+                resumedNames = new HashSet<String>(journal.getCompletedValues());
+                if (journal.isResumed())
+                    System.out.println("Resuming from checkpoint " + checkpointFile + ", "
+                            + resumedNames.size() + " objects already exported");
+            }
+        }
+
+        if (objectExport != null && scanBucket)
+            itemNames = new ItemNameSet();
+
+        try {
+            exportSimpledb(directory);
+            if (itemNames != null)
+                scanObjects();
+            // every object has been queued by now
+            metrics.scheduleComplete();
+            if (objectExport != null)
+                objectExport.awaitCompletion();
+            if (journal != null && failures.size() == 0)
+                journal.delete();
+        }
+        finally {
+            if (objectExport != null)
+                objectExport.shutdown();
+            if (journal != null && journal.getFile().exists()) {
+                journal.close();
+                System.out.println("Progress saved to " + checkpointFile + ", run again with --resume to continue");
+            }
+            if (archive != null)
+                archive.close();
+            if (store != null)
+                closeStore(dir);
+            objectExport = null;
+            itemNames = null;
+            archive = null;
+            store = null;
+            journal = null;
+            resumedNames = null;
+        }
+        metrics.stop(metricsJson);
+
+        failures.print(System.out);
+    }
+
+    /**
+     * Queues the objects of an exported item for export, waiting if the queue is full, or
+     * with setScanBucket, remembers the item for the bucket scan.
+     */
+    private void itemExported(String id) throws InterruptedIOException {
+        if (itemNames != null) {
+            itemNames.add(id);
+            return;
+        }
+        if (objectExport == null)
+            return;
+        try {
+            objectExport.submit(new ExportObjectsTask(id));
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted queueing objects of " + id);
+        }
+    }
+
+    /**
+     * Saves every object whose key starts with an item's name, as id_1, id_2, ... with
+     * _key and _meta files beside each.
+     */
+    class ExportObjectsTask implements Runnable {
+
+        String id;
+
+        ExportObjectsTask(String id) {
+            this.id = id;
+        }
+
+        public void run() {
+            int count = 0;
 
-        if (bucket != null)
-            exportS3Objects(directory);
+            // usually a single page, so listed on this thread rather than prefetched
+            BucketListing listing = new BucketListing(s3, bucket).setPrefix(id).setRetryPolicy(retry);
+            try {
+                while (listing.hasNext()) {
+                    S3ObjectSummary summary = listing.next();
+                    if (alreadyExported(id, summary.getKey()))
+                        continue;
+                    String name;
+                    do {
+                        name = id + "_" + (++count);
+                    }
+                    while (nameTaken(name));
+                    metrics.scheduled(1, summary.getSize());
+                    exportObject(summary, name);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e) {
+                failures.add("objects with prefix " + id, e);
+            }
+            finally {
+                listing.close();
+            }
+        }
     }
 
-    private void exportS3Objects(String directory) throws IOException, InterruptedException {
-        final File dir = new File(directory + File.separatorChar + "objects");
-        dir.mkdirs();
+    /**
+     * Saves an object found by the bucket scan.
+     */
+    class ExportObjectTask implements Runnable {
 
-        if (!dir.exists() || !dir.isDirectory()) {
-            throw new IOException("Unable to create: " + dir.getAbsolutePath());
+        S3ObjectSummary summary;
+        String name;
+
+        ExportObjectTask(S3ObjectSummary summary, String name) {
+            this.summary = summary;
+            this.name = name;
+        }
+
+        public void run() {
+            try {
+                exportObject(summary, name);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void exportObject(final S3ObjectSummary summary, final String name) throws InterruptedException {
+        final String filename = objectDir.getAbsolutePath() + File.separatorChar + name;
+        try {
+            retry.getLimiter().acquire();
+            try {
+                retryPolicy(summary.getSize()).call("get", new Callable<Void>() {
+                    public Void call() throws Exception {
+                        if (store != null)
+                            storeObject(name, summary);
+                        else if (archive != null)
+                            archiveObject(name, summary.getKey(), summary.getSize());
+                        else
+                            getObject(filename, summary.getKey(), summary.getSize());
+                        return null;
+                    }
+                });
+                metrics.completed(1, summary.getSize());
+                if (journal != null)
+                    journal.completed(checkpointKey(name.substring(0, name.lastIndexOf('_')), summary.getKey()), name);
+            }
+            finally {
+                retry.getLimiter().release();
+            }
+        }
+        catch (InterruptedException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            failures.add(summary.getKey(), e);
         }
+    }
+
+    // objects moved in parts are tried once: MultipartTransfer retries each of its requests
+    private RetryPolicy retryPolicy(long size) {
+        return transfer.isMultipart(size) ? retry.once() : retry;
+    }
 
-        List<Thread> threads = new ArrayList<Thread>();
-        for (int i = 0; i < 10; i++) {
+    // true if the run being resumed saved key as an object of item id
+    private boolean alreadyExported(String id, String key) {
+        return journal != null && journal.getCompleted(checkpointKey(id, key)) != null;
+    }
+
+    // true if the run being resumed saved an object under this name, so it can't be reused
+    private boolean nameTaken(String name) {
+        return resumedNames != null && resumedNames.contains(name);
+    }
+
+    private static String checkpointKey(String id, String key) {
+        return id + '\u0000' + key;
+    }
+
+    /**
+     * Lists the whole bucket once, in parallel shards, and exports each object whose key
+     * starts with an item name, instead of listing every item's prefix separately.
+     * Object files are numbered per item in the order their shards are listed.
+     */
+    private void scanObjects() throws IOException, InterruptedException {
+        itemNames.seal();
+        final AtomicIntegerArray counts = new AtomicIntegerArray(itemNames.size());
+
+        BucketSharder sharder = new BucketSharder(s3, bucket);
+        sharder.setRetryPolicy(retry);
+        final List<String[]> shards = sharder.shards(LIST_THREADS * SHARDS_PER_LIST_THREAD);
+        System.out.println("Scanning " + shards.size() + " shards of " + bucket + " for objects of "
+                + itemNames.size() + " items");
+
+        final AtomicInteger nextShard = new AtomicInteger();
+        final AtomicReference<Exception> listError = new AtomicReference<Exception>();
+        List<Thread> listers = new ArrayList<Thread>();
+        for (int i = 0; i < Math.min(LIST_THREADS, shards.size()); i++) {
             Thread t = new Thread(new Runnable() {
                 public void run() {
-                    String id = null;
-                    do {
+                    int i;
+                    while (listError.get() == null && (i = nextShard.getAndIncrement()) < shards.size()) {
+                        String[] shard = shards.get(i);
+                        BucketListing listing = new BucketListing(s3, bucket, shard[0], shard[1])
+                                .setRetryPolicy(retry).start();
                         try {
-                            id = exportNextId(dir);
+                            ItemNameSet.PrefixMatcher matcher = itemNames.matcher(shard[0]);
+                            while (listing.hasNext()) {
+                                S3ObjectSummary summary = listing.next();
+                                int matches = matcher.match(summary.getKey());
+                                for (int m = 0; m < matches; m++) {
+                                    int index = matcher.matched(m);
+                                    String id = itemNames.get(index);
+                                    if (alreadyExported(id, summary.getKey()))
+                                        continue;
+                                    String name;
+                                    do {
+                                        name = id + "_" + counts.incrementAndGet(index);
+                                    }
+                                    while (nameTaken(name));
+                                    metrics.scheduled(1, summary.getSize());
+                                    objectExport.submit(new ExportObjectTask(summary, name));
+                                }
+                            }
+                        }
+                        catch (Exception e) {
+                            listError.compareAndSet(null, e);
                         }
-                        catch (IOException e) {
-                            e.printStackTrace();
+                        finally {
+                            listing.close();
                         }
                     }
-                    while (id != null);
                 }
             });
             t.start();
-            threads.add(t);
+            listers.add(t);
         }
 
-        for (Thread t : threads) {
+        for (Thread t : listers) {
             t.join();
         }
+        Exception e = listError.get();
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof InterruptedException)
+            throw (InterruptedException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
     }
 
-    private synchronized String popIdToExport() {
-        if (idList.isEmpty())
-            return null;
-        else
-            return idList.remove(idList.size()-1);
+    /**
+     * Downloads an object to a file, in parallel ranges if it is large, and returns its
+     * metadata.
+     */
+    private ObjectMetadata downloadObject(String key, long size, File file) throws IOException {
+        if (transfer.isMultipart(size))
+            return transfer.download(s3, bucket, key, size, file);
+
+        S3Object object = s3.getObject(bucket, key);
+        FileOutputStream fos = new FileOutputStream(file);
+        InputStream is = throttle(object.getObjectContent());
+        byte arr[] = null;
+        try {
+            arr = engine.getBuffers().acquire();
+            int length;
+            while ((length = is.read(arr)) != -1) {
+                fos.write(arr, 0, length);
+            }
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted downloading " + key);
+        }
+        finally {
+            if (arr != null)
+                engine.getBuffers().release(arr);
+            is.close();
+            fos.close();
+        }
+        return object.getObjectMetadata();
     }
 
-    private String exportNextId(File dir) throws IOException {
-        String id = popIdToExport();
-        if (id != null) {
-            int count = 0;
+    // charges an object body against the engine's bandwidth limit, if it has one
+    private InputStream throttle(InputStream in) {
+        BandwidthLimiter bandwidth = engine.getBandwidth();
+        return bandwidth == null ? in : bandwidth.throttle(in);
+    }
 
-            ListObjectsRequest request = new ListObjectsRequest();
-            request.setBucketName(bucket);
-            request.setPrefix(id);
-            ObjectListing listing = null;
-            do {
-                if (listing != null)
-                    request.setMarker(listing.getNextMarker());
-
-                listing = s3.listObjects(request);
-                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
-                    count++;
-                    String filename = dir.getAbsolutePath() + File.separatorChar + id + "_" + count;
-                    getObject(filename, summary.getKey());
-                }
+    /**
+     * Saves an object to the BlobStore unless a blob with its ETag and size is already
+     * there, and records it in this export's snapshot either way.
+     */
+    private void storeObject(String name, S3ObjectSummary summary) throws IOException {
+        String id = BlobStore.blobId(summary.getETag(), summary.getSize());
+        if (store.contains(id)) {
+            reused.incrementAndGet();
+        }
+        else {
+            if (verbose)
+                System.out.println("Storing " + summary.getKey() + " as " + id);
+            File temp = store.tempFile();
+            ObjectMetadata metadata;
+            try {
+                metadata = downloadObject(summary.getKey(), summary.getSize(), temp);
+            }
+            catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            catch (RuntimeException e) {
+                temp.delete();
+                throw e;
             }
-            while (listing.isTruncated());
+            store.add(id, temp, gson.toJson(metadata));
         }
-        return id;
+        storeSnapshot.add(summary.getKey(), id, name);
     }
 
-    private void getObject(String filename, String key) throws IOException {
-        System.out.println("Saving " + key + " to " + filename);
-        
-        S3Object object = s3.getObject(bucket, key);
+    private void closeStore(File dir) throws IOException {
+        storeSnapshot.close();
+        store.close();
+        PrintWriter writer = new PrintWriter(new FileWriter(new File(dir, STORE_FILE)));
+        writer.println(storeDir.getAbsolutePath());
+        writer.println(storeSnapshot.getName());
+        writer.close();
+        System.out.println("Snapshot " + storeSnapshot.getName() + " saved to " + storeDir + ", "
+                + reused.get() + " objects were already in the store");
+    }
+
+    /**
+     * Appends an object to a segment of the archive, with its key and metadata in the
+     * segment's index.
+     */
+    private void archiveObject(String name, String key, long size) throws IOException, InterruptedException {
+        if (verbose)
+            System.out.println("Archiving " + key + " as " + name);
 
-        FileOutputStream fos = new FileOutputStream(filename);
-        InputStream is = object.getObjectContent();
-        byte arr[] = new byte[4096];
-        int length;
-        while ((length = is.read(arr)) != -1) {
-            fos.write(arr, 0, length);
+        ObjectArchive.Segment segment = archive.acquire();
+        try {
+            ObjectMetadata metadata;
+            long length;
+            if (transfer.isMultipart(size)) {
+                metadata = transfer.download(s3, bucket, key, size, segment.getChannel(), segment.getPosition());
+                length = size;
+            }
+            else {
+                S3Object object = s3.getObject(bucket, key);
+                InputStream is = throttle(object.getObjectContent());
+                try {
+                    length = segment.write(is);
+                }
+                finally {
+                    is.close();
+                }
+                metadata = object.getObjectMetadata();
+            }
+            segment.add(key, name, length, gson.toJson(metadata));
         }
-        is.close();
-        fos.close();
+        finally {
+            archive.release(segment);
+        }
+    }
+
+    private void getObject(String filename, String key, long size) throws IOException {
+        if (verbose)
+            System.out.println("Saving " + key + " to " + filename);
+
+        ObjectMetadata metadata = downloadObject(key, size, new File(filename));
 
-        PrintWriter writer = new PrintWriter(new FileWriter(filename + "_key"));
+        PrintWriter writer = new PrintWriter(new FileWriter(filename + KEY_SUFFIX));
         writer.println(key);
         writer.close();
 
-        writer = new PrintWriter(new FileWriter(filename + "_meta"));
-        writer.println(gson.toJson(object.getObjectMetadata()));
+        writer = new PrintWriter(new FileWriter(filename + META_SUFFIX));
+        writer.println(gson.toJson(metadata));
         writer.close();
     }
 
     private void exportSimpledb(String directory) throws IOException {
-        String file = directory + File.separatorChar + "simpledb.txt";
-        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        long start = System.currentTimeMillis();
+        int itemCount;
+        if (format.equals(FORMAT_JSON))
+            itemCount = exportJson(new File(directory));
+        else
+            itemCount = exportSnapshot(new File(directory, SNAPSHOT_FILE));
+
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Exported " + itemCount + " items in " + (elapsed/1000) + " seconds");
+    }
+
+    private int exportJson(File dir) throws IOException {
+        DomainListing listing = new DomainListing(simpleDb, domain, null, null).setRetryPolicy(retry);
+        JsonShardWriter writer = new JsonShardWriter(dir, JSON_NAME, shardSize, gzip);
+        int itemCount = 0;
+        try {
+            while (listing.hasNext()) {
+                Item item = listing.next();
+                writer.write(item);
+                itemCount++;
+                itemExported(item.getName());
+            }
+        }
+        finally {
+            writer.close();
+        }
+        return itemCount;
+    }
 
-        writer.print("[");
+    private int exportSnapshot(File file) throws IOException {
+        // items come back in itemName() order, which keeps each block's name range narrow
+        DomainListing listing = new DomainListing(simpleDb, domain, null, null).setRetryPolicy(retry);
+        SimpleDBSnapshot.Writer writer = new SimpleDBSnapshot.Writer(file);
         int itemCount = 0;
+        try {
+            while (listing.hasNext()) {
+                Item item = listing.next();
+                writer.add(item);
+                itemCount++;
+                itemExported(item.getName());
+            }
+        }
+        finally {
+            writer.close();
+        }
+        return itemCount;
+    }
+
+    ///////////////////////////
+
+    /**
+     * Restores a directory written by exportData: items are written back to the domain
+     * and, if a bucket was given, the files under objects are uploaded to it under their
+     * original keys.  The domain and bucket are created if they don't exist.
+     */
+    public void importData(String directory) throws IOException, InterruptedException {
+        if (transfer == null)
+            transfer = new MultipartTransfer();
+        try {
+            importFrom(directory);
+        }
+        finally {
+            finish();
+        }
+    }
+
+    private void importFrom(String directory) throws IOException, InterruptedException {
+        File dir = new File(directory);
+        if (!dir.exists() || !dir.isDirectory()) {
+            throw new IOException("Not a directory: " + directory);
+        }
+
+        System.out.println("Importing data from dir: " + directory);
+
+        transfer.setRetryPolicy(retry);
+        metrics.start(System.out, progressSeconds);
+        File storeFile = new File(dir, STORE_FILE);
+        File objects = new File(dir, "objects");
+        boolean uploads = bucket != null && (storeFile.exists() || objects.isDirectory());
+        importSimpledb(dir, !uploads);
+
+        if (bucket != null && storeFile.exists())
+            importStoredObjects(storeFile);
+        else if (bucket != null && objects.isDirectory())
+            importS3Objects(objects);
+        metrics.stop(metricsJson);
+
+        failures.print(System.out);
+    }
+
+    /**
+     * Writes the items back to the domain.  If last is true, nothing is scheduled after
+     * the items, so the progress report shows an ETA once they are all queued.
+     */
+    private void importSimpledb(File dir, boolean last) throws IOException, InterruptedException {
         long start = System.currentTimeMillis();
+        simpleDb.createDomain(new CreateDomainRequest(domain));
+
+        // sized like the limiter gating it, which allows threads requests at once
+        TaskExecutor writers = engine.executor("restore", threads, threads * QUEUED_BATCHES_PER_THREAD);
+        writers.setLimiter(retry.getLimiter());
+        metrics.watch(writers);
+        itemCount.set(0);
 
-        String query = "select * from " + domain + " limit 100";
-        SelectRequest request = new SelectRequest(query);
-        SelectResult result = null;
-        do {
-            if (result != null)
-                request.setNextToken(result.getNextToken());
-            
-            result = simpleDb.select(request);
-            List<Item> items = result.getItems();
-            if (items != null) {
-                for (Item item : items) {
-                    if (itemCount > 0) {
-                        writer.print(",");
+        SimpleDBSnapshot snapshot = null;
+        List<Callable<Iterator<Item>>> sources = new ArrayList<Callable<Iterator<Item>>>();
+        File snapshotFile = new File(dir, SNAPSHOT_FILE);
+        File manifestFile = new File(dir, JSON_NAME + JsonShardWriter.MANIFEST_SUFFIX);
+        if (snapshotFile.exists()) {
+            final SimpleDBSnapshot blocks = snapshot = SimpleDBSnapshot.open(snapshotFile);
+            for (int i = 0; i < blocks.getBlockCount(); i++) {
+                final int block = i;
+                sources.add(new Callable<Iterator<Item>>() {
+                    public Iterator<Item> call() {
+                        return blocks.readBlock(block).iterator();
                     }
-                    String json = gson.toJson(item);
-                    writer.println(json);
-                    itemCount++;
-                    idList.add(item.getName());
-                }
+                });
             }
         }
-        while (result.getNextToken() != null && result.getNextToken().length() > 0);
+        else if (manifestFile.exists()) {
+            FileReader reader = new FileReader(manifestFile);
+            JsonShardWriter.Manifest manifest;
+            try {
+                manifest = gson.fromJson(reader, JsonShardWriter.Manifest.class);
+            }
+            finally {
+                reader.close();
+            }
+            for (JsonShardWriter.Shard shard : manifest.getShards()) {
+                sources.add(jsonSource(new File(dir, shard.getFile())));
+            }
+        }
+        else {
+            sources.add(jsonSource(new File(dir, JSON_NAME + ".txt")));
+        }
 
-        writer.println("]");
-        writer.flush();
-        writer.close();
+        try {
+            readItems(sources, writers);
+            if (last)
+                metrics.scheduleComplete();
+            writers.awaitCompletion();
+        }
+        finally {
+            writers.shutdown();
+            if (snapshot != null)
+                snapshot.close();
+        }
 
         long elapsed = System.currentTimeMillis() - start;
-        System.out.println("Exported " + itemCount + " items in " + (elapsed/1000) + " seconds");
+        System.out.println("Imported " + itemCount.get() + " items in " + (elapsed/1000) + " seconds");
     }
 
+    private Callable<Iterator<Item>> jsonSource(final File file) {
+        return new Callable<Iterator<Item>>() {
+            public Iterator<Item> call() throws IOException {
+                return JsonItemReader.open(file);
+            }
+        };
+    }
 
-    ///////////////////////////
+    /**
+     * Reads the sources on READ_THREADS threads, queueing their items for the writers in
+     * BATCH_PUT_SIZE batches.  Readers wait while the writers' queue is full, so only a
+     * bounded number of items is held in memory.
+     */
+    private void readItems(final List<Callable<Iterator<Item>>> sources, final TaskExecutor writers)
+            throws IOException, InterruptedException {
+        ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(READ_THREADS, sources.size())));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Callable<Iterator<Item>> source : sources) {
+                results.add(readers.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        Iterator<Item> items = source.call();
+                        try {
+                            List<Item> batch = new ArrayList<Item>(BATCH_PUT_SIZE);
+                            while (items.hasNext()) {
+                                batch.add(items.next());
+                                if (batch.size() == BATCH_PUT_SIZE) {
+                                    submitPut(writers, batch);
+                                    batch = new ArrayList<Item>(BATCH_PUT_SIZE);
+                                }
+                            }
+                            if (!batch.isEmpty())
+                                submitPut(writers, batch);
+                        }
+                        finally {
+                            if (items instanceof JsonItemReader)
+                                ((JsonItemReader) items).close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IOException("Unable to read items", cause);
+                }
+            }
+        }
+        finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private void submitPut(TaskExecutor writers, List<Item> batch) throws InterruptedException {
+        metrics.scheduled(batch.size(), 0);
+        writers.submit(new PutTask(batch));
+    }
+
+    private void createBucket() {
+        try {
+            s3.getBucketLocation(bucket);
+        }
+        catch (AmazonServiceException e) {
+            if (e.getErrorCode().equals("NoSuchBucket")) {
+                s3.createBucket(bucket);
+            }
+            else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Uploads the objects of the BlobStore snapshot an export was saved as.
+     */
+    private void importStoredObjects(File storeFile) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new FileReader(storeFile));
+        String storePath;
+        String snapshot;
+        try {
+            storePath = reader.readLine();
+            snapshot = reader.readLine();
+        }
+        finally {
+            reader.close();
+        }
+        createBucket();
+
+        BlobStore blobs = BlobStore.open(new File(storePath));
+        TaskExecutor uploaders = engine.executor("upload", threads, threads * 2);
+        uploaders.setLimiter(retry.getLimiter());
+        metrics.watch(uploaders);
+        BlobStore.RefReader refs = blobs.readSnapshot(snapshot);
+        try {
+            while (refs.next()) {
+                File file = blobs.blobFile(refs.getBlobId());
+                String json = blobs.getMetadata(refs.getBlobId());
+                ObjectMetadata metadata = json == null ? new ObjectMetadata()
+                        : parseMetadata(new JsonParser().parse(json).getAsJsonObject());
+                metrics.scheduled(1, file.length());
+                uploaders.submit(new UploadTask(file, refs.getKey(), metadata));
+            }
+            metrics.scheduleComplete();
+            uploaders.awaitCompletion();
+        }
+        finally {
+            refs.close();
+            uploaders.shutdown();
+            blobs.close();
+        }
+    }
+
+    private void importS3Objects(File dir) throws IOException, InterruptedException {
+        createBucket();
+
+        TaskExecutor uploaders = engine.executor("upload", threads, threads * 2);
+        uploaders.setLimiter(retry.getLimiter());
+        metrics.watch(uploaders);
+        try {
+            if (ObjectArchive.exists(dir)) {
+                for (File indexFile : ObjectArchive.indexFiles(dir)) {
+                    ObjectArchive.IndexReader entries = new ObjectArchive.IndexReader(indexFile);
+                    try {
+                        while (entries.hasNext()) {
+                            ObjectArchive.Entry entry = entries.next();
+                            metrics.scheduled(1, entry.getLength());
+                            uploaders.submit(new ArchiveUploadTask(entry));
+                        }
+                    }
+                    finally {
+                        entries.close();
+                    }
+                }
+            }
+            else {
+                // every exported object has a _key file next to it holding its original key.
+                // The directory is read as it is walked, so its names are never all in memory.
+                DirectoryStream<Path> keyFiles = Files.newDirectoryStream(dir.toPath(), "*" + KEY_SUFFIX);
+                try {
+                    for (Path keyFile : keyFiles) {
+                        String name = keyFile.getFileName().toString();
+                        File file = new File(dir, name.substring(0, name.length() - KEY_SUFFIX.length()));
+                        metrics.scheduled(1, file.length());
+                        uploaders.submit(new UploadTask(file));
+                    }
+                }
+                finally {
+                    keyFiles.close();
+                }
+            }
+            metrics.scheduleComplete();
+            uploaders.awaitCompletion();
+        }
+        finally {
+            uploaders.shutdown();
+        }
+    }
 
-    public void importData(String file) {
-        
+    /**
+     * Rebuilds the settable parts of an object's metadata from its _meta file, which
+     * holds the ObjectMetadata the export received, as JSON.
+     */
+    private ObjectMetadata readMetadata(File file) throws IOException {
+        File metaFile = new File(file.getPath() + META_SUFFIX);
+        if (!metaFile.exists())
+            return new ObjectMetadata();
+
+        FileReader reader = new FileReader(metaFile);
+        try {
+            return parseMetadata(new JsonParser().parse(reader).getAsJsonObject());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private ObjectMetadata parseMetadata(JsonObject json) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (json.has("userMetadata")) {
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("userMetadata").entrySet()) {
+                metadata.addUserMetadata(entry.getKey(), entry.getValue().getAsString());
+            }
+        }
+        if (json.has("metadata")) {
+            JsonObject raw = json.getAsJsonObject("metadata");
+            for (String header : RESTORED_HEADERS) {
+                if (raw.has(header))
+                    metadata.setHeader(header, raw.get(header).getAsString());
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Writes a batch of items with BatchPutAttributes, replacing any values already there.
+     */
+    class PutTask implements Runnable {
+
+        List<Item> items;
+
+        PutTask(List<Item> items) {
+            this.items = items;
+        }
+
+        public void run() {
+            final BatchPutAttributesRequest put = new BatchPutAttributesRequest();
+            put.setDomainName(domain);
+
+            // the SDK's setters copy their argument, so fill the lists they already hold
+            List<ReplaceableItem> repItems = put.getItems();
+            for (Item item : items) {
+                ReplaceableItem repItem = new ReplaceableItem();
+                repItem.setName(item.getName());
+
+                List<ReplaceableAttribute> repAttribs = repItem.getAttributes();
+                for (Attribute attrib : item.getAttributes()) {
+                    repAttribs.add(new ReplaceableAttribute(attrib.getName(), attrib.getValue(), true));
+                }
+                repItems.add(repItem);
+            }
+
+            try {
+                retry.call("batchPut", new Callable<Void>() {
+                    public Void call() {
+                        simpleDb.batchPutAttributes(put);
+                        return null;
+                    }
+                });
+                itemCount.addAndGet(repItems.size());
+                metrics.completed(repItems.size(), 0);
+            }
+            catch (Exception e) {
+                for (ReplaceableItem repItem : repItems) {
+                    failures.add(repItem.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads one exported file under the key in its _key file, in parts if it is large.
+     */
+    class UploadTask implements Runnable {
+
+        File file;
+        String key;
+        ObjectMetadata metadata;
+
+        UploadTask(File file) {
+            this.file = file;
+        }
+
+        UploadTask(File file, String key, ObjectMetadata metadata) {
+            this.file = file;
+            this.key = key;
+            this.metadata = metadata;
+        }
+
+        public void run() {
+            String name = key == null ? file.getName() : key;
+            try {
+                if (key == null) {
+                    BufferedReader reader = new BufferedReader(new FileReader(file.getPath() + KEY_SUFFIX));
+                    try {
+                        key = reader.readLine();
+                    }
+                    finally {
+                        reader.close();
+                    }
+                    name = key;
+                    metadata = readMetadata(file);
+                }
+
+                final long size = file.length();
+                metadata.setContentLength(size);
+                retryPolicy(size).call("put", new Callable<Void>() {
+                    public Void call() throws IOException {
+                        if (transfer.isMultipart(size))
+                            transfer.upload(s3, bucket, key, file, metadata);
+                        else
+                            s3.putObject(new PutObjectRequest(bucket, key, file).withMetadata(metadata));
+                        return null;
+                    }
+                });
+                metrics.completed(1, size);
+            }
+            catch (Exception e) {
+                failures.add(name, e);
+            }
+        }
+    }
+
+    /**
+     * Uploads one object from an archive segment, in parts if it is large.
+     */
+    class ArchiveUploadTask implements Runnable {
+
+        ObjectArchive.Entry entry;
+
+        ArchiveUploadTask(ObjectArchive.Entry entry) {
+            this.entry = entry;
+        }
+
+        public void run() {
+            try {
+                final ObjectMetadata metadata = parseMetadata(new JsonParser().parse(entry.getMetadata()).getAsJsonObject());
+                metadata.setContentLength(entry.getLength());
+                retryPolicy(entry.getLength()).call("put", new Callable<Void>() {
+                    public Void call() throws IOException {
+                        if (transfer.isMultipart(entry.getLength())) {
+                            RandomAccessFile raf = new RandomAccessFile(entry.getSegment(), "r");
+                            try {
+                                transfer.upload(s3, bucket, entry.getKey(), raf.getChannel(),
+                                                entry.getOffset(), entry.getLength(), metadata);
+                            }
+                            finally {
+                                raf.close();
+                            }
+                        }
+                        else {
+                            InputStream in = ObjectArchive.open(entry);
+                            try {
+                                s3.putObject(new PutObjectRequest(bucket, entry.getKey(), in, metadata));
+                            }
+                            finally {
+                                in.close();
+                            }
+                        }
+                        return null;
+                    }
+                });
+                metrics.completed(1, entry.getLength());
+            }
+            catch (Exception e) {
+                failures.add(entry.getKey(), e);
+            }
+        }
     }
 
 }
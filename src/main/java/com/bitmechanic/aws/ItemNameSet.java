@@ -0,0 +1,226 @@
+package com.bitmechanic.aws;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A sorted set of item names kept as one array of UTF-8 bytes plus an array of offsets,
+ * a few bytes per name on top of the names themselves, used to join a bucket listing
+ * against the items of a domain.
+ *
+ * Names are added, then sorted once by seal().  Sorting compares the UTF-8 bytes, which
+ * is the order S3 lists keys in.  Names that arrive already sorted, as they do from a
+ * DomainListing, aren't moved.
+ */
+public class ItemNameSet {
+
+    private byte[] bytes = new byte[64 * 1024];
+    private int length;
+    private int[] offsets = new int[1024];
+    private int size;
+    private boolean sorted = true;
+    private boolean sealed;
+
+    public void add(String name) {
+        if (sealed)
+            throw new IllegalStateException("Set has been sealed");
+        byte[] b = utf8(name);
+        if (length + b.length > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + b.length));
+        if (size + 2 > offsets.length)
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+
+        System.arraycopy(b, 0, bytes, length, b.length);
+        offsets[size] = length;
+        length += b.length;
+        offsets[size + 1] = length;
+        size++;
+        if (size > 1 && compare(size - 2, bytes, offsets[size - 1], length) >= 0)
+            sorted = false;
+    }
+
+    /**
+     * Sorts the names and drops duplicates.  No names can be added afterwards.
+     */
+    public void seal() {
+        if (sealed)
+            return;
+        sealed = true;
+        if (sorted)
+            return;
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return ItemNameSet.this.compare(a, bytes, offsets[b], offsets[b + 1]);
+            }
+        });
+
+        byte[] sortedBytes = new byte[length];
+        int[] sortedOffsets = new int[size + 1];
+        int n = 0;
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            int index = order[i];
+            if (n > 0 && compare(order[i - 1], bytes, offsets[index], offsets[index + 1]) == 0)
+                continue;
+            int start = offsets[index];
+            int len = offsets[index + 1] - start;
+            System.arraycopy(bytes, start, sortedBytes, position, len);
+            sortedOffsets[n++] = position;
+            position += len;
+        }
+        sortedOffsets[n] = position;
+        bytes = sortedBytes;
+        offsets = sortedOffsets;
+        length = position;
+        size = n;
+        sorted = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String get(int index) {
+        try {
+            return new String(bytes, offsets[index], offsets[index + 1] - offsets[index], "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds the names that are prefixes of keys read in increasing order, starting after
+     * the given key (null for the start of the bucket).  The set must be sealed.
+     */
+    public PrefixMatcher matcher(String after) {
+        if (!sealed)
+            throw new IllegalStateException("Set must be sealed first");
+        return new PrefixMatcher(after);
+    }
+
+    /**
+     * Walks the sorted names alongside sorted keys.  The names that are prefixes of the
+     * current key form a chain, each a prefix of the next, kept on a stack: a name that
+     * is passed without being a prefix of the current key can't be a prefix of any later
+     * key, so each name is pushed and popped at most once.
+     */
+    public class PrefixMatcher {
+
+        private int next;
+        private int[] stack = new int[16];
+        private int depth;
+
+        PrefixMatcher(String after) {
+            if (after == null)
+                return;
+            // names that are prefixes of after may also be prefixes of the keys after it
+            byte[] key = utf8(after);
+            for (int len = 1; len <= key.length; len++) {
+                int index = find(key, len);
+                if (index >= 0)
+                    push(index);
+            }
+            next = firstAfter(key, key.length);
+        }
+
+        /**
+         * Returns how many names are prefixes of key.  matched(0) ... matched(n - 1) are
+         * their indexes, shortest name first, until the next call.
+         */
+        public int match(String key) {
+            byte[] k = utf8(key);
+            while (next < size && compare(next, k, 0, k.length) <= 0) {
+                push(next++);
+            }
+            while (depth > 0 && !isPrefix(stack[depth - 1], k, 0, k.length)) {
+                depth--;
+            }
+            return depth;
+        }
+
+        public int matched(int i) {
+            return stack[i];
+        }
+
+        private void push(int index) {
+            while (depth > 0 && !isPrefix(stack[depth - 1], bytes, offsets[index], offsets[index + 1])) {
+                depth--;
+            }
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = index;
+        }
+    }
+
+    //////////////////////////////////
+
+    private int find(byte[] key, int len) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, key, 0, len);
+            if (cmp == 0)
+                return mid;
+            if (cmp < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return -1;
+    }
+
+    private int firstAfter(byte[] key, int len) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, key, 0, len) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // compares name index with b[start, end) as unsigned bytes
+    private int compare(int index, byte[] b, int start, int end) {
+        int i = offsets[index];
+        int iEnd = offsets[index + 1];
+        while (i < iEnd && start < end) {
+            int x = bytes[i++] & 0xff;
+            int y = b[start++] & 0xff;
+            if (x != y)
+                return x - y;
+        }
+        return (iEnd - i) - (end - start);
+    }
+
+    private boolean isPrefix(int index, byte[] b, int start, int end) {
+        int len = offsets[index + 1] - offsets[index];
+        if (len > end - start)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (bytes[offsets[index] + i] != b[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
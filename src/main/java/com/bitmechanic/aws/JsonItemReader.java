@@ -0,0 +1,124 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a JSON array of items, as written by JsonShardWriter or gson.toJson, one item at
+ * a time, so the whole array is never held in memory.  Fields other than the item and
+ * attribute names and values are skipped.
+ */
+public class JsonItemReader implements Iterator<Item> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private JsonParser parser;
+    private Item next;
+
+    /**
+     * Opens a shard file, gunzipping it if its name ends in .gz.
+     */
+    public static JsonItemReader open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        if (file.getName().endsWith(".gz"))
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        return new JsonItemReader(in);
+    }
+
+    public JsonItemReader(InputStream in) throws IOException {
+        parser = FACTORY.createJsonParser(in);
+        if (parser.nextToken() != JsonToken.START_ARRAY)
+            throw new IOException("Expected a JSON array of items");
+    }
+
+    public boolean hasNext() {
+        if (next == null && parser != null) {
+            try {
+                next = readItem();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Unable to read item", e);
+            }
+        }
+        return next != null;
+    }
+
+    public Item next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Item item = next;
+        next = null;
+        return item;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException {
+        if (parser != null) {
+            parser.close();
+            parser = null;
+        }
+    }
+
+    private Item readItem() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY || token == null) {
+            close();
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT)
+            throw new IOException("Expected an item at " + parser.getCurrentLocation());
+
+        Item item = new Item();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            token = parser.nextToken();
+            if (field.equals("name")) {
+                item.setName(parser.getText());
+            }
+            else if (field.equals("attributes") && token == JsonToken.START_ARRAY) {
+                // Item's setter copies the list, so fill the one it holds
+                List<Attribute> attributes = item.getAttributes();
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    attributes.add(readAttribute());
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return item;
+    }
+
+    private Attribute readAttribute() throws IOException {
+        Attribute attribute = new Attribute();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("name"))
+                attribute.setName(parser.getText());
+            else if (field.equals("value"))
+                attribute.setValue(parser.getText());
+            else
+                parser.skipChildren();
+        }
+        return attribute;
+    }
+
+}
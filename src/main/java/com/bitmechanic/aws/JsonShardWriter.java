@@ -0,0 +1,193 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.google.gson.GsonBuilder;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams SimpleDB items as JSON into one or more shard files, each a complete JSON array
+ * in the same form as gson.toJson(item), optionally gzipped.
+ *
+ * Items go straight from a Jackson generator into a buffered file, with no String built
+ * per item.  When a shard reaches shardSize bytes on disk the next item starts a new one,
+ * so shards can be read back in parallel.  close() writes a manifest listing the shards,
+ * with the number of items and bytes in each.
+ *
+ * With no shard size and no compression the output is a single file named baseName.txt,
+ * which is what ImportExport has always written.
+ */
+public class JsonShardWriter {
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private File dir;
+    private String baseName;
+    private long shardSize;
+    private boolean gzip;
+
+    private Manifest manifest = new Manifest();
+    private Shard shard;
+    private CountingOutputStream counter;
+    private JsonGenerator generator;
+
+    /**
+     * shardSize is the size in bytes after which a new shard is started, or 0 for a
+     * single file.
+     */
+    public JsonShardWriter(File dir, String baseName, long shardSize, boolean gzip) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.shardSize = shardSize;
+        this.gzip = gzip;
+        manifest.gzip = gzip;
+    }
+
+    public void write(Item item) throws IOException {
+        // the generator adds the commas between items
+        if (generator == null)
+            openShard();
+        else
+            generator.writeRaw('\n');
+
+        generator.writeStartObject();
+        generator.writeStringField("name", item.getName());
+        generator.writeArrayFieldStart("attributes");
+        for (Attribute attribute : item.getAttributes()) {
+            generator.writeStartObject();
+            generator.writeStringField("name", attribute.getName());
+            generator.writeStringField("value", attribute.getValue());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+
+        shard.items++;
+        manifest.items++;
+        if (shardSize > 0 && counter.count >= shardSize)
+            closeShard();
+    }
+
+    /**
+     * Finishes the last shard and writes the manifest.  An empty export still gets one
+     * shard holding an empty array.
+     */
+    public void close() throws IOException {
+        if (generator == null && manifest.shards.isEmpty())
+            openShard();
+        if (generator != null)
+            closeShard();
+
+        FileWriter writer = new FileWriter(new File(dir, baseName + MANIFEST_SUFFIX));
+        try {
+            writer.write(new GsonBuilder().setPrettyPrinting().create().toJson(manifest));
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    public long getItemCount() {
+        return manifest.items;
+    }
+
+    private void openShard() throws IOException {
+        shard = new Shard();
+        if (shardSize == 0 && !gzip)
+            shard.file = baseName + ".txt";
+        else
+            shard.file = String.format("%s-%05d.json%s", baseName, manifest.shards.size(), gzip ? ".gz" : "");
+        manifest.shards.add(shard);
+
+        counter = new CountingOutputStream(new FileOutputStream(new File(dir, shard.file)));
+        OutputStream out = gzip ? new GZIPOutputStream(counter, BUFFER_SIZE) : counter;
+        generator = FACTORY.createJsonGenerator(new BufferedOutputStream(out, BUFFER_SIZE), JsonEncoding.UTF8);
+        generator.writeStartArray();
+        generator.writeRaw('\n');
+    }
+
+    private void closeShard() throws IOException {
+        generator.writeEndArray();
+        generator.writeRaw('\n');
+        generator.close();
+        shard.bytes = counter.count;
+        generator = null;
+    }
+
+    //////////////////////////////////
+
+    /**
+     * What close() writes to baseName.manifest.
+     */
+    public static class Manifest {
+        long items;
+        boolean gzip;
+        List<Shard> shards = new ArrayList<Shard>();
+
+        public long getItems() {
+            return items;
+        }
+
+        public boolean isGzip() {
+            return gzip;
+        }
+
+        public List<Shard> getShards() {
+            return shards;
+        }
+    }
+
+    public static class Shard {
+        String file;
+        long items;
+        long bytes;
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getItems() {
+            return items;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,496 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves large objects as byte ranges on a shared pool of part threads, so a single big
+ * object isn't limited to the speed of one connection.
+ *
+ * Each part is fetched with a ranged GET into a buffer from a BufferPool and then either
+ * uploaded as a multipart upload part or written at its offset in a local file.  Local
+ * files are uploaded the same way, a part at a time from their offset.  Parts
+ * are retried individually according to a RetryPolicy, as are the requests that start and
+ * complete a transfer, so callers shouldn't retry a whole transfer as well.  Server side
+ * copies are split into parallel CopyPart requests.
+ *
+ * An object copied in parts gets an ETag of its own, which can't be compared with the
+ * source's.  The source's ETag is kept in its user metadata instead (see isCopyOf).
+ */
+public class MultipartTransfer {
+
+    public static final long DEFAULT_THRESHOLD = 64L * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 8;
+    // user metadata holding the ETag of the object a multipart copy was made from
+    public static final String SOURCE_ETAG = "source-etag";
+
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    // parts of server side copies don't pass through this process, so they can be larger
+    private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    private ExecutorService parts;
+    private BufferPool buffers;
+    private long threshold;
+    private int partSize;
+    private RetryPolicy retry = new RetryPolicy();
+    private BandwidthLimiter bandwidth;
+
+    public MultipartTransfer() {
+        this(DEFAULT_THREADS, DEFAULT_PART_SIZE, DEFAULT_THRESHOLD);
+    }
+
+    public MultipartTransfer(int threads, int partSize, long threshold) {
+        if (partSize < MIN_PART_SIZE)
+            throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes");
+
+        final AtomicInteger count = new AtomicInteger();
+        this.parts = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "part-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.buffers = new BufferPool(threads, partSize);
+        this.partSize = partSize;
+        this.threshold = threshold;
+    }
+
+    public void setRetryPolicy(RetryPolicy retry) {
+        this.retry = retry;
+    }
+
+    /**
+     * Charges ranged GETs made without a limiter of their own against bandwidth.
+     */
+    public void setBandwidth(BandwidthLimiter bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * True if an object of this size should be moved in parts.
+     */
+    public boolean isMultipart(long size) {
+        return size > threshold;
+    }
+
+    public void shutdown() {
+        parts.shutdownNow();
+    }
+
+    /**
+     * Copies an object between buckets by downloading ranges from one client and uploading
+     * them as parts with the other.
+     */
+    public void copy(AmazonS3 from, String fromBucket, AmazonS3 to, String toBucket, String key, long size)
+            throws IOException {
+        copy(from, fromBucket, to, toBucket, key, size, null);
+    }
+
+    /**
+     * As copy(), with the downloaded bytes charged against bandwidth if it is not null.
+     */
+    public void copy(final AmazonS3 from, final String fromBucket, final AmazonS3 to, final String toBucket,
+                     final String key, long size, final BandwidthLimiter bandwidth) throws IOException {
+        ObjectMetadata source = head(from, fromBucket, key);
+        final String uploadId = initiate(to, new InitiateMultipartUploadRequest(toBucket, key, copyMetadata(source)));
+        try {
+            List<Callable<PartETag>> tasks = new ArrayList<Callable<PartETag>>();
+            final int length = partSize(size);
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += length) {
+                final int number = partNumber++;
+                final long start = offset;
+                final int partLength = (int) Math.min(length, size - offset);
+                tasks.add(new Part<PartETag>("part", key, number, partLength) {
+                    PartETag transfer(byte[] buffer) throws IOException {
+                        readRange(from, fromBucket, key, start, partLength, buffer, bandwidth);
+                        UploadPartRequest part = new UploadPartRequest();
+                        part.setBucketName(toBucket);
+                        part.setKey(key);
+                        part.setUploadId(uploadId);
+                        part.setPartNumber(number);
+                        part.setPartSize(partLength);
+                        part.setInputStream(new ByteArrayInputStream(buffer, 0, partLength));
+                        return to.uploadPart(part).getPartETag();
+                    }
+                });
+            }
+            List<PartETag> etags = runParts(tasks);
+            complete(to, new CompleteMultipartUploadRequest(toBucket, key, uploadId, etags));
+        }
+        catch (IOException e) {
+            to.abortMultipartUpload(new AbortMultipartUploadRequest(toBucket, key, uploadId));
+            throw e;
+        }
+        catch (RuntimeException e) {
+            to.abortMultipartUpload(new AbortMultipartUploadRequest(toBucket, key, uploadId));
+            throw e;
+        }
+    }
+
+    /**
+     * Copies an object inside S3 with parallel CopyPart requests made by the destination
+     * client, which must be able to read the source bucket.
+     */
+    public void serverSideCopy(final AmazonS3 to, final String fromBucket, final String toBucket,
+                               final String key, long size) throws IOException {
+        ObjectMetadata source = head(to, fromBucket, key);
+        final String uploadId = initiate(to, new InitiateMultipartUploadRequest(toBucket, key, copyMetadata(source)));
+        try {
+            List<Callable<PartETag>> tasks = new ArrayList<Callable<PartETag>>();
+            long length = Math.max(COPY_PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += length) {
+                final CopyPartRequest part = new CopyPartRequest();
+                part.setSourceBucketName(fromBucket);
+                part.setSourceKey(key);
+                part.setDestinationBucketName(toBucket);
+                part.setDestinationKey(key);
+                part.setUploadId(uploadId);
+                part.setPartNumber(partNumber++);
+                part.setFirstByte(offset);
+                part.setLastByte(Math.min(offset + length, size) - 1);
+                tasks.add(new Part<PartETag>("copyPart", key, part.getPartNumber(), 0) {
+                    @Override
+                    public PartETag call() throws Exception {
+                        // no data passes through this process, so no buffer is needed
+                        return attempt(null);
+                    }
+
+                    PartETag transfer(byte[] buffer) {
+                        CopyPartResult result = to.copyPart(part);
+                        return new PartETag(result.getPartNumber(), result.getETag());
+                    }
+                });
+            }
+            List<PartETag> etags = runParts(tasks);
+            complete(to, new CompleteMultipartUploadRequest(toBucket, key, uploadId, etags));
+        }
+        catch (IOException e) {
+            to.abortMultipartUpload(new AbortMultipartUploadRequest(toBucket, key, uploadId));
+            throw e;
+        }
+        catch (RuntimeException e) {
+            to.abortMultipartUpload(new AbortMultipartUploadRequest(toBucket, key, uploadId));
+            throw e;
+        }
+    }
+
+    /**
+     * Downloads an object to a local file with parallel ranged GETs, each written at its
+     * offset in the file.  Returns the object's metadata.
+     */
+    public ObjectMetadata download(AmazonS3 s3, String bucket, String key, long size, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return download(s3, bucket, key, size, raf.getChannel(), 0);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Downloads an object into a channel starting at position, with parallel ranged GETs
+     * written at their offsets.  Returns the object's metadata.
+     */
+    public ObjectMetadata download(final AmazonS3 s3, final String bucket, final String key,
+                                   long size, final FileChannel channel, final long position) throws IOException {
+        ObjectMetadata metadata = head(s3, bucket, key);
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        final int length = partSize(size);
+        int partNumber = 1;
+        for (long offset = 0; offset < size; offset += length) {
+            final long start = offset;
+            final int partLength = (int) Math.min(length, size - offset);
+            tasks.add(new Part<Long>("get", key, partNumber++, partLength) {
+                Long transfer(byte[] buffer) throws IOException {
+                    readRange(s3, bucket, key, start, partLength, buffer, null);
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, partLength);
+                    long to = position + start;
+                    while (bb.hasRemaining()) {
+                        to += channel.write(bb, to);
+                    }
+                    return start;
+                }
+            });
+        }
+        runParts(tasks);
+        return metadata;
+    }
+
+    /**
+     * Uploads a local file as a multipart upload, reading each part from its offset in
+     * the file.
+     */
+    public void upload(AmazonS3 s3, String bucket, String key, File file, ObjectMetadata metadata) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            upload(s3, bucket, key, raf.getChannel(), 0, file.length(), metadata);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Uploads size bytes of a channel, starting at position, as a multipart upload.
+     */
+    public void upload(final AmazonS3 s3, final String bucket, final String key, final FileChannel channel,
+                       final long position, long size, ObjectMetadata metadata) throws IOException {
+        final String uploadId = initiate(s3, new InitiateMultipartUploadRequest(bucket, key, metadata));
+        try {
+            List<Callable<PartETag>> tasks = new ArrayList<Callable<PartETag>>();
+            final int length = partSize(size);
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += length) {
+                final int number = partNumber++;
+                final long start = offset;
+                final int partLength = (int) Math.min(length, size - offset);
+                tasks.add(new Part<PartETag>("part", key, number, partLength) {
+                    PartETag transfer(byte[] buffer) throws IOException {
+                        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, partLength);
+                        long from = position + start;
+                        while (bb.hasRemaining()) {
+                            int n = channel.read(bb, from);
+                            if (n == -1)
+                                throw new IOException("Short read of " + key + " at offset " + (from - position));
+                            from += n;
+                        }
+                        UploadPartRequest part = new UploadPartRequest();
+                        part.setBucketName(bucket);
+                        part.setKey(key);
+                        part.setUploadId(uploadId);
+                        part.setPartNumber(number);
+                        part.setPartSize(partLength);
+                        part.setInputStream(new ByteArrayInputStream(buffer, 0, partLength));
+                        return s3.uploadPart(part).getPartETag();
+                    }
+                });
+            }
+            List<PartETag> etags = runParts(tasks);
+            complete(s3, new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+        }
+        catch (IOException e) {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            throw e;
+        }
+        catch (RuntimeException e) {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            throw e;
+        }
+    }
+
+    private ObjectMetadata head(final AmazonS3 s3, final String bucket, final String key) {
+        return retry.callUnchecked("head", new Callable<ObjectMetadata>() {
+            public ObjectMetadata call() {
+                return s3.getObjectMetadata(bucket, key);
+            }
+        });
+    }
+
+    private String initiate(final AmazonS3 s3, final InitiateMultipartUploadRequest request) {
+        return retry.callUnchecked("initiate", new Callable<String>() {
+            public String call() {
+                return s3.initiateMultipartUpload(request).getUploadId();
+            }
+        });
+    }
+
+    private void complete(final AmazonS3 s3, final CompleteMultipartUploadRequest request) {
+        retry.callUnchecked("complete", new Callable<Void>() {
+            public Void call() {
+                s3.completeMultipartUpload(request);
+                return null;
+            }
+        });
+    }
+
+    private int partSize(long size) {
+        return (int) Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    private void readRange(AmazonS3 s3, String bucket, String key, long offset, int length,
+                           byte[] buffer, BandwidthLimiter bandwidth) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucket, key);
+        request.setRange(offset, offset + length - 1);
+        S3Object object = s3.getObject(request);
+        InputStream is = object.getObjectContent();
+        if (bandwidth == null)
+            bandwidth = this.bandwidth;
+        if (bandwidth != null)
+            is = bandwidth.throttle(is);
+        try {
+            int read = 0;
+            while (read < length) {
+                int n = is.read(buffer, read, length - read);
+                if (n == -1)
+                    throw new IOException("Short read of " + key + " at offset " + (offset + read));
+                read += n;
+            }
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Runs the parts on the part pool and returns their results in order.  If any part
+     * fails the remaining parts are cancelled.
+     */
+    private <T> List<T> runParts(List<Callable<T>> tasks) throws IOException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (Callable<T> task : tasks) {
+            futures.add(parts.submit(task));
+        }
+
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            cancel(futures);
+            throw new InterruptedIOException("Interrupted waiting for parts");
+        }
+        catch (ExecutionException e) {
+            cancel(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException("Part transfer failed", cause);
+        }
+        return results;
+    }
+
+    private void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * True if metadata is that of an object copied in parts from an object with the given
+     * ETag and size.
+     */
+    public static boolean isCopyOf(ObjectMetadata metadata, String sourceETag, long sourceSize) {
+        String copied = metadata.getUserMetadata() == null ? null : metadata.getUserMetadata().get(SOURCE_ETAG);
+        return copied != null && metadata.getContentLength() == sourceSize
+                && unquote(copied).equals(unquote(sourceETag));
+    }
+
+    private static String unquote(String etag) {
+        return etag.length() > 1 && etag.startsWith("\"") && etag.endsWith("\"")
+                ? etag.substring(1, etag.length() - 1) : etag;
+    }
+
+    /**
+     * The metadata for a copy of source made in parts: its settable parts, and its ETag
+     * under SOURCE_ETAG.
+     */
+    static ObjectMetadata copyMetadata(ObjectMetadata source) {
+        ObjectMetadata metadata = copyableMetadata(source);
+        Map<String, String> userMetadata = new HashMap<String, String>();
+        if (source.getUserMetadata() != null)
+            userMetadata.putAll(source.getUserMetadata());
+        if (source.getETag() != null)
+            userMetadata.put(SOURCE_ETAG, unquote(source.getETag()));
+        metadata.setUserMetadata(userMetadata);
+        return metadata;
+    }
+
+    /**
+     * Returns the user settable parts of the given metadata.  The raw metadata returned
+     * by a HEAD request also carries ETag, Content-Length, etc, which can't be sent on
+     * a new upload.
+     */
+    static ObjectMetadata copyableMetadata(ObjectMetadata source) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setUserMetadata(source.getUserMetadata());
+        if (source.getContentType() != null)
+            metadata.setContentType(source.getContentType());
+        if (source.getContentEncoding() != null)
+            metadata.setContentEncoding(source.getContentEncoding());
+        if (source.getCacheControl() != null)
+            metadata.setCacheControl(source.getCacheControl());
+        if (source.getContentDisposition() != null)
+            metadata.setContentDisposition(source.getContentDisposition());
+        return metadata;
+    }
+
+    /**
+     * One part of a transfer, retried on failure.  A buffer is taken from the pool only
+     * while the part is running.
+     */
+    abstract class Part<T> implements Callable<T> {
+
+        String operation;
+        String key;
+        int number;
+        int length;
+
+        Part(String operation, String key, int number, int length) {
+            this.operation = operation;
+            this.key = key;
+            this.number = number;
+            this.length = length;
+        }
+
+        public T call() throws Exception {
+            byte[] buffer = buffers.acquire(length);
+            try {
+                return attempt(buffer);
+            }
+            finally {
+                buffers.release(buffer);
+            }
+        }
+
+        T attempt(final byte[] buffer) throws Exception {
+            return retry.call(operation, new Callable<T>() {
+                public T call() throws Exception {
+                    return transfer(buffer);
+                }
+            });
+        }
+
+        abstract T transfer(byte[] buffer) throws Exception;
+    }
+
+}
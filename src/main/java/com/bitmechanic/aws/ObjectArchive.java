@@ -0,0 +1,353 @@
+package com.bitmechanic.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exported objects packed into a few large segment files instead of three small files
+ * per object.
+ *
+ * Each segment-n.arc holds object bodies back to back, and segment-n.idx beside it has an
+ * entry per object: key, export name, offset, length and metadata (as JSON), in the order
+ * the bodies were written.  A segment is written by one thread at a time; writers take a
+ * segment from a pool, append an object and put it back, so with as many segments as
+ * writers no writer waits for another.  Segments are closed and replaced once they reach
+ * SEGMENT_SIZE.
+ *
+ * Any single object can be read back from its offset once its entry has been found in
+ * the indexes:
+ *
+ *     java -cp ... com.bitmechanic.aws.ObjectArchive dir key file
+ */
+public class ObjectArchive {
+
+    public static void main(String argv[]) throws Exception {
+        if (argv.length != 3) {
+            System.err.println("Usage: ObjectArchive <archive dir> <key> <output file>");
+            System.exit(1);
+        }
+
+        Entry entry = find(new File(argv[0]), argv[1]);
+        if (entry == null) {
+            System.err.println("Not in archive: " + argv[1]);
+            System.exit(1);
+        }
+        InputStream in = open(entry);
+        OutputStream out = new FileOutputStream(argv[2]);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+        System.out.println("Extracted " + entry.getLength() + " bytes of " + entry.getKey() + " to " + argv[2]);
+    }
+
+    ////////////////////////////////////////
+
+    public static final String SEGMENT_SUFFIX = ".arc";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final long SEGMENT_SIZE = 1024L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private File dir;
+    private BlockingQueue<Segment> free = new LinkedBlockingQueue<Segment>();
+    private AtomicInteger nextNumber = new AtomicInteger();
+
+    /**
+     * Starts an archive in dir with the given number of segments open for writing.
+     */
+    public ObjectArchive(File dir, int writers) throws IOException {
+        this.dir = dir;
+        for (int i = 0; i < writers; i++) {
+            free.add(new Segment());
+        }
+    }
+
+    /**
+     * Takes a segment for the calling thread's exclusive use, waiting if all of them are
+     * in use.  It must be given back with release().
+     */
+    public Segment acquire() throws InterruptedException {
+        return free.take();
+    }
+
+    public void release(Segment segment) throws IOException {
+        if (segment.position >= SEGMENT_SIZE) {
+            segment.close();
+            segment = new Segment();
+        }
+        free.add(segment);
+    }
+
+    /**
+     * Closes every segment.  Call once all writers have released theirs.
+     */
+    public void close() throws IOException {
+        for (Segment segment : free) {
+            segment.close();
+        }
+        free.clear();
+    }
+
+    /**
+     * A segment file and its index, open for appending.  Bodies are written at
+     * getPosition() and only become part of the archive when add() records them, so a
+     * failed write is simply overwritten by the next one.
+     */
+    public class Segment {
+
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private DataOutputStream index;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long position;
+
+        Segment() throws IOException {
+            String name = String.format("segment-%05d", nextNumber.getAndIncrement());
+            raf = new RandomAccessFile(new File(dir, name + SEGMENT_SUFFIX), "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, name + INDEX_SUFFIX)), 64 * 1024));
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Copies a stream to the segment at getPosition() through a direct buffer and
+         * returns the number of bytes written.
+         */
+        public long write(InputStream in) throws IOException {
+            ReadableByteChannel source = Channels.newChannel(in);
+            long to = position;
+            buffer.clear();
+            while (source.read(buffer) != -1 || buffer.position() > 0) {
+                buffer.flip();
+                to += channel.write(buffer, to);
+                buffer.compact();
+            }
+            return to - position;
+        }
+
+        /**
+         * Records the object whose length bytes were just written at getPosition().
+         */
+        public void add(String key, String name, long length, String metadata) throws IOException {
+            index.writeUTF(key);
+            index.writeUTF(name);
+            index.writeLong(position);
+            index.writeLong(length);
+            byte[] json = metadata.getBytes("UTF-8");
+            index.writeInt(json.length);
+            index.write(json);
+            position += length;
+        }
+
+        void close() throws IOException {
+            index.close();
+            channel.force(true);
+            raf.close();
+        }
+    }
+
+    //////////////////////////////////
+
+    /**
+     * True if dir holds archive segments.
+     */
+    public static boolean exists(File dir) {
+        return indexFiles(dir).length > 0;
+    }
+
+    public static File[] indexFiles(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(INDEX_SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Scans the indexes for a key and returns its entry, or null.
+     */
+    public static Entry find(File dir, String key) throws IOException {
+        for (File indexFile : indexFiles(dir)) {
+            IndexReader entries = new IndexReader(indexFile);
+            try {
+                while (entries.hasNext()) {
+                    Entry entry = entries.next();
+                    if (entry.key.equals(key))
+                        return entry;
+                }
+            }
+            finally {
+                entries.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads an object's body from its segment.
+     */
+    public static InputStream open(Entry entry) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(entry.segment, "r");
+        raf.seek(entry.offset);
+        final long end = entry.offset + entry.length;
+        return new BufferedInputStream(new InputStream() {
+            public int read() throws IOException {
+                return raf.getFilePointer() < end ? raf.read() : -1;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                long left = end - raf.getFilePointer();
+                if (left <= 0)
+                    return -1;
+                return raf.read(b, off, (int) Math.min(len, left));
+            }
+
+            public void close() throws IOException {
+                raf.close();
+            }
+        }, 64 * 1024);
+    }
+
+    public static class Entry {
+
+        File segment;
+        String key;
+        String name;
+        long offset;
+        long length;
+        String metadata;
+
+        public File getSegment() {
+            return segment;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getMetadata() {
+            return metadata;
+        }
+    }
+
+    /**
+     * Reads the entries of one segment's index in order.
+     */
+    public static class IndexReader implements Iterator<Entry> {
+
+        private File segment;
+        private DataInputStream in;
+        private Entry next;
+
+        public IndexReader(File indexFile) throws IOException {
+            String path = indexFile.getPath();
+            segment = new File(path.substring(0, path.length() - INDEX_SUFFIX.length()) + SEGMENT_SUFFIX);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+        }
+
+        public boolean hasNext() {
+            if (next == null && in != null) {
+                try {
+                    next = read();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Unable to read archive index for " + segment, e);
+                }
+            }
+            return next != null;
+        }
+
+        public Entry next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+
+        private Entry read() throws IOException {
+            Entry entry = new Entry();
+            try {
+                entry.key = in.readUTF();
+            }
+            catch (EOFException e) {
+                close();
+                return null;
+            }
+            entry.segment = segment;
+            entry.name = in.readUTF();
+            entry.offset = in.readLong();
+            entry.length = in.readLong();
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            entry.metadata = new String(json, "UTF-8");
+            return entry;
+        }
+    }
+
+}
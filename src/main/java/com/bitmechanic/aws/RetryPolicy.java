@@ -0,0 +1,163 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Retries AWS calls with exponential backoff and full jitter.
+ *
+ * Errors are classified as throttling (S3 SlowDown, SimpleDB ServiceUnavailable, any
+ * 503), transient (other 5xx, timeouts, network errors) or fatal (everything else, e.g.
+ * access denied or no such key).  Fatal errors are not retried.  Throttles back off from
+ * a longer base delay and, if an AdaptiveLimiter is set, shrink the number of workers
+ * allowed to run; successful calls let it grow back.
+ *
+ * Each call is named by its operation (list, get, put, ...).  If TransferMetrics are set,
+ * the latency of every attempt is recorded under that name, along with retries.
+ */
+public class RetryPolicy {
+
+    public enum ErrorType { THROTTLE, TRANSIENT, FATAL }
+
+    private static final Set<String> THROTTLE_CODES = new HashSet<String>(Arrays.asList(
+            "SlowDown", "Throttling", "ThrottlingException", "RequestLimitExceeded",
+            "ServiceUnavailable", "RequestThrottled", "TooManyRequests"));
+    private static final Set<String> TRANSIENT_CODES = new HashSet<String>(Arrays.asList(
+            "RequestTimeout", "InternalError", "InternalFailure"));
+
+    private static final long TRANSIENT_BASE_MILLIS = 100;
+    private static final long THROTTLE_BASE_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 20000;
+
+    private final Random random = new Random();
+    private AdaptiveLimiter limiter;
+    private TransferMetrics metrics;
+    private int maxAttempts = 8;
+
+    public RetryPolicy() {
+    }
+
+    public RetryPolicy(AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * A policy making a single attempt per call, with this one's limiter and metrics.  For
+     * calls that are retried at a finer grain already, such as multipart transfers whose
+     * parts are retried one by one.
+     */
+    public RetryPolicy once() {
+        RetryPolicy once = new RetryPolicy(limiter);
+        once.setMetrics(metrics);
+        once.setMaxAttempts(1);
+        return once;
+    }
+
+    /**
+     * Runs call until it succeeds, fails with a fatal error, or has been tried maxAttempts
+     * times.  The last exception is rethrown.
+     */
+    public <T> T call(String operation, Callable<T> call) throws Exception {
+        int attempt = 0;
+        while (true) {
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                if (metrics != null)
+                    metrics.recordLatency(operation, System.nanoTime() - start);
+                if (limiter != null)
+                    limiter.onSuccess();
+                return result;
+            }
+            catch (Exception e) {
+                if (metrics != null)
+                    metrics.recordLatency(operation, System.nanoTime() - start);
+                ErrorType type = classify(e);
+                if (type == ErrorType.THROTTLE && limiter != null)
+                    limiter.onThrottle();
+                if (type == ErrorType.FATAL || ++attempt >= maxAttempts)
+                    throw e;
+                if (metrics != null)
+                    metrics.retried(type == ErrorType.THROTTLE);
+                Thread.sleep(backoff(type, attempt));
+            }
+        }
+    }
+
+    /**
+     * Like call(), for callers that can't throw checked exceptions.  Checked exceptions
+     * are wrapped in an AmazonClientException.
+     */
+    public <T> T callUnchecked(String operation, Callable<T> call) {
+        try {
+            return call(operation, call);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted", e);
+        }
+        catch (Exception e) {
+            throw new AmazonClientException(e.getMessage(), e);
+        }
+    }
+
+    long backoff(ErrorType type, int attempt) {
+        long base = type == ErrorType.THROTTLE ? THROTTLE_BASE_MILLIS : TRANSIENT_BASE_MILLIS;
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, base << Math.min(attempt, 16));
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    public static ErrorType classify(Throwable e) {
+        if (e instanceof MultiObjectDeleteException) {
+            ErrorType type = ErrorType.FATAL;
+            for (MultiObjectDeleteException.DeleteError error : ((MultiObjectDeleteException) e).getErrors()) {
+                if (THROTTLE_CODES.contains(error.getCode()))
+                    return ErrorType.THROTTLE;
+                if (TRANSIENT_CODES.contains(error.getCode()))
+                    type = ErrorType.TRANSIENT;
+            }
+            return type;
+        }
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            if (ase.getStatusCode() == 503 || THROTTLE_CODES.contains(ase.getErrorCode()))
+                return ErrorType.THROTTLE;
+            if (ase.getStatusCode() >= 500 || TRANSIENT_CODES.contains(ase.getErrorCode()))
+                return ErrorType.TRANSIENT;
+            return ErrorType.FATAL;
+        }
+        if (e instanceof AmazonClientException || e instanceof IOException)
+            return ErrorType.TRANSIENT;
+        return ErrorType.FATAL;
+    }
+
+}
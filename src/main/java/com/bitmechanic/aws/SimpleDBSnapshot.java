@@ -0,0 +1,417 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary snapshot of a SimpleDB domain, several times smaller than the JSON export and
+ * readable without parsing the whole file.
+ *
+ * Items are stored in blocks of about 64KB.  Each block starts with a dictionary of the
+ * attribute names and values that occur more than once in it, so repeated strings are
+ * stored once per block and referenced by number.  Records follow: item name, attribute
+ * count, then a name and value reference per attribute, where reference 0 means the
+ * string is stored inline and n means dictionary entry n - 1.  A footer lists the offset
+ * of every record sorted by item name, so an item can be found with a binary search.
+ *
+ * Blocks can be decoded independently, which allows restoring them in parallel.  The
+ * index at the end of the file holds the lowest and highest item name, offset, length and
+ * item count of each block, followed by a trailer with the index offset, the total item
+ * count and a magic number.  Lengths and counts inside blocks are varints.
+ */
+public class SimpleDBSnapshot {
+
+    private static final int MAGIC = 0x53444231;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int TRAILER_SIZE = 20;
+
+    private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return BucketListing.compareKeys(a, b);
+        }
+    };
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long itemCount;
+    private String[] lowNames;
+    private String[] highNames;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] counts;
+
+    public static SimpleDBSnapshot open(File file) throws IOException {
+        return new SimpleDBSnapshot(file);
+    }
+
+    private SimpleDBSnapshot(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+
+        long size = channel.size();
+        if (size < TRAILER_SIZE)
+            throw new IOException("Not a SimpleDB snapshot: " + file);
+        ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        itemCount = trailer.getLong();
+        if (trailer.getInt() != MAGIC)
+            throw new IOException("Not a SimpleDB snapshot: " + file);
+
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - TRAILER_SIZE - indexOffset);
+        int blocks = readVarint(index);
+        lowNames = new String[blocks];
+        highNames = new String[blocks];
+        offsets = new long[blocks];
+        lengths = new int[blocks];
+        counts = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            lowNames[i] = readString(index);
+            highNames[i] = readString(index);
+            offsets[i] = index.getLong();
+            lengths[i] = index.getInt();
+            counts[i] = index.getInt();
+        }
+    }
+
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    public int getBlockCount() {
+        return offsets.length;
+    }
+
+    public int getBlockItemCount(int block) {
+        return counts[block];
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Returns the item with the given name, or null if the snapshot doesn't have it.
+     */
+    public Item get(String itemName) {
+        for (int i = 0; i < offsets.length; i++) {
+            if (NAME_ORDER.compare(itemName, lowNames[i]) < 0 || NAME_ORDER.compare(itemName, highNames[i]) > 0)
+                continue;
+            Item item = new Block(mapBlock(i)).find(itemName);
+            if (item != null)
+                return item;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes every item in one block.  Blocks are independent, so different threads can
+     * read different blocks at the same time.
+     */
+    public List<Item> readBlock(int block) {
+        Block b = new Block(mapBlock(block));
+        List<Item> items = new ArrayList<Item>(b.count);
+        for (int i = 0; i < b.count; i++) {
+            items.add(b.readItem());
+        }
+        return items;
+    }
+
+    /**
+     * Iterates over every item, block by block.
+     */
+    public Iterator<Item> iterator() {
+        return new Iterator<Item>() {
+            int block = 0;
+            Iterator<Item> items = Collections.<Item>emptyList().iterator();
+
+            public boolean hasNext() {
+                while (!items.hasNext() && block < offsets.length) {
+                    items = readBlock(block++).iterator();
+                }
+                return items.hasNext();
+            }
+
+            public Item next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return items.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private ByteBuffer mapBlock(int block) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offsets[block], lengths[block]);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Unable to read snapshot block " + block, e);
+        }
+    }
+
+    /**
+     * A block being decoded: its dictionary, then records read in order from the buffer's
+     * position, or looked up by name through the footer.
+     */
+    private static class Block {
+
+        ByteBuffer buffer;
+        String[] dictionary;
+        int count;
+        int footer;
+
+        Block(ByteBuffer buffer) {
+            this.buffer = buffer;
+            dictionary = new String[readVarint(buffer)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(buffer);
+            }
+            count = readVarint(buffer);
+            footer = buffer.getInt(buffer.limit() - 4);
+        }
+
+        Item readItem() {
+            String name = readString(buffer);
+            int attributes = readVarint(buffer);
+            List<Attribute> list = new ArrayList<Attribute>(attributes);
+            for (int i = 0; i < attributes; i++) {
+                String attributeName = readRef();
+                list.add(new Attribute(attributeName, readRef()));
+            }
+            return new Item(name, list);
+        }
+
+        Item find(String itemName) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                buffer.position(buffer.getInt(footer + mid * 4));
+                int cmp = NAME_ORDER.compare(readString(buffer), itemName);
+                if (cmp == 0) {
+                    buffer.position(buffer.getInt(footer + mid * 4));
+                    return readItem();
+                }
+                if (cmp < 0)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+            return null;
+        }
+
+        private String readRef() {
+            int ref = readVarint(buffer);
+            return ref == 0 ? readString(buffer) : dictionary[ref - 1];
+        }
+    }
+
+    //////////////////////////////////
+
+    /**
+     * Writes a snapshot.  Items may be added in any order, although blocks are smaller
+     * and lookups faster when they come in itemName() order.
+     */
+    public static class Writer {
+
+        private File file;
+        private DataOutputStream out;
+        private long position;
+        private long itemCount;
+        private List<Item> pending = new ArrayList<Item>();
+        private int pendingSize;
+        private ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 16 * 1024);
+        private ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private int blocks;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BLOCK_SIZE));
+        }
+
+        public void add(Item item) throws IOException {
+            pending.add(item);
+            pendingSize += item.getName().length() + 4;
+            for (Attribute attribute : item.getAttributes()) {
+                pendingSize += attribute.getName().length() + attribute.getValue().length() + 2;
+            }
+            itemCount++;
+            if (pendingSize >= BLOCK_SIZE)
+                flushBlock();
+        }
+
+        public void close() throws IOException {
+            flushBlock();
+            long indexOffset = position;
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeVarint(header, blocks);
+            header.writeTo(out);
+            index.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(itemCount);
+            out.writeInt(MAGIC);
+            out.close();
+        }
+
+        private void flushBlock() throws IOException {
+            if (pending.isEmpty())
+                return;
+
+            Map<String, Integer> frequency = new HashMap<String, Integer>();
+            for (Item item : pending) {
+                for (Attribute attribute : item.getAttributes()) {
+                    increment(frequency, attribute.getName());
+                    increment(frequency, attribute.getValue());
+                }
+            }
+            Map<String, Integer> dictionary = new HashMap<String, Integer>();
+            List<String> entries = new ArrayList<String>();
+            for (Item item : pending) {
+                for (Attribute attribute : item.getAttributes()) {
+                    addEntry(frequency, dictionary, entries, attribute.getName());
+                    addEntry(frequency, dictionary, entries, attribute.getValue());
+                }
+            }
+
+            block.reset();
+            writeVarint(block, entries.size());
+            for (String entry : entries) {
+                writeString(block, entry);
+            }
+            writeVarint(block, pending.size());
+
+            final List<String> names = new ArrayList<String>(pending.size());
+            final int[] recordOffsets = new int[pending.size()];
+            for (int i = 0; i < pending.size(); i++) {
+                Item item = pending.get(i);
+                names.add(item.getName());
+                recordOffsets[i] = block.size();
+                writeString(block, item.getName());
+                writeVarint(block, item.getAttributes().size());
+                for (Attribute attribute : item.getAttributes()) {
+                    writeRef(dictionary, attribute.getName());
+                    writeRef(dictionary, attribute.getValue());
+                }
+            }
+
+            List<Integer> order = new ArrayList<Integer>(pending.size());
+            for (int i = 0; i < pending.size(); i++) {
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return NAME_ORDER.compare(names.get(a), names.get(b));
+                }
+            });
+            int footer = block.size();
+            DataOutputStream blockOut = new DataOutputStream(block);
+            for (int i : order) {
+                blockOut.writeInt(recordOffsets[i]);
+            }
+            blockOut.writeInt(footer);
+            blockOut.flush();
+
+            DataOutputStream indexOut = new DataOutputStream(index);
+            writeString(index, names.get(order.get(0)));
+            writeString(index, names.get(order.get(order.size() - 1)));
+            indexOut.writeLong(position);
+            indexOut.writeInt(block.size());
+            indexOut.writeInt(pending.size());
+            indexOut.flush();
+
+            block.writeTo(out);
+            position += block.size();
+            blocks++;
+            pending.clear();
+            pendingSize = 0;
+        }
+
+        private void writeRef(Map<String, Integer> dictionary, String s) throws IOException {
+            Integer id = dictionary.get(s);
+            if (id == null) {
+                writeVarint(block, 0);
+                writeString(block, s);
+            }
+            else {
+                writeVarint(block, id + 1);
+            }
+        }
+
+        private static void increment(Map<String, Integer> frequency, String s) {
+            Integer n = frequency.get(s);
+            frequency.put(s, n == null ? 1 : n + 1);
+        }
+
+        private static void addEntry(Map<String, Integer> frequency, Map<String, Integer> dictionary,
+                                     List<String> entries, String s) {
+            if (frequency.get(s) > 1 && !dictionary.containsKey(s)) {
+                dictionary.put(s, entries.size());
+                entries.add(s);
+            }
+        }
+    }
+
+    //////////////////////////////////
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readVarint(buffer)];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -1,18 +1,24 @@
 package com.bitmechanic.aws;
 
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by James Cooper <james@bitmechanic.com>
@@ -21,9 +27,77 @@ import java.util.Map;
 public class SyncBuckets {
 
     public static void main(String argv[]) throws Exception {
+        int listThreads = 4;
+        int threads = 10;
+        int partThreads = MultipartTransfer.DEFAULT_THREADS;
+        boolean virtualThreads = false;
+        int connections = 0;
+        int socketBufferKB = 0;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("--list-threads"))
+                listThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--part-threads"))
+                partThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--virtual-threads"))
+                virtualThreads = true;
+            else if (argv[i].equals("--connections"))
+                connections = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--socket-buffer"))
+                socketBufferKB = Integer.parseInt(argv[++i]);
+        }
+
+        // copy workers, a listing of each bucket per list thread, and part transfers
+        TransferEngine engine = new TransferEngine(threads + listThreads * 2 + partThreads);
+        if (virtualThreads)
+            engine.setVirtualThreads(threads);
+        if (connections > 0)
+            engine.setConnections(connections);
+        engine.setSocketBufferSize(socketBufferKB * 1024);
+
+        try {
+            SyncBuckets sb;
+            try {
+                sb = configure(engine, argv);
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                usage();
+                return;
+            }
+            sb.run();
+        }
+        finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Creates a sync with engine and sets it up from command line arguments, ignoring
+     * the ones that configure the engine.
+     */
+    public static SyncBuckets configure(TransferEngine engine, String argv[]) {
         String from = null;
         String to = null;
         boolean verbose = false;
+        boolean serverSideCopy = false;
+        int listThreads = 4;
+        int threads = 10;
+        int partThreads = MultipartTransfer.DEFAULT_THREADS;
+        int partSizeMB = MultipartTransfer.DEFAULT_PART_SIZE / MB;
+        long thresholdMB = MultipartTransfer.DEFAULT_THRESHOLD / MB;
+        String manifest = null;
+        boolean fullListing = false;
+        int reconcileEvery = 0;
+        int progressSeconds = 10;
+        String metricsJson = null;
+        String checkpoint = null;
+        boolean resume = false;
+        long largeObjectMB = DEFAULT_LARGE_OBJECT_SIZE / MB;
+        int largeThreads = 0;
+        int smallBandwidthMB = 0;
+        int largeBandwidthMB = 0;
         for (int i = 0; i < argv.length; i++) {
             if (argv[i].equals("--from"))
                 from = argv[++i];
@@ -31,37 +105,247 @@ public class SyncBuckets {
                 to = argv[++i];
             else if (argv[i].equals("--verbose"))
                 verbose = true;
+            else if (argv[i].equals("--server-side-copy"))
+                serverSideCopy = true;
+            else if (argv[i].equals("--list-threads"))
+                listThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--threads"))
+                threads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--part-threads"))
+                partThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--part-size"))
+                partSizeMB = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--multipart-threshold"))
+                thresholdMB = Long.parseLong(argv[++i]);
+            else if (argv[i].equals("--large-object"))
+                largeObjectMB = Long.parseLong(argv[++i]);
+            else if (argv[i].equals("--large-threads"))
+                largeThreads = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--small-bandwidth"))
+                smallBandwidthMB = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--large-bandwidth"))
+                largeBandwidthMB = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--manifest"))
+                manifest = argv[++i];
+            else if (argv[i].equals("--full-listing"))
+                fullListing = true;
+            else if (argv[i].equals("--reconcile-every"))
+                reconcileEvery = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--progress"))
+                progressSeconds = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("--metrics-json"))
+                metricsJson = argv[++i];
+            else if (argv[i].equals("--checkpoint"))
+                checkpoint = argv[++i];
+            else if (argv[i].equals("--resume"))
+                resume = true;
         }
-
         if (from == null || to == null)
-            usage();
-
-        SyncBuckets sb = new SyncBuckets(from, to, verbose);
-        sb.run();
+            throw new IllegalArgumentException("--from and --to are required");
+        if (resume && checkpoint == null)
+            throw new IllegalArgumentException("--resume requires --checkpoint");
+
+        SyncBuckets sb = new SyncBuckets(engine, from, to, verbose);
+        sb.setServerSideCopy(serverSideCopy);
+        sb.setListThreads(listThreads);
+        sb.setThreads(threads);
+        sb.setTransfer(new MultipartTransfer(partThreads, partSizeMB * MB, thresholdMB * MB));
+        sb.setLanes(largeObjectMB * MB, largeThreads);
+        sb.setBandwidth((long) smallBandwidthMB * MB, (long) largeBandwidthMB * MB);
+        if (manifest != null)
+            sb.setManifest(new File(manifest), fullListing, reconcileEvery);
+        sb.setProgress(progressSeconds, metricsJson == null ? null : new File(metricsJson));
+        if (checkpoint != null)
+            sb.setCheckpoint(new File(checkpoint), resume);
+        return sb;
     }
 
     private static void usage() {
-        System.err.println("Usage: java SyncBuckets [--verbose] --from accessKey:secretKey:bucketName --to accessKey:secretKey:bucketName");
+        System.err.println("Usage: java SyncBuckets [--verbose] [--server-side-copy] [--list-threads n] [--threads n] [--part-threads n] [--part-size mb] [--multipart-threshold mb] [--large-object mb] [--large-threads n] [--small-bandwidth mb/s] [--large-bandwidth mb/s] [--manifest file [--full-listing] [--reconcile-every n]] [--progress seconds] [--metrics-json file] [--checkpoint file [--resume]] [--virtual-threads] [--connections n] [--socket-buffer kb] --from accessKey:secretKey:bucketName --to accessKey:secretKey:bucketName");
         System.exit(1);
     }
 
     ////////
 
+    private static final int MB = 1024 * 1024;
+    // largest object S3 will copy with a single CopyObject request
+    private static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final int SHARDS_PER_LIST_THREAD = 4;
+    private static final int QUEUED_TASKS_PER_THREAD = 100;
+    public static final long DEFAULT_LARGE_OBJECT_SIZE = 8L * 1024 * 1024;
+    // most keys a multi-object delete request accepts
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final long DELETE_FLUSH_MILLIS = 2000;
+
+    private TransferEngine engine;
+    // set if the engine was created here, and so is shut down by run()
+    private boolean ownsEngine;
     private S3Config fromS3;
     private S3Config toS3;
     private boolean verbose;
+    private boolean serverSideCopy;
+    private int listThreads = 4;
+    private int threads = 10;
+    private MultipartTransfer transfer;
+    private long largeObjectSize = DEFAULT_LARGE_OBJECT_SIZE;
+    private int largeThreads;
+    private BandwidthLimiter smallBandwidth;
+    private BandwidthLimiter largeBandwidth;
+    private File manifestFile;
+    private boolean fullListing;
+    private int reconcileEvery;
+    private int progressSeconds;
+    private File metricsJson;
+    private File checkpointFile;
+    private boolean resume;
+    private CheckpointJournal journal;
+
+    private AtomicLong copyCount = new AtomicLong();
+    private AtomicLong deleteCount = new AtomicLong();
+    private AtomicLong toCount = new AtomicLong();
+    private AtomicLong streamedCount = new AtomicLong();
+    private FailureReport failures = new FailureReport();
+    private RetryPolicy retry = new RetryPolicy();
+    private TransferMetrics metrics = new TransferMetrics("sync");
 
     public SyncBuckets(String from, String to, boolean verbose) {
+        this(new TransferEngine(), from, to, verbose);
+        this.ownsEngine = true;
+    }
+
+    /**
+     * Creates the clients for from and to with engine, which also runs the workers.
+     */
+    public SyncBuckets(TransferEngine engine, String from, String to, boolean verbose) {
+        this.engine  = engine;
         this.fromS3  = createS3(from);
         this.toS3    = createS3(to);
         this.verbose = verbose;
+        if (engine.getJobName() != null)
+            metrics.setName(engine.getJobName());
+    }
+
+    public SyncBuckets(AmazonS3 fromClient, String fromBucket, AmazonS3 toClient, String toBucket, boolean verbose) {
+        this.engine  = new TransferEngine();
+        this.ownsEngine = true;
+        this.fromS3  = s3Config(fromClient, fromBucket);
+        this.toS3    = s3Config(toClient, toBucket);
+        this.verbose = verbose;
+    }
+
+    /**
+     * If true, objects are copied with S3 CopyObject using the destination credentials, so
+     * the data never leaves S3.  This requires the --to account to have read access to the
+     * --from bucket.  Objects that can't be copied server side due to access denied errors
+     * are streamed through this process instead.
+     */
+    public void setServerSideCopy(boolean serverSideCopy) {
+        this.serverSideCopy = serverSideCopy;
+    }
+
+    /**
+     * Number of threads listing the buckets.  With more than one, the key space is split
+     * into shards (see BucketSharder) and each shard of the two buckets is listed and
+     * merged by one of these threads.
+     */
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    /**
+     * Used for objects large enough to be copied in parts, and shut down by run().  One
+     * with the default settings is used if none is set.
+     */
+    public void setTransfer(MultipartTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    /**
+     * Objects of at least largeObjectSize bytes are copied biggest first, on at most
+     * largeThreads of the workers while smaller objects are waiting (half of them if 0).
+     * See TransferLanes.
+     */
+    public void setLanes(long largeObjectSize, int largeThreads) {
+        this.largeObjectSize = largeObjectSize;
+        this.largeThreads = largeThreads;
+    }
+
+    /**
+     * Caps the bytes per second streamed for small and large objects.  0 leaves a lane
+     * limited only by the engine's bandwidth, if it has one.  Server side copies don't
+     * pass through this process and aren't counted.
+     */
+    public void setBandwidth(long smallBytesPerSecond, long largeBytesPerSecond) {
+        BandwidthLimiter total = engine.getBandwidth();
+        this.smallBandwidth = smallBytesPerSecond > 0 ? new BandwidthLimiter(smallBytesPerSecond, total) : null;
+        this.largeBandwidth = largeBytesPerSecond > 0 ? new BandwidthLimiter(largeBytesPerSecond, total) : null;
+    }
+
+    /**
+     * Keeps the state of the source bucket as of the last successful run in a local
+     * manifest.  Runs with a manifest compare the source listing against it rather than
+     * listing the destination, so only changed keys touch the destination bucket.
+     *
+     * The destination is listed in full if the manifest doesn't exist yet, if fullListing
+     * is true, or if reconcileEvery is positive and that many runs have used the manifest
+     * since the last full listing.  This picks up changes made to the destination bucket
+     * by anything other than this tool.
+     */
+    public void setManifest(File manifestFile, boolean fullListing, int reconcileEvery) {
+        this.manifestFile = manifestFile;
+        this.fullListing = fullListing;
+        this.reconcileEvery = reconcileEvery;
+    }
+
+    /**
+     * Prints a progress line every progressSeconds (never if 0), and writes a JSON summary
+     * of the run's metrics to metricsJson if it is not null.
+     */
+    public void setProgress(int progressSeconds, File metricsJson) {
+        this.progressSeconds = progressSeconds;
+        this.metricsJson = metricsJson;
+    }
+
+    /**
+     * Records the shards and how far each has been synced in a CheckpointJournal.  If
+     * resume is true and the file exists, the run picks up where the one that wrote it
+     * stopped: finished shards are skipped and the others are listed from their mark.
+     * With a manifest every shard is still listed, so the manifest stays complete, but
+     * nothing is copied or deleted up to the mark.  The file is removed once a run
+     * finishes without failures.
+     */
+    public void setCheckpoint(File checkpointFile, boolean resume) {
+        this.checkpointFile = checkpointFile;
+        this.resume = resume;
+    }
+
+    /**
+     * Number of worker threads copying and deleting objects.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
     }
 
     public void run() throws Exception {
+        if (transfer == null)
+            transfer = new MultipartTransfer();
+        try {
+            sync();
+        }
+        finally {
+            transfer.shutdown();
+            if (ownsEngine)
+                engine.shutdown();
+        }
+    }
+
+    private void sync() throws Exception {
 
         long start = System.currentTimeMillis();
-        long copyCount = 0;
-        long deleteCount = 0;
 
         try {
             toS3.client.getBucketLocation(toS3.bucket);
@@ -75,71 +359,302 @@ public class SyncBuckets {
             }
         }
 
-        Map<String,String> keysToDelete = new HashMap<String,String>();
+        SyncManifest previous = manifestFile == null ? null : SyncManifest.open(manifestFile);
+        int runsSinceFullListing = 0;
+        if (previous != null) {
+            runsSinceFullListing = previous.getRunsSinceFullListing() + 1;
+            if (fullListing || (reconcileEvery > 0 && runsSinceFullListing >= reconcileEvery)) {
+                previous.close();
+                previous = null;
+                runsSinceFullListing = 0;
+            }
+        }
+        final SyncManifest manifest = previous;
+        if (verbose && manifestFile != null)
+            System.out.println(manifest == null ? "Listing destination in full" : "Comparing against manifest: " + manifestFile);
+
+        final TransferLanes lanes = new TransferLanes(largeObjectSize, largeThreads > 0 ? largeThreads : threads / 2);
+        final TaskExecutor executor = engine.executor("sync", threads, threads * QUEUED_TASKS_PER_THREAD, lanes);
+        retry = new RetryPolicy(new AdaptiveLimiter(threads));
+        retry.setMetrics(metrics);
+        failures.setMetrics(metrics);
+        executor.setLimiter(retry.getLimiter());
+        transfer.setRetryPolicy(retry);
+        metrics.watch(executor);
+        metrics.start(System.out, progressSeconds);
+        final DeleteBatcher deletes = new DeleteBatcher(executor);
+
+        journal = checkpointFile == null ? null
+                : CheckpointJournal.open(checkpointFile, "sync " + fromS3.bucket + " " + toS3.bucket, resume);
+        final List<String[]> shards;
+        if (journal != null && journal.getPlan() != null) {
+            shards = journal.getPlan();
+            System.out.println("Resuming from checkpoint: " + checkpointFile);
+        }
+        else {
+            BucketSharder sharder = new BucketSharder(fromS3.client, fromS3.bucket);
+            sharder.setRetryPolicy(retry);
+            shards = sharder.shards(listThreads * SHARDS_PER_LIST_THREAD);
+            if (journal != null)
+                journal.setPlan(shards);
+        }
+        final List<SyncManifest.Segment> segments = new ArrayList<SyncManifest.Segment>();
+        if (manifestFile != null) {
+            File dir = manifestFile.getAbsoluteFile().getParentFile();
+            for (int i = 0; i < shards.size(); i++) {
+                segments.add(new SyncManifest.Segment(dir));
+            }
+        }
+        if (verbose)
+            System.out.println("Listing " + shards.size() + " shards with " + listThreads + " threads");
+
+        final AtomicInteger nextShard = new AtomicInteger();
+        final AtomicReference<Exception> listError = new AtomicReference<Exception>();
+        List<Thread> listers = new ArrayList<Thread>();
+        for (int i = 0; i < listThreads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    int i;
+                    while (listError.get() == null && (i = nextShard.getAndIncrement()) < shards.size()) {
+                        String[] shard = shards.get(i);
+                        CheckpointJournal.Range range = journal == null ? null : journal.range(i);
+                        String after = shard[0];
+                        if (range != null && segments.isEmpty()) {
+                            // without a manifest to fill in, skip what the last run finished
+                            if (range.isDone())
+                                continue;
+                            if (range.getMark() != null)
+                                after = range.getMark();
+                        }
+                        try {
+                            Iterator<S3ObjectSummary> to;
+                            if (manifest == null)
+                                to = new BucketListing(toS3.client, toS3.bucket, after, shard[1])
+                                        .setRetryPolicy(retry).start();
+                            else
+                                to = manifest.iterator(after, shard[1]);
+                            syncShard(executor, deletes, after, shard[1], to,
+                                      segments.isEmpty() ? null : segments.get(i), range);
+                        }
+                        catch (Exception e) {
+                            listError.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+            t.start();
+            listers.add(t);
+        }
 
-        ListObjectsRequest request = new ListObjectsRequest();
-        request.setBucketName(toS3.bucket);
-        ObjectListing listing = null;
-        do {
-            if (listing != null)
-                request.setMarker(listing.getNextMarker());
+        for (Thread t : listers) {
+            t.join();
+        }
+        metrics.scheduleComplete();
+
+        deletes.close();
+        executor.awaitCompletion();
+        executor.shutdown();
+        if (manifest != null)
+            manifest.close();
+
+        metrics.stop(metricsJson);
+        if (journal != null) {
+            if (listError.get() == null && failures.size() == 0) {
+                journal.delete();
+            }
+            else {
+                journal.close();
+                System.out.println("Progress saved to " + checkpointFile + ", run again with --resume to continue");
+            }
+        }
+        if (listError.get() != null) {
+            for (SyncManifest.Segment segment : segments) {
+                segment.discard();
+            }
+            throw listError.get();
+        }
 
-            listing = toS3.client.listObjects(request);
-            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
-                keysToDelete.put(summary.getKey(), summary.getETag());
+        if (manifestFile != null) {
+            if (failures.size() == 0) {
+                for (SyncManifest.Segment segment : segments) {
+                    segment.close();
+                }
+                SyncManifest.write(manifestFile, segments, runsSinceFullListing);
+            }
+            else {
+                for (SyncManifest.Segment segment : segments) {
+                    segment.discard();
+                }
+                System.out.println("Not updating manifest, some objects failed to sync");
             }
         }
-        while (listing.isTruncated());
 
         if (verbose) {
-            System.out.println("Objects in destination: " + keysToDelete.size());
+            System.out.println("Objects in destination: " + toCount.get());
         }
 
-        TaskQueue queue = new TaskQueue();
-        for (int i = 0; i < 10; i++) {
-            WorkerThread t = new WorkerThread(queue);
-            t.start();
-        }
+        long elapsed = System.currentTimeMillis() - start;
+        if (verbose)
+            System.out.println(metrics.progressLine());
+        System.out.println("Elapsed time: " + (elapsed / 1000) + " seconds");
+        System.out.println("      Copied: " + copyCount.get());
+        System.out.println("     Deleted: " + deleteCount.get());
+        if (serverSideCopy)
+            System.out.println("    Streamed: " + streamedCount.get());
+        System.out.println("      Failed: " + failures.size());
+        failures.print(System.out);
+    }
 
-        request = new ListObjectsRequest();
-        request.setBucketName(fromS3.bucket);
-        listing = null;
-        do {
-            if (listing != null)
-                request.setMarker(listing.getNextMarker());
+    /**
+     * Lists the source keys in (after, upTo] and merges them in key order with the
+     * destination listing or manifest for the same range, queueing copy and delete tasks
+     * as the merge advances.  Every source object is added to segment, if not null.
+     * Progress is recorded in range, if not null, and keys it has already synced are
+     * passed over.
+     */
+    private void syncShard(TaskExecutor executor, DeleteBatcher deletes, String after, String upTo,
+                           Iterator<S3ObjectSummary> toListing, SyncManifest.Segment segment,
+                           CheckpointJournal.Range range)
+            throws InterruptedException, IOException {
+        boolean skipAll = range != null && range.isDone();
+        String skipUpTo = range == null ? null : range.getMark();
+        BucketListing fromListing = new BucketListing(fromS3.client, fromS3.bucket, after, upTo)
+                .setRetryPolicy(retry).start();
+        try {
+            S3ObjectSummary fromSummary = fromListing.hasNext() ? fromListing.next() : null;
+            S3ObjectSummary toSummary = toListing.hasNext() ? toListing.next() : null;
+            while (fromSummary != null || toSummary != null) {
+                int cmp;
+                if (fromSummary == null)
+                    cmp = 1;
+                else if (toSummary == null)
+                    cmp = -1;
+                else
+                    cmp = BucketListing.compareKeys(fromSummary.getKey(), toSummary.getKey());
+                String key = cmp <= 0 ? fromSummary.getKey() : toSummary.getKey();
+
+                boolean synced = skipAll || (skipUpTo != null && BucketListing.compareKeys(key, skipUpTo) <= 0);
+                if (synced) {
+                    // synced by the run being resumed, and behind the mark it left
+                }
+                else if (cmp < 0) {
+                    copy(executor, fromSummary, range);
+                }
+                else if (cmp > 0) {
+                    deletes.add(toSummary.getKey(), range == null ? null : range.add(key));
+                    deleteCount.incrementAndGet();
+                }
+                else if (!sameObject(fromSummary, toSummary)) {
+                    copy(executor, fromSummary, range);
+                }
+                if (range != null && !synced)
+                    range.reached(key);
 
-            listing = fromS3.client.listObjects(request);
-            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
-                String toEtag = keysToDelete.get(summary.getKey());
-                if (toEtag == null || !summary.getETag().equals(toEtag)) {
-                    queue.enqueue(new CopyTask(summary.getKey()));
-                    copyCount++;
+                if (cmp <= 0) {
+                    if (segment != null)
+                        segment.add(fromSummary);
+                    fromSummary = fromListing.hasNext() ? fromListing.next() : null;
+                }
+                if (cmp >= 0) {
+                    toSummary = toListing.hasNext() ? toListing.next() : null;
+                    toCount.incrementAndGet();
                 }
-                keysToDelete.remove(summary.getKey());
             }
         }
-        while (listing.isTruncated());
-
-        deleteCount = keysToDelete.size();
-        for (String key : keysToDelete.keySet()) {
-            queue.enqueue(new DeleteTask(key));
+        finally {
+            fromListing.close();
+            if (toListing instanceof BucketListing)
+                ((BucketListing) toListing).close();
         }
+        if (range != null)
+            range.finish();
+    }
+
+    /**
+     * True if the destination object to holds the same data as from.  A copy made in parts
+     * has an ETag of its own, so when to's is a multipart ETag and the sizes match, the
+     * source ETag stored in its metadata is read with a HEAD request and compared instead.
+     */
+    private boolean sameObject(S3ObjectSummary from, final S3ObjectSummary to) {
+        if (from.getETag().equals(to.getETag()))
+            return true;
+        if (from.getSize() != to.getSize() || to.getETag().indexOf('-') < 0)
+            return false;
+        ObjectMetadata metadata = retry.callUnchecked("head", new Callable<ObjectMetadata>() {
+            public ObjectMetadata call() {
+                return toS3.client.getObjectMetadata(toS3.bucket, to.getKey());
+            }
+        });
+        return MultipartTransfer.isCopyOf(metadata, from.getETag(), from.getSize());
+    }
+
+    private void copy(TaskExecutor executor, S3ObjectSummary summary, CheckpointJournal.Range range)
+            throws InterruptedException {
+        metrics.scheduled(1, summary.getSize());
+        CheckpointJournal.Ticket ticket = range == null ? null : range.add(summary.getKey());
+        executor.submit(new CopyTask(summary.getKey(), summary.getSize(), ticket));
+        copyCount.incrementAndGet();
+    }
 
-        while (queue.size() > 0) {
-            Thread.sleep(100);
+    private void copyObject(String key, long size) throws Exception {
+        if (serverSideCopy) {
+            try {
+                serverSideCopyObject(key, size);
+                return;
+            }
+            catch (AmazonServiceException e) {
+                if (e.getStatusCode() != 403)
+                    throw e;
+                if (verbose)
+                    System.out.println("Access denied for server side copy, streaming: " + key);
+            }
+            streamedCount.incrementAndGet();
         }
+        BandwidthLimiter bandwidth = size >= largeObjectSize ? largeBandwidth : smallBandwidth;
+        if (bandwidth == null)
+            bandwidth = engine.getBandwidth();
+        if (transfer.isMultipart(size))
+            transfer.copy(fromS3.client, fromS3.bucket, toS3.client, toS3.bucket, key, size, bandwidth);
+        else
+            streamObject(key, bandwidth);
+    }
 
-        long elapsed = System.currentTimeMillis() - start;
-        System.out.println("Elapsed time: " + (elapsed / 1000) + " seconds");
-        System.out.println("      Copied: " + copyCount);
-        System.out.println("     Deleted: " + deleteCount);
+    /**
+     * True if copyObject may move an object of this size in parts.  Its CopyTask is then
+     * tried once, since MultipartTransfer retries each request it makes.
+     */
+    private boolean copiedInParts(long size) {
+        return transfer.isMultipart(size) || (serverSideCopy && size > MAX_COPY_OBJECT_SIZE);
     }
 
-    private void copyObject(String key) throws IOException {
+    private void serverSideCopyObject(final String key, long size) throws Exception {
+        if (verbose)
+            System.out.println("Copying (server side): " + key);
+        if (size > MAX_COPY_OBJECT_SIZE) {
+            transfer.serverSideCopy(toS3.client, fromS3.bucket, toS3.bucket, key, size);
+        }
+        else if (copiedInParts(size)) {
+            // the task isn't retried, so retry the request itself
+            retry.call("copyObject", new Callable<Void>() {
+                public Void call() {
+                    toS3.client.copyObject(new CopyObjectRequest(fromS3.bucket, key, toS3.bucket, key));
+                    return null;
+                }
+            });
+        }
+        else {
+            toS3.client.copyObject(new CopyObjectRequest(fromS3.bucket, key, toS3.bucket, key));
+        }
+    }
+
+    private void streamObject(String key, BandwidthLimiter bandwidth) throws IOException {
         if (verbose)
             System.out.println("Copying: " + key);
         S3Object object = fromS3.client.getObject(fromS3.bucket, key);
-        toS3.client.putObject(toS3.bucket, key, object.getObjectContent(), object.getObjectMetadata());
+        InputStream in = object.getObjectContent();
+        if (bandwidth != null)
+            in = bandwidth.throttle(in);
+        toS3.client.putObject(toS3.bucket, key, in, object.getObjectMetadata());
         object.getObjectContent().close();
     }
 
@@ -149,123 +664,238 @@ public class SyncBuckets {
             throw new IllegalArgumentException("Invalid s3 creds: " + s3Creds + " should be  accessKey:secretKey:bucket");
         }
         else {
-            AmazonS3Client s3 = new AmazonS3Client(new BasicAWSCredentials(parts[0], parts[1]));
-            S3Config config = new S3Config();
-            config.client = s3;
-            config.bucket = parts[2];
-            return config;
+            return s3Config(engine.s3(parts[0], parts[1]), parts[2]);
         }
     }
 
+    private S3Config s3Config(AmazonS3 client, String bucket) {
+        S3Config config = new S3Config();
+        config.client = client;
+        config.bucket = bucket;
+        return config;
+    }
+
     class S3Config {
-        AmazonS3Client client;
+        AmazonS3 client;
         String bucket;
     }
 
     abstract class BaseTask implements Runnable {
         
+        String operation;
         String key;
 
-        BaseTask(String key) {
+        BaseTask(String operation, String key) {
+            this.operation = operation;
             this.key = key;
         }
 
         @Override
         public void run() {
-            Exception ex = null;
-            int retry = 0;
-            boolean success = false;
-            while (retry < 3 && !success) {
-                try {
-                    execTask();
-                    success = true;
-                }
-                catch (Exception e) {
-                    ex = e;
-                    retry++;
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
+            try {
+                retryPolicy().call(operation, new Callable<Void>() {
+                    public Void call() throws Exception {
+                        execTask();
+                        return null;
                     }
-                }
+                });
             }
-
-            if (!success && ex != null) {
-                ex.printStackTrace();
+            catch (Exception e) {
+                failed(e);
             }
         }
 
+        void failed(Exception ex) {
+            failures.add(key, ex);
+        }
+
+        RetryPolicy retryPolicy() {
+            return retry;
+        }
+
         abstract void execTask() throws Exception;
     }
 
-    class DeleteTask extends BaseTask {
+    /**
+     * Deletes up to DELETE_BATCH_SIZE keys with one multi-object delete request.  When
+     * some keys in a batch fail, only those are retried.
+     */
+    class DeleteBatchTask extends BaseTask {
 
-        DeleteTask(String key) {
-            super(key);
+        List<String> keys;
+        List<CheckpointJournal.Ticket> tickets;
+
+        DeleteBatchTask(List<String> keys, List<CheckpointJournal.Ticket> tickets) {
+            super("delete", keys.get(0));
+            this.keys = keys;
+            this.tickets = tickets;
         }
 
         @Override
         void execTask() throws Exception {
-            toS3.client.deleteObject(toS3.bucket, key);
-        }
-    }
-
-    class CopyTask extends BaseTask {
+            if (verbose)
+                System.out.println("Deleting " + keys.size() + " keys starting at: " + keys.get(0));
 
-        CopyTask(String key) {
-            super(key);
+            List<DeleteObjectsRequest.KeyVersion> versions = new ArrayList<DeleteObjectsRequest.KeyVersion>();
+            for (String k : keys) {
+                versions.add(new DeleteObjectsRequest.KeyVersion(k));
+            }
+            DeleteObjectsRequest request = new DeleteObjectsRequest(toS3.bucket);
+            request.setKeys(versions);
+            request.setQuiet(true);
+            try {
+                toS3.client.deleteObjects(request);
+                metrics.completed(keys.size(), 0);
+                for (CheckpointJournal.Ticket ticket : tickets) {
+                    if (ticket != null)
+                        ticket.complete();
+                }
+            }
+            catch (MultiObjectDeleteException e) {
+                List<String> failed = new ArrayList<String>();
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                    failed.add(error.getKey());
+                }
+                // the rest were deleted, and only the failed keys are retried
+                metrics.completed(keys.size() - failed.size(), 0);
+                keys = failed;
+                throw e;
+            }
         }
 
         @Override
-        void execTask() throws Exception {
-            copyObject(key);
+        void failed(Exception ex) {
+            for (String k : keys) {
+                failures.add(k, ex);
+            }
         }
     }
 
-    class WorkerThread extends Thread {
-
-        TaskQueue queue;
+    /**
+     * Collects keys to delete into batches.  A batch is queued once it is full, or once
+     * its oldest key has waited DELETE_FLUSH_MILLIS, so deletes run alongside the copies
+     * rather than piling up until the listing is done.
+     */
+    class DeleteBatcher {
+
+        TaskExecutor executor;
+        List<String> batch = new ArrayList<String>();
+        List<CheckpointJournal.Ticket> batchTickets = new ArrayList<CheckpointJournal.Ticket>();
+        long batchStarted;
+        Thread flusher;
+
+        DeleteBatcher(TaskExecutor executor) {
+            this.executor = executor;
+            this.flusher = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(DELETE_FLUSH_MILLIS / 2);
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+
+                        DeleteBatchTask task = null;
+                        synchronized (DeleteBatcher.this) {
+                            if (!batch.isEmpty() && System.currentTimeMillis() - batchStarted >= DELETE_FLUSH_MILLIS)
+                                task = takeBatch();
+                        }
+                        if (task != null) {
+                            try {
+                                DeleteBatcher.this.executor.submit(task);
+                            }
+                            catch (InterruptedException e) {
+                                // closed while waiting for room, leave the keys for close()
+                                synchronized (DeleteBatcher.this) {
+                                    batch.addAll(task.keys);
+                                    batchTickets.addAll(task.tickets);
+                                }
+                                return;
+                            }
+                        }
+                    }
+                }
+            }, "delete-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
 
-        WorkerThread(TaskQueue queue) {
-            setDaemon(true);
-            this.queue = queue;
+        /**
+         * Adds a key to the current batch.  ticket, if not null, is completed once the
+         * key has been deleted.
+         */
+        void add(String key, CheckpointJournal.Ticket ticket) throws InterruptedException {
+            DeleteBatchTask task = null;
+            synchronized (this) {
+                if (batch.isEmpty())
+                    batchStarted = System.currentTimeMillis();
+                batch.add(key);
+                batchTickets.add(ticket);
+                metrics.scheduled(1, 0);
+                if (batch.size() >= DELETE_BATCH_SIZE)
+                    task = takeBatch();
+            }
+            if (task != null)
+                executor.submit(task);
         }
 
-        @Override
-        public void run() {
-            while (true) {
-                Runnable r = null;
-                try {
-                    r = queue.dequeue();
-                    r.run();
-                }
-                catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        /**
+         * Stops the flush thread and queues any keys still waiting.
+         */
+        void close() throws InterruptedException {
+            flusher.interrupt();
+            flusher.join();
+            DeleteBatchTask task;
+            synchronized (this) {
+                task = takeBatch();
+            }
+            if (task == null)
+                return;
+            List<String> keys = task.keys;
+            for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE) {
+                int end = Math.min(i + DELETE_BATCH_SIZE, keys.size());
+                executor.submit(new DeleteBatchTask(new ArrayList<String>(keys.subList(i, end)),
+                        new ArrayList<CheckpointJournal.Ticket>(task.tickets.subList(i, end))));
             }
         }
+
+        private DeleteBatchTask takeBatch() {
+            DeleteBatchTask task = batch.isEmpty() ? null : new DeleteBatchTask(batch, batchTickets);
+            batch = new ArrayList<String>();
+            batchTickets = new ArrayList<CheckpointJournal.Ticket>();
+            return task;
+        }
     }
 
-    class TaskQueue {
+    class CopyTask extends BaseTask implements TransferLanes.Sized {
 
-        List<Runnable> runnableList = new ArrayList<Runnable>();
+        long size;
+        CheckpointJournal.Ticket ticket;
 
-        public synchronized Runnable dequeue() throws InterruptedException {
-            while (runnableList.isEmpty())
-                wait();
-            return runnableList.remove(runnableList.size()-1);
+        CopyTask(String key, long size, CheckpointJournal.Ticket ticket) {
+            super("copy", key);
+            this.size = size;
+            this.ticket = ticket;
         }
 
-        public synchronized void enqueue(Runnable runnable) {
-            runnableList.add(runnable);
-            notifyAll();
+        public long getSize() {
+            return size;
         }
 
-        public synchronized int size() {
-            return runnableList.size();
+        @Override
+        RetryPolicy retryPolicy() {
+            // parts are retried one by one, rather than starting the whole object again
+            return copiedInParts(size) ? retry.once() : retry;
         }
 
+        @Override
+        void execTask() throws Exception {
+            copyObject(key, size);
+            metrics.completed(1, size);
+            if (ticket != null)
+                ticket.complete();
+        }
     }
 
 }
@@ -0,0 +1,310 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The state of a bucket as of the last successful sync: key, ETag, size and last modified
+ * time of every object, sorted by key.
+ *
+ * Records are stored in blocks of about 64KB.  An index at the end of the file holds the
+ * first key and position of each block, so a key range can be read without scanning from
+ * the start.  Blocks are memory mapped as they are read.
+ *
+ * Layout: blocks, then the index (block count, then first key, offset and length for each
+ * block), then a fixed size trailer with the index offset, the number of runs since the
+ * destination was last listed in full, and a magic number.
+ */
+public class SyncManifest {
+
+    private static final int MAGIC = 0x53424d31;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int TRAILER_SIZE = 16;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private String[] firstKeys;
+    private long[] offsets;
+    private int[] lengths;
+    private int runsSinceFullListing;
+
+    /**
+     * Opens an existing manifest, or returns null if the file doesn't exist.
+     */
+    public static SyncManifest open(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        return new SyncManifest(file);
+    }
+
+    private SyncManifest(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+
+        long size = channel.size();
+        if (size < TRAILER_SIZE)
+            throw new IOException("Not a sync manifest: " + file);
+        ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        runsSinceFullListing = trailer.getInt();
+        if (trailer.getInt() != MAGIC)
+            throw new IOException("Not a sync manifest: " + file);
+
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - TRAILER_SIZE - indexOffset);
+        int blocks = index.getInt();
+        firstKeys = new String[blocks];
+        offsets = new long[blocks];
+        lengths = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            firstKeys[i] = readString(index);
+            offsets[i] = index.getLong();
+            lengths[i] = index.getInt();
+        }
+    }
+
+    public int getRunsSinceFullListing() {
+        return runsSinceFullListing;
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Iterates over the records with keys in (after, upTo], either of which may be null.
+     */
+    public Iterator<S3ObjectSummary> iterator(final String after, final String upTo) {
+        return new Iterator<S3ObjectSummary>() {
+            int block = firstBlock(after);
+            ByteBuffer buffer;
+            S3ObjectSummary next = advance();
+
+            private S3ObjectSummary advance() {
+                while (true) {
+                    if (buffer == null || !buffer.hasRemaining()) {
+                        if (block >= firstKeys.length)
+                            return null;
+                        buffer = mapBlock(block++);
+                    }
+
+                    S3ObjectSummary summary = readRecord(buffer);
+                    if (after != null && BucketListing.compareKeys(summary.getKey(), after) <= 0)
+                        continue;
+                    if (upTo != null && BucketListing.compareKeys(summary.getKey(), upTo) > 0)
+                        return null;
+                    return summary;
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public S3ObjectSummary next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                S3ObjectSummary summary = next;
+                next = advance();
+                return summary;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * The last block whose first key is <= after, since that block may hold keys after it.
+     */
+    private int firstBlock(String after) {
+        if (after == null)
+            return 0;
+        int low = 0;
+        int high = firstKeys.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (BucketListing.compareKeys(firstKeys[mid], after) <= 0) {
+                found = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private MappedByteBuffer mapBlock(int block) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offsets[block], lengths[block]);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Unable to read sync manifest block " + block, e);
+        }
+    }
+
+    private static S3ObjectSummary readRecord(ByteBuffer buffer) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(readString(buffer));
+        summary.setETag(readString(buffer));
+        summary.setSize(buffer.getLong());
+        summary.setLastModified(new Date(buffer.getLong()));
+        return summary;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes a new manifest from segments, which must be in key order, and replaces file
+     * with it.  The segment files are deleted.
+     */
+    public static void write(File file, List<Segment> segments, int runsSinceFullListing) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            FileChannel out = fos.getChannel();
+            List<String> firstKeys = new ArrayList<String>();
+            List<long[]> blocks = new ArrayList<long[]>();
+            for (Segment segment : segments) {
+                long base = out.position();
+                FileInputStream in = new FileInputStream(segment.file);
+                try {
+                    FileChannel channel = in.getChannel();
+                    long copied = 0;
+                    while (copied < channel.size()) {
+                        copied += channel.transferTo(copied, channel.size() - copied, out);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                out.position(base + segment.file.length());
+
+                firstKeys.addAll(segment.firstKeys);
+                for (long[] block : segment.blocks) {
+                    blocks.add(new long[] { base + block[0], block[1] });
+                }
+            }
+
+            long indexOffset = out.position();
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(fos));
+            index.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                writeString(index, firstKeys.get(i));
+                index.writeLong(blocks.get(i)[0]);
+                index.writeInt((int) blocks.get(i)[1]);
+            }
+            index.writeLong(indexOffset);
+            index.writeInt(runsSinceFullListing);
+            index.writeInt(MAGIC);
+            index.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+
+        for (Segment segment : segments) {
+            segment.file.delete();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("Unable to replace " + file);
+        if (!tmp.renameTo(file))
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+
+    /**
+     * The records for one key range, written in key order to a temporary file.
+     */
+    public static class Segment {
+
+        private File file;
+        private DataOutputStream out;
+        private ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 2048);
+        private DataOutputStream blockOut = new DataOutputStream(block);
+        private String blockFirstKey;
+        private long position;
+        private List<String> firstKeys = new ArrayList<String>();
+        private List<long[]> blocks = new ArrayList<long[]>();
+
+        public Segment(File dir) throws IOException {
+            file = File.createTempFile("manifest", ".seg", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        public void add(S3ObjectSummary summary) throws IOException {
+            if (blockFirstKey == null)
+                blockFirstKey = summary.getKey();
+            writeString(blockOut, summary.getKey());
+            writeString(blockOut, summary.getETag());
+            blockOut.writeLong(summary.getSize());
+            blockOut.writeLong(summary.getLastModified() == null ? 0 : summary.getLastModified().getTime());
+            if (block.size() >= BLOCK_SIZE)
+                flushBlock();
+        }
+
+        public void close() throws IOException {
+            flushBlock();
+            out.close();
+        }
+
+        /**
+         * Deletes the segment without using it, after a failed run.
+         */
+        public void discard() {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                // deleting anyway
+            }
+            file.delete();
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.size() == 0)
+                return;
+            firstKeys.add(blockFirstKey);
+            blocks.add(new long[] { position, block.size() });
+            block.writeTo(out);
+            position += block.size();
+            block.reset();
+            blockFirstKey = null;
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package com.bitmechanic.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed number of worker threads.
+ *
+ * The queue is bounded: submit() blocks while it is full, so a producer such as a bucket
+ * listing can't run arbitrarily far ahead of the workers.  Tasks are run in FIFO order,
+ * or in the order of a Comparator if one is given.
+ *
+ * Every submitted task counts as pending until it has finished running, so
+ * awaitCompletion() returns only when all work is done, not just when the queue is empty.
+ *
+ * Any other BlockingQueue, such as TransferLanes, can be given to order tasks its own way.
+ *
+ * If an AdaptiveLimiter is set, a worker must acquire it before taking a task, so the
+ * number of tasks running at once follows the limiter rather than the thread count.  A
+ * FairShare member set with setShare() is taken after a task, so executors of different
+ * jobs split a shared number of running tasks evenly.
+ *
+ * An executor made with a Semaphore instead of a thread count has no workers: a dispatcher
+ * thread starts each task on a virtual thread of its own once it gets a permit.  Tasks
+ * that mostly wait on the network then cost a few KB each rather than a platform thread's
+ * stack, so thousands can run at once, and executors sharing the Semaphore share one
+ * limit.
+ */
+public class TaskExecutor {
+
+    private final String name;
+    private final BlockingQueue<Runnable> queue;
+    private final Semaphore capacity;
+    private final Semaphore running;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final Set<Thread> taskThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger started = new AtomicInteger();
+
+    private final Object lock = new Object();
+    private long pending;
+    private volatile boolean shutdown;
+    private volatile AdaptiveLimiter limiter;
+    private volatile FairShare.Member share;
+
+    public TaskExecutor(String name, int threads, int capacity) {
+        this(name, threads, capacity, (Comparator<Runnable>) null);
+    }
+
+    public TaskExecutor(String name, int threads, int capacity, Comparator<Runnable> ordering) {
+        this(name, threads, capacity, ordering == null ? new LinkedBlockingQueue<Runnable>()
+                : new PriorityBlockingQueue<Runnable>(Math.min(Math.max(capacity, 1), 1024), ordering));
+    }
+
+    /**
+     * An executor taking its tasks from queue, which should be empty and is bounded by
+     * capacity rather than by its own limit.
+     */
+    public TaskExecutor(String name, int threads, int capacity, BlockingQueue<Runnable> queue) {
+        if (threads < 1 || capacity < 1)
+            throw new IllegalArgumentException("threads and capacity must be positive");
+
+        this.name = name;
+        this.running = null;
+        this.queue = queue;
+        this.capacity = new Semaphore(capacity);
+
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, name + "-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+    }
+
+    /**
+     * An executor that runs each task on a new thread once it can take one of running's
+     * permits, holding it until the task finishes.
+     */
+    public TaskExecutor(String name, Semaphore running, int capacity) {
+        this(name, running, capacity, new LinkedBlockingQueue<Runnable>());
+    }
+
+    public TaskExecutor(String name, Semaphore running, int capacity, BlockingQueue<Runnable> queue) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.name = name;
+        this.running = running;
+        this.queue = queue;
+        this.capacity = new Semaphore(capacity);
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, name + "-dispatch");
+        t.setDaemon(true);
+        t.start();
+        workers.add(t);
+    }
+
+    /**
+     * Queues a task, blocking while the queue is full.
+     */
+    public void submit(Runnable task) throws InterruptedException {
+        if (shutdown)
+            throw new IllegalStateException("Executor has been shut down");
+
+        capacity.acquire();
+        synchronized (lock) {
+            pending++;
+        }
+        queue.add(task);
+    }
+
+    /**
+     * Blocks until every submitted task has finished running.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        synchronized (lock) {
+            while (pending > 0)
+                lock.wait();
+        }
+    }
+
+    /**
+     * Stops the worker threads and waits for them to exit.  Call awaitCompletion() first;
+     * tasks still running are interrupted and queued tasks are discarded.
+     */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        for (Thread t : taskThreads) {
+            t.interrupt();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+    }
+
+    public void setLimiter(AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public void setShare(FairShare.Member share) {
+        this.share = share;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private void work() {
+        while (!shutdown) {
+            AdaptiveLimiter limiter = this.limiter;
+            FairShare.Member share = this.share;
+            Runnable task;
+            try {
+                if (limiter != null)
+                    limiter.acquire();
+                try {
+                    task = queue.take();
+                    if (share != null)
+                        share.acquire();
+                }
+                catch (InterruptedException e) {
+                    if (limiter != null)
+                        limiter.release();
+                    throw e;
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            capacity.release();
+            inFlight.incrementAndGet();
+            run(task, limiter, share);
+        }
+    }
+
+    private void dispatch() {
+        while (!shutdown) {
+            final AdaptiveLimiter limiter = this.limiter;
+            final FairShare.Member share = this.share;
+            final Runnable task;
+            try {
+                // take the task first, so an idle executor holds no permit
+                task = queue.take();
+                if (share != null)
+                    share.acquire();
+                try {
+                    running.acquire();
+                    if (limiter != null) {
+                        try {
+                            limiter.acquire();
+                        }
+                        catch (InterruptedException e) {
+                            running.release();
+                            throw e;
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    if (share != null)
+                        share.release();
+                    throw e;
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            capacity.release();
+            inFlight.incrementAndGet();
+            Runnable runner = new Runnable() {
+                public void run() {
+                    taskThreads.add(Thread.currentThread());
+                    try {
+                        TaskExecutor.this.run(task, limiter, share);
+                    }
+                    finally {
+                        taskThreads.remove(Thread.currentThread());
+                    }
+                }
+            };
+            try {
+                startThread(runner);
+            }
+            catch (RuntimeException e) {
+                // the task still has to run, or awaitCompletion() would never return
+                e.printStackTrace();
+                runner.run();
+            }
+        }
+    }
+
+    private void run(Runnable task, AdaptiveLimiter limiter, FairShare.Member share) {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (limiter != null)
+                limiter.release();
+            if (running != null)
+                running.release();
+            if (share != null)
+                share.release();
+            inFlight.decrementAndGet();
+            synchronized (lock) {
+                if (--pending == 0)
+                    lock.notifyAll();
+            }
+        }
+    }
+
+    private void startThread(Runnable runner) {
+        Thread.ofVirtual().name(name + "-" + started.getAndIncrement()).start(runner);
+    }
+
+}
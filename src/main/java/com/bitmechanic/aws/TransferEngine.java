@@ -0,0 +1,236 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The HTTP clients, worker executors and I/O buffers a tool runs on, sized together from
+ * the number of requests the tool can have in flight.
+ *
+ * The SDK's clients keep a pool of 50 connections by default.  With more workers than
+ * that, requests wait for a connection or open and close extra ones, so clients made
+ * here pool as many connections as the tool has concurrent requests, plus a few for
+ * listings and retries.  There is one client per service and access key, so tools that
+ * use the same account on both sides, or both S3 and SimpleDB, share connections instead
+ * of opening a pool each.  Connections stay open between requests for as long as the
+ * server keeps them alive.
+ *
+ * Socket buffers are left to the OS, which tunes them per connection, unless set with
+ * setSocketBufferSize: on a fast link with a long round trip time, buffers of at least
+ * bandwidth x round trip time let a single connection fill the link.
+ *
+ * With setVirtualThreads, executors run each task on its own (virtual) thread instead of
+ * a fixed pool, and every executor of the engine draws on one limit of tasks in flight.
+ *
+ * A batch of jobs runs on one engine, each job on an engine made by job().  Job engines
+ * share the clients, buffers and bandwidth limit of the batch's engine.  With setFairShare,
+ * their executors split a fixed number of running tasks evenly between the jobs.
+ */
+public class TransferEngine {
+
+    // connections per client on top of the tool's concurrency, for listings and retries
+    private static final int SPARE_CONNECTIONS = 8;
+    public static final int IO_BUFFER_SIZE = 256 * 1024;
+
+    private int connections;
+    private int socketBufferSize;
+    private int socketTimeout = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+    private Map<String, AmazonS3Client> s3Clients = new HashMap<String, AmazonS3Client>();
+    private Map<String, AmazonSimpleDBClient> simpleDbClients = new HashMap<String, AmazonSimpleDBClient>();
+    private List<TaskExecutor> executors = new ArrayList<TaskExecutor>();
+    private BufferPool buffers;
+    private Semaphore running;
+    private BandwidthLimiter bandwidth;
+    private FairShare fairShare;
+    // set for the engine of one job in a batch
+    private TransferEngine parent;
+    private String jobName;
+    private FairShare.Member share;
+
+    /**
+     * An engine with the SDK's default number of connections.
+     */
+    public TransferEngine() {
+        this(ClientConfiguration.DEFAULT_MAX_CONNECTIONS - SPARE_CONNECTIONS);
+    }
+
+    /**
+     * An engine for a tool that makes up to concurrency requests at once.
+     */
+    public TransferEngine(int concurrency) {
+        this.connections = concurrency + SPARE_CONNECTIONS;
+        this.buffers = new BufferPool(Math.max(1, concurrency), IO_BUFFER_SIZE);
+    }
+
+    private TransferEngine(TransferEngine parent, String name) {
+        this.parent = parent;
+        this.jobName = name;
+        this.connections = parent.connections;
+        this.buffers = parent.buffers;
+        this.running = parent.running;
+        this.share = parent.fairShare == null ? null : parent.fairShare.join(name);
+    }
+
+    /**
+     * An engine for one job of a batch run on this engine.  Its clients, buffers and
+     * bandwidth limit are this engine's, and its executors count as the job's in the
+     * fair share.  Shutting it down only stops its own executors.
+     */
+    public synchronized TransferEngine job(String name) {
+        return new TransferEngine(this, name);
+    }
+
+    /**
+     * The name this engine was given by job(), or null if it isn't a job's engine.
+     */
+    public String getJobName() {
+        return jobName;
+    }
+
+    /**
+     * Splits permits running tasks evenly between the jobs made by job() from then on.
+     */
+    public synchronized void setFairShare(int permits) {
+        this.fairShare = new FairShare(permits);
+    }
+
+    /**
+     * Caps the bytes per second of object bodies that tools stream through this engine.
+     */
+    public synchronized void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond) : null;
+    }
+
+    /**
+     * The engine's bandwidth limit, or null if there is none.
+     */
+    public synchronized BandwidthLimiter getBandwidth() {
+        return parent != null ? parent.getBandwidth() : bandwidth;
+    }
+
+    /**
+     * Overrides the number of connections each client pools.
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sets the send and receive buffer sizes of every socket, in bytes.  0 (the default)
+     * leaves them to the OS.
+     */
+    public void setSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Makes executor() return executors that start a thread per task, with at most limit
+     * tasks running at once across all of them.  The threads are virtual threads.
+     */
+    public synchronized void setVirtualThreads(int limit) {
+        this.running = new Semaphore(limit);
+    }
+
+    public ClientConfiguration getClientConfiguration() {
+        ClientConfiguration config = new ClientConfiguration();
+        config.setMaxConnections(connections);
+        config.setSocketTimeout(socketTimeout);
+        if (socketBufferSize > 0)
+            config.setSocketBufferSizeHints(socketBufferSize, socketBufferSize);
+        return config;
+    }
+
+    /**
+     * The S3 client for an account, created the first time it is asked for.
+     */
+    public synchronized AmazonS3 s3(String accessKey, String secretKey) {
+        if (parent != null)
+            return parent.s3(accessKey, secretKey);
+        AmazonS3Client client = s3Clients.get(accessKey);
+        if (client == null) {
+            client = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey), getClientConfiguration());
+            s3Clients.put(accessKey, client);
+        }
+        return client;
+    }
+
+    /**
+     * The SimpleDB client for an account, created the first time it is asked for.
+     */
+    public synchronized AmazonSimpleDB simpleDB(String accessKey, String secretKey) {
+        if (parent != null)
+            return parent.simpleDB(accessKey, secretKey);
+        AmazonSimpleDBClient client = simpleDbClients.get(accessKey);
+        if (client == null) {
+            client = new AmazonSimpleDBClient(new BasicAWSCredentials(accessKey, secretKey), getClientConfiguration());
+            simpleDbClients.put(accessKey, client);
+        }
+        return client;
+    }
+
+    /**
+     * A TaskExecutor that is shut down along with the engine, if not before.  threads is
+     * ignored once setVirtualThreads has been called.
+     */
+    public TaskExecutor executor(String name, int threads, int capacity) {
+        return executor(name, threads, capacity, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * As executor(name, threads, capacity), taking tasks from queue.
+     */
+    public synchronized TaskExecutor executor(String name, int threads, int capacity, BlockingQueue<Runnable> queue) {
+        TaskExecutor executor = running != null
+                ? new TaskExecutor(name, running, capacity, queue)
+                : new TaskExecutor(name, threads, capacity, queue);
+        executor.setShare(share);
+        executors.add(executor);
+        return executor;
+    }
+
+    /**
+     * IO_BUFFER_SIZE buffers for streaming object bodies, one per concurrent request.
+     */
+    public BufferPool getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Stops the executors and closes the connections of the clients made by this engine.
+     */
+    public synchronized void shutdown() throws InterruptedException {
+        for (TaskExecutor executor : executors) {
+            executor.shutdown();
+        }
+        executors.clear();
+        for (AmazonS3Client client : s3Clients.values()) {
+            client.shutdown();
+        }
+        for (AmazonSimpleDBClient client : simpleDbClients.values()) {
+            client.shutdown();
+        }
+        s3Clients.clear();
+        simpleDbClients.clear();
+    }
+
+}
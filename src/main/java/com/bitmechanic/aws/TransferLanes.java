@@ -0,0 +1,188 @@
+package com.bitmechanic.aws;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TaskExecutor queue that schedules transfers by size.
+ *
+ * Tasks of at least largeSize bytes go in a large lane and are taken biggest first.  The
+ * rest go in a small lane and are taken in the order they were queued.  While both
+ * lanes have work, at most largeWorkers workers run large tasks and the others run small
+ * ones.  The large transfers keep the link busy while the small ones keep requests
+ * flowing.  Big objects start as soon as they are queued rather than trailing at the end
+ * of a run with a few workers busy.  Once one lane is empty, every worker takes from the
+ * other.
+ *
+ * Tasks that don't implement Sized go in the small lane.  The queue itself is unbounded;
+ * TaskExecutor's capacity limits it.
+ */
+public class TransferLanes extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * A task that knows how many bytes it will transfer.
+     */
+    public interface Sized {
+        long getSize();
+    }
+
+    private static final Comparator<Runnable> LARGEST_FIRST = new Comparator<Runnable>() {
+        public int compare(Runnable a, Runnable b) {
+            long sa = ((Sized) a).getSize();
+            long sb = ((Sized) b).getSize();
+            return sa > sb ? -1 : (sa < sb ? 1 : 0);
+        }
+    };
+
+    private final long largeSize;
+    private final int largeWorkers;
+    private final ArrayDeque<Runnable> small = new ArrayDeque<Runnable>();
+    private final PriorityQueue<Runnable> large = new PriorityQueue<Runnable>(64, LARGEST_FIRST);
+    private int runningLarge;
+
+    public TransferLanes(long largeSize, int largeWorkers) {
+        this.largeSize = largeSize;
+        this.largeWorkers = Math.max(1, largeWorkers);
+    }
+
+    public boolean isLarge(long size) {
+        return size >= largeSize;
+    }
+
+    public synchronized int getRunningLarge() {
+        return runningLarge;
+    }
+
+    public synchronized boolean offer(Runnable task) {
+        if (task instanceof Sized && isLarge(((Sized) task).getSize()))
+            large.add(task);
+        else
+            small.add(task);
+        notifyAll();
+        return true;
+    }
+
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    public synchronized Runnable poll() {
+        return next();
+    }
+
+    public synchronized Runnable take() throws InterruptedException {
+        Runnable task;
+        while ((task = next()) == null)
+            wait();
+        return task;
+    }
+
+    public synchronized Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Runnable task;
+        while ((task = next()) == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return null;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return task;
+    }
+
+    public synchronized Runnable peek() {
+        Queue<Runnable> lane = lane();
+        return lane == null ? null : lane.peek();
+    }
+
+    public synchronized int size() {
+        return small.size() + large.size();
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Iterates over a copy of the queued tasks, large lane first, in no particular order.
+     */
+    public synchronized Iterator<Runnable> iterator() {
+        List<Runnable> tasks = new ArrayList<Runnable>(large);
+        tasks.addAll(small);
+        return tasks.iterator();
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public synchronized int drainTo(Collection<? super Runnable> c, int maxElements) {
+        int n = 0;
+        Runnable task;
+        while (n < maxElements && (task = next()) != null) {
+            c.add(task);
+            n++;
+        }
+        return n;
+    }
+
+    // the lane the next task comes from, or null if both are empty
+    private Queue<Runnable> lane() {
+        if (large.isEmpty())
+            return small.isEmpty() ? null : small;
+        if (small.isEmpty() || runningLarge < largeWorkers)
+            return large;
+        return small;
+    }
+
+    private Runnable next() {
+        Queue<Runnable> lane = lane();
+        if (lane == null)
+            return null;
+        Runnable task = lane.poll();
+        if (lane == small)
+            return task;
+        runningLarge++;
+        return new LargeTask(task);
+    }
+
+    private synchronized void largeFinished() {
+        runningLarge--;
+    }
+
+    // counts a large task as running until it returns
+    private class LargeTask implements Runnable, Sized {
+
+        private final Runnable task;
+
+        LargeTask(Runnable task) {
+            this.task = task;
+        }
+
+        public long getSize() {
+            return ((Sized) task).getSize();
+        }
+
+        public void run() {
+            try {
+                task.run();
+            }
+            finally {
+                largeFinished();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,349 @@
+package com.bitmechanic.aws;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for one run of a tool: objects (or items) and bytes done, latency of each
+ * kind of AWS request, retries and throttles, plus the queue depth and in-flight count
+ * of the TaskExecutor being watched.
+ *
+ * The numbers are published as an MBean, printed as a one line progress report every
+ * few seconds, and can be written as JSON when the run ends.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    private volatile String name;
+    private final long started = System.currentTimeMillis();
+
+    private final AtomicLong objects = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong scheduledObjects = new AtomicLong();
+    private final AtomicLong scheduledBytes = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+
+    private volatile boolean scheduleComplete;
+    private volatile TaskExecutor executor;
+    private Thread reporter;
+    private ObjectName objectName;
+
+    public TransferMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Names the MBean and progress lines, such as after the batch job this run is part of.
+     * Takes effect at the next start().
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Reports the queue depth and in-flight count of executor.
+     */
+    public void watch(TaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Work found by a listing or scan that is going to be transferred.  Used for the ETA.
+     */
+    public void scheduled(long objects, long bytes) {
+        scheduledObjects.addAndGet(objects);
+        scheduledBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Called once everything to be transferred has been scheduled, after which the
+     * progress report shows an ETA.
+     */
+    public void scheduleComplete() {
+        scheduleComplete = true;
+    }
+
+    public void completed(long objects, long bytes) {
+        this.objects.addAndGet(objects);
+        this.bytes.addAndGet(bytes);
+    }
+
+    public void retried(boolean throttled) {
+        retries.incrementAndGet();
+        if (throttled)
+            throttles.incrementAndGet();
+    }
+
+    public void failed() {
+        failures.incrementAndGet();
+    }
+
+    public void recordLatency(String operation, long nanos) {
+        Histogram histogram = latencies.get(operation);
+        if (histogram == null) {
+            latencies.putIfAbsent(operation, new Histogram());
+            histogram = latencies.get(operation);
+        }
+        histogram.record(nanos / 1000);
+    }
+
+    //////////////////////////////////
+
+    /**
+     * Registers the MBean and starts printing progress to out every intervalSeconds,
+     * unless intervalSeconds is 0.
+     */
+    public void start(final PrintStream out, final int intervalSeconds) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.bitmechanic.aws:type=TransferMetrics,name="
+                    + (name.matches("[\\w.-]+") ? name : ObjectName.quote(name)));
+            if (server.isRegistered(objectName)) {
+                // another run in this JVM has the name, and unregisters it when it ends
+                System.err.println("Metrics MBean " + objectName + " is already registered");
+                objectName = null;
+            }
+            else {
+                server.registerMBean(this, objectName);
+            }
+        }
+        catch (Exception e) {
+            System.err.println("Unable to register metrics MBean: " + e);
+            objectName = null;
+        }
+
+        if (intervalSeconds > 0) {
+            reporter = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(intervalSeconds * 1000L);
+                            out.println(progressLine());
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            }, "progress-" + name);
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    /**
+     * Stops the progress report, unregisters the MBean, and writes the summary as JSON to
+     * jsonFile if it is not null.
+     */
+    public void stop(File jsonFile) throws IOException {
+        if (reporter != null)
+            reporter.interrupt();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (Exception e) {
+                // already gone
+            }
+        }
+
+        if (jsonFile != null) {
+            FileWriter writer = new FileWriter(jsonFile);
+            try {
+                writer.write(new GsonBuilder().setPrettyPrinting().create().toJson(summary()));
+            }
+            finally {
+                writer.close();
+            }
+        }
+    }
+
+    public String progressLine() {
+        double seconds = getElapsedSeconds();
+        StringBuilder sb = new StringBuilder();
+        sb.append("[").append(name).append("] ");
+        sb.append(objects.get()).append(" objects ").append(formatBytes(bytes.get()));
+        sb.append(" | ").append(String.format("%.1f", getObjectsPerSecond())).append("/s ");
+        sb.append(formatBytes((long) getBytesPerSecond())).append("/s");
+        if (executor != null)
+            sb.append(" | queue ").append(getQueueDepth()).append(" in flight ").append(getInFlight());
+        sb.append(" | retries ").append(retries.get()).append(" throttled ").append(throttles.get());
+        if (failures.get() > 0)
+            sb.append(" failed ").append(failures.get());
+        sb.append(" | ").append(formatSeconds((long) seconds));
+        sb.append(" ETA ").append(eta());
+        return sb.toString();
+    }
+
+    private String eta() {
+        if (!scheduleComplete)
+            return "listing";
+        long remainingBytes = scheduledBytes.get() - bytes.get();
+        long remainingObjects = scheduledObjects.get() - objects.get();
+        double seconds;
+        if (scheduledBytes.get() > 0 && getBytesPerSecond() > 0)
+            seconds = remainingBytes / getBytesPerSecond();
+        else if (getObjectsPerSecond() > 0)
+            seconds = remainingObjects / getObjectsPerSecond();
+        else
+            return "?";
+        return formatSeconds((long) Math.max(0, seconds));
+    }
+
+    public Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("name", name);
+        summary.put("elapsedSeconds", getElapsedSeconds());
+        summary.put("objects", objects.get());
+        summary.put("bytes", bytes.get());
+        summary.put("objectsPerSecond", getObjectsPerSecond());
+        summary.put("bytesPerSecond", getBytesPerSecond());
+        summary.put("retries", retries.get());
+        summary.put("throttles", throttles.get());
+        summary.put("failures", failures.get());
+
+        Map<String, Object> ops = new TreeMap<String, Object>();
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            ops.put(entry.getKey(), entry.getValue().summary());
+        }
+        summary.put("latencyMillis", ops);
+        return summary;
+    }
+
+    //////////////////////////////////
+
+    public long getObjects() {
+        return objects.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getElapsedSeconds() {
+        return Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+    }
+
+    public double getObjectsPerSecond() {
+        return objects.get() / getElapsedSeconds();
+    }
+
+    public double getBytesPerSecond() {
+        return bytes.get() / getElapsedSeconds();
+    }
+
+    public int getQueueDepth() {
+        TaskExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueueDepth();
+    }
+
+    public int getInFlight() {
+        TaskExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getInFlight();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public String getLatencySummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(latencies).entrySet()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(entry.getKey()).append(" ").append(entry.getValue().summary());
+        }
+        return sb.toString();
+    }
+
+    public String getProgress() {
+        return progressLine();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        String units = "KMGTPE";
+        int unit = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f %sB", bytes / Math.pow(1024, unit), units.charAt(unit - 1));
+    }
+
+    static String formatSeconds(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /**
+     * Latencies in power of two buckets of microseconds.  Percentiles are reported as the
+     * upper bound of the bucket they fall in.
+     */
+    static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(40);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(1, micros));
+            buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long m;
+            while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+                // retry
+            }
+        }
+
+        // the upper bound of the bucket holding the percentile, but no more than the max
+        double percentileMillis(double p) {
+            long target = (long) Math.ceil(count.get() * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0)
+                    return Math.min(1L << i, max.get()) / 1000.0;
+            }
+            return max.get() / 1000.0;
+        }
+
+        Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<String, Object>();
+            long n = count.get();
+            summary.put("count", n);
+            summary.put("mean", n == 0 ? 0 : sum.get() / 1000.0 / n);
+            summary.put("p50", percentileMillis(0.5));
+            summary.put("p99", percentileMillis(0.99));
+            summary.put("max", max.get() / 1000.0);
+            return summary;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.bitmechanic.aws;
+
+/**
+ * JMX view of TransferMetrics.
+ */
+public interface TransferMetricsMBean {
+
+    long getObjects();
+
+    long getBytes();
+
+    double getElapsedSeconds();
+
+    double getObjectsPerSecond();
+
+    double getBytesPerSecond();
+
+    int getQueueDepth();
+
+    int getInFlight();
+
+    long getRetries();
+
+    long getThrottles();
+
+    long getFailures();
+
+    String getLatencySummary();
+
+    String getProgress();
+
+}
@@ -0,0 +1,64 @@
+package com.bitmechanic.aws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void throttlingHalvesTheLimitOncePerInterval() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(16);
+        limiter.onThrottle();
+        assertEquals(8, limiter.getLimit());
+        // the rest of a burst of throttling doesn't cut it again
+        limiter.onThrottle();
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void limitNeverDropsBelowTheMinimum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(3, 4);
+        limiter.onThrottle();
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void successesGrowTheLimitBackToTheMaximum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(16);
+        limiter.onThrottle();
+        // about one more for every limit's worth of successes
+        for (int i = 0; i < 9; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(9, limiter.getLimit());
+        for (int i = 0; i < 1000; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(16, limiter.getLimit());
+    }
+
+    @Test
+    public void acquireWaitsForARelease() throws InterruptedException {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1);
+        limiter.acquire();
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    limiter.acquire();
+                }
+                catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        });
+        waiter.start();
+        waiter.join(100);
+        assertEquals(1, limiter.getActive());
+
+        limiter.release();
+        waiter.join(5000);
+        assertEquals(1, limiter.getActive());
+    }
+
+}
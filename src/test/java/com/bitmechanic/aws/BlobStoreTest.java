@@ -0,0 +1,223 @@
+package com.bitmechanic.aws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("store", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void blobIdIgnoresQuotesAndCase() {
+        assertEquals("abc123-42", BlobStore.blobId("\"ABC123\"", 42));
+        assertEquals(BlobStore.blobId("\"abc\"", 1), BlobStore.blobId("ABC", 1));
+    }
+
+    @Test
+    public void blobsAndMetadataSurviveReopening() throws IOException {
+        BlobStore store = BlobStore.open(dir);
+        try {
+            addBlob(store, "aa-1", "{\"a\":1}");
+            addBlob(store, "bb-2", "{\"b\":2}");
+            assertTrue(store.contains("aa-1"));
+            assertEquals("{\"b\":2}", store.getMetadata("bb-2"));
+            // added after the metadata was first read
+            addBlob(store, "cc-3", "{\"c\":3}");
+            assertEquals("{\"c\":3}", store.getMetadata("cc-3"));
+        }
+        finally {
+            store.close();
+        }
+
+        store = BlobStore.open(dir);
+        try {
+            assertTrue(store.contains("aa-1"));
+            assertTrue(store.contains("bb-2"));
+            assertTrue(store.contains("cc-3"));
+            assertFalse(store.contains("dd-4"));
+            assertEquals("{\"a\":1}", store.getMetadata("aa-1"));
+            assertNull(store.getMetadata("dd-4"));
+            assertTrue(store.blobFile("aa-1").isFile());
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void snapshotsReadBackAndSortInTheOrderStarted() throws IOException {
+        BlobStore store = BlobStore.open(dir);
+        try {
+            BlobStore.Snapshot first = store.startSnapshot();
+            first.add("photos/a.jpg", "aa-1", "a.jpg");
+            first.add("photos/b.jpg", "aa-1", "b.jpg");
+            BlobStore.Snapshot second = store.startSnapshot();
+            first.close();
+            second.close();
+            assertTrue(second.getName().compareTo(first.getName()) > 0);
+
+            BlobStore.RefReader refs = store.readSnapshot(first.getName());
+            try {
+                assertTrue(refs.next());
+                assertEquals("photos/a.jpg", refs.getKey());
+                assertEquals("aa-1", refs.getBlobId());
+                assertEquals("a.jpg", refs.getExportName());
+                assertTrue(refs.next());
+                assertEquals("photos/b.jpg", refs.getKey());
+                assertFalse(refs.next());
+            }
+            finally {
+                refs.close();
+            }
+
+            refs = store.readSnapshot(second.getName());
+            try {
+                assertFalse(refs.next());
+            }
+            finally {
+                refs.close();
+            }
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void gcKeepsTheBlobsOfTheNewestSnapshots() throws IOException {
+        BlobStore store = BlobStore.open(dir);
+        String oldest;
+        String newest;
+        try {
+            addBlob(store, "aa-1", "{\"a\":1}");
+            addBlob(store, "bb-2", "{\"b\":2}");
+            addBlob(store, "cc-3", "{\"c\":3}");
+            oldest = snapshot(store, "aa-1");
+            snapshot(store, "bb-2");
+            newest = snapshot(store, "bb-2", "cc-3");
+
+            assertEquals(1, store.gc(2));
+            assertFalse(store.contains("aa-1"));
+            assertFalse(store.blobFile("aa-1").exists());
+            assertNull(store.getMetadata("aa-1"));
+            assertEquals("{\"b\":2}", store.getMetadata("bb-2"));
+            assertFalse(new File(new File(dir, "snapshots"), oldest + ".refs").exists());
+
+            // the store is still usable after collecting
+            addBlob(store, "dd-4", "{\"d\":4}");
+        }
+        finally {
+            store.close();
+        }
+
+        store = BlobStore.open(dir);
+        try {
+            assertFalse(store.contains("aa-1"));
+            assertTrue(store.contains("bb-2"));
+            assertTrue(store.contains("cc-3"));
+            assertTrue(store.contains("dd-4"));
+            assertEquals("{\"c\":3}", store.getMetadata("cc-3"));
+
+            BlobStore.RefReader refs = store.readSnapshot(newest);
+            try {
+                assertTrue(refs.next());
+                assertEquals("bb-2", refs.getBlobId());
+            }
+            finally {
+                refs.close();
+            }
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void gcWaitsForOtherStoresToClose() throws Exception {
+        BlobStore exporter = BlobStore.open(dir);
+        final File download = exporter.tempFile();
+        write(download, "partial");
+
+        final BlobStore collector = BlobStore.open(dir);
+        final int[] deleted = { -1 };
+        Thread gc = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    deleted[0] = collector.gc(1);
+                }
+                catch (IOException e) {
+                    // deleted stays -1
+                }
+            }
+        });
+        gc.start();
+        gc.join(200);
+        assertTrue(gc.isAlive());
+        assertTrue(download.exists());
+
+        download.delete();
+        exporter.close();
+        gc.join(5000);
+        assertFalse(gc.isAlive());
+        assertEquals(0, deleted[0]);
+        collector.close();
+    }
+
+    private static void addBlob(BlobStore store, String id, String metadata) throws IOException {
+        File temp = store.tempFile();
+        write(temp, id);
+        store.add(id, temp, metadata);
+    }
+
+    private static String snapshot(BlobStore store, String... blobIds) throws IOException {
+        BlobStore.Snapshot snapshot = store.startSnapshot();
+        for (String id : blobIds) {
+            snapshot.add("key-" + id, id, id + ".obj");
+        }
+        snapshot.close();
+        return snapshot.getName();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.bitmechanic.aws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BucketListingTest {
+
+    @Test
+    public void keysCompareLikeStringsInTheBasicPlane() {
+        assertEquals(0, BucketListing.compareKeys("abc", "abc"));
+        assertTrue(BucketListing.compareKeys("abc", "abd") < 0);
+        assertTrue(BucketListing.compareKeys("abd", "abc") > 0);
+        assertTrue(BucketListing.compareKeys("ab", "abc") < 0);
+        assertTrue(BucketListing.compareKeys("abc", "ab") > 0);
+        assertTrue(BucketListing.compareKeys("", "a") < 0);
+        assertTrue(BucketListing.compareKeys("Z", "a") < 0);
+    }
+
+    @Test
+    public void keysCompareByCodePointOutsideTheBasicPlane() {
+        // U+1F600 is a surrogate pair, which String.compareTo puts before U+FF5E
+        String emoji = new String(Character.toChars(0x1F600));
+        String fullwidthTilde = "\uFF5E";
+        assertTrue(emoji.compareTo(fullwidthTilde) < 0);
+        assertTrue(BucketListing.compareKeys(emoji, fullwidthTilde) > 0);
+        assertTrue(BucketListing.compareKeys(fullwidthTilde, emoji) < 0);
+        assertTrue(BucketListing.compareKeys("a" + emoji, "a" + emoji + "b") < 0);
+        assertEquals(0, BucketListing.compareKeys(emoji, emoji));
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.bitmechanic.aws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CheckpointJournalTest {
+
+    private static final String JOB = "sync from to";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void resumeReadsBackPlanMarksAndCompletedKeys() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(file, JOB, false);
+        journal.setPlan(plan());
+        journal.range(0).reached("b");
+        journal.range(1).finish();
+        journal.completed("key", "value");
+        journal.close();
+
+        journal = CheckpointJournal.open(file, JOB, true);
+        try {
+            assertTrue(journal.isResumed());
+            assertEquals(2, journal.getPlan().size());
+            assertArrayEquals(new String[] { null, "m" }, journal.getPlan().get(0));
+            assertArrayEquals(new String[] { "m", null }, journal.getPlan().get(1));
+            assertEquals("b", journal.range(0).getMark());
+            assertFalse(journal.range(0).isDone());
+            assertTrue(journal.range(1).isDone());
+            assertEquals("value", journal.getCompleted("key"));
+        }
+        finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void recordCutShortIsDroppedOnResume() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(file, JOB, false);
+        journal.setPlan(plan());
+        journal.range(0).reached("b");
+        journal.close();
+        long length = file.length();
+
+        // a MARK record for range 0 that a crash cut off part way through its position
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[] { 3, 0, 0, 0, 0, 0, 5, 'x' });
+        }
+        finally {
+            out.close();
+        }
+
+        journal = CheckpointJournal.open(file, JOB, true);
+        assertEquals(length, file.length());
+        assertEquals("b", journal.range(0).getMark());
+        journal.range(0).reached("c");
+        journal.close();
+
+        // records written after the truncated one are read back
+        journal = CheckpointJournal.open(file, JOB, true);
+        try {
+            assertEquals(2, journal.getPlan().size());
+            assertEquals("c", journal.range(0).getMark());
+        }
+        finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void fileCutShortInItsHeaderStartsAgain() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 0 });
+        }
+        finally {
+            out.close();
+        }
+
+        CheckpointJournal journal = CheckpointJournal.open(file, JOB, true);
+        try {
+            assertFalse(journal.isResumed());
+            assertNull(journal.getPlan());
+        }
+        finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void resumeWithoutResumeReplacesTheFile() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(file, JOB, false);
+        journal.setPlan(plan());
+        journal.close();
+
+        journal = CheckpointJournal.open(file, JOB, false);
+        try {
+            assertFalse(journal.isResumed());
+            assertNull(journal.getPlan());
+        }
+        finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void resumeRejectsAnotherJobsFile() throws IOException {
+        CheckpointJournal.open(file, JOB, false).close();
+        try {
+            CheckpointJournal.open(file, "sync other to", true);
+            fail("opened a checkpoint for another job");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void markOnlyMovesPastCompletedTickets() {
+        CheckpointJournal.Range range = new CheckpointJournal.Range();
+        CheckpointJournal.Ticket a = range.add("a");
+        CheckpointJournal.Ticket b = range.add("b");
+        CheckpointJournal.Ticket c = range.add("c");
+
+        c.complete();
+        assertNull(range.getMark());
+        b.complete();
+        assertNull(range.getMark());
+        a.complete();
+        assertEquals("c", range.getMark());
+    }
+
+    @Test
+    public void failedTicketHoldsBackTheMark() {
+        CheckpointJournal.Range range = new CheckpointJournal.Range();
+        CheckpointJournal.Ticket a = range.add("a");
+        range.add("b");
+        CheckpointJournal.Ticket c = range.add("c");
+
+        a.complete();
+        c.complete();
+        range.finish();
+        assertEquals("a", range.getMark());
+        assertFalse(range.isDone());
+    }
+
+    @Test
+    public void reachedMovesTheMarkOnlyOnceEarlierWorkCompletes() {
+        CheckpointJournal.Range range = new CheckpointJournal.Range();
+        range.reached("a");
+        assertEquals("a", range.getMark());
+
+        CheckpointJournal.Ticket b = range.add("b");
+        range.reached("d");
+        assertEquals("a", range.getMark());
+        b.complete();
+        assertEquals("d", range.getMark());
+    }
+
+    @Test
+    public void ticketWithoutPositionLeavesTheMark() {
+        CheckpointJournal.Range range = new CheckpointJournal.Range();
+        range.reached("a");
+        range.add(null).complete();
+        assertEquals("a", range.getMark());
+    }
+
+    @Test
+    public void rangeIsDoneOnceFinishedAndEveryTicketCompletes() {
+        CheckpointJournal.Range range = new CheckpointJournal.Range();
+        CheckpointJournal.Ticket a = range.add("a");
+        range.finish();
+        assertFalse(range.isDone());
+        a.complete();
+        assertTrue(range.isDone());
+    }
+
+    private static List<String[]> plan() {
+        List<String[]> plan = new ArrayList<String[]>();
+        plan.add(new String[] { null, "m" });
+        plan.add(new String[] { "m", null });
+        return plan;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.bitmechanic.aws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ItemNameSetTest {
+
+    @Test
+    public void sealSortsByUtf8BytesAndDropsDuplicates() {
+        String emoji = new String(Character.toChars(0x1F600));
+        ItemNameSet names = new ItemNameSet();
+        names.add("b");
+        names.add(emoji);
+        names.add("a");
+        names.add("\uFF5E");
+        names.add("b");
+        names.add("ab");
+        names.seal();
+
+        assertEquals(5, names.size());
+        assertEquals("a", names.get(0));
+        assertEquals("ab", names.get(1));
+        assertEquals("b", names.get(2));
+        assertEquals("\uFF5E", names.get(3));
+        assertEquals(emoji, names.get(4));
+    }
+
+    @Test
+    public void manyNamesGrowTheArrays() {
+        ItemNameSet names = new ItemNameSet();
+        for (int i = 9999; i >= 0; i--) {
+            names.add(String.format("item-%05d-%s", i, "padding to fill more than one buffer"));
+        }
+        names.seal();
+
+        assertEquals(10000, names.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(String.format("item-%05d-%s", i, "padding to fill more than one buffer"), names.get(i));
+        }
+    }
+
+    @Test
+    public void matcherFindsEveryNameThatIsAPrefix() {
+        ItemNameSet names = set("photos/", "photos/2012/", "photos/2012/a.jpg", "photos/2013/", "video/");
+        ItemNameSet.PrefixMatcher matcher = names.matcher(null);
+
+        assertEquals("", matched(names, matcher, "docs/readme"));
+        assertEquals("photos/", matched(names, matcher, "photos/"));
+        assertEquals("photos/ photos/2012/", matched(names, matcher, "photos/2012/"));
+        assertEquals("photos/ photos/2012/ photos/2012/a.jpg", matched(names, matcher, "photos/2012/a.jpg"));
+        assertEquals("photos/ photos/2012/", matched(names, matcher, "photos/2012/b.jpg"));
+        assertEquals("photos/ photos/2013/", matched(names, matcher, "photos/2013/c.jpg"));
+        assertEquals("photos/", matched(names, matcher, "photos/2014/d.jpg"));
+        assertEquals("video/", matched(names, matcher, "video/e.mp4"));
+        assertEquals("", matched(names, matcher, "zzz"));
+    }
+
+    @Test
+    public void matcherResumesAfterAKey() {
+        ItemNameSet names = set("photos/", "photos/2012/", "photos/2013/", "video/");
+
+        // the names that are prefixes of the resume point still match the keys after it
+        ItemNameSet.PrefixMatcher matcher = names.matcher("photos/2012/a.jpg");
+        assertEquals("photos/ photos/2012/", matched(names, matcher, "photos/2012/b.jpg"));
+        assertEquals("photos/ photos/2013/", matched(names, matcher, "photos/2013/c.jpg"));
+
+        matcher = names.matcher("photos/2013/");
+        assertEquals("photos/ photos/2013/", matched(names, matcher, "photos/2013/c.jpg"));
+        assertEquals("video/", matched(names, matcher, "video/e.mp4"));
+    }
+
+    @Test
+    public void setCantChangeOnceSealed() {
+        ItemNameSet names = new ItemNameSet();
+        names.add("a");
+        try {
+            names.matcher(null);
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        names.seal();
+        try {
+            names.add("b");
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static ItemNameSet set(String... values) {
+        ItemNameSet names = new ItemNameSet();
+        for (String value : values) {
+            names.add(value);
+        }
+        names.seal();
+        return names;
+    }
+
+    private static String matched(ItemNameSet names, ItemNameSet.PrefixMatcher matcher, String key) {
+        StringBuilder matched = new StringBuilder();
+        int n = matcher.match(key);
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                matched.append(' ');
+            matched.append(names.get(matcher.matched(i)));
+        }
+        return matched.toString();
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonShardWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("shards", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void singleFileReadsBack() throws IOException {
+        List<Item> items = items(100);
+        JsonShardWriter writer = new JsonShardWriter(dir, "domain", 0, false);
+        for (Item item : items) {
+            writer.write(item);
+        }
+        writer.close();
+
+        JsonShardWriter.Manifest manifest = readManifest("domain");
+        assertEquals(100, manifest.getItems());
+        assertFalse(manifest.isGzip());
+        assertEquals(1, manifest.getShards().size());
+        assertEquals("domain.txt", manifest.getShards().get(0).getFile());
+        assertEquals(new File(dir, "domain.txt").length(), manifest.getShards().get(0).getBytes());
+        assertEquals(items, read(new File(dir, "domain.txt")));
+    }
+
+    @Test
+    public void gzippedShardsReadBackInOrder() throws IOException {
+        List<Item> items = items(5000);
+        JsonShardWriter writer = new JsonShardWriter(dir, "domain", 16 * 1024, true);
+        for (Item item : items) {
+            writer.write(item);
+        }
+        writer.close();
+        assertEquals(5000, writer.getItemCount());
+
+        JsonShardWriter.Manifest manifest = readManifest("domain");
+        assertEquals(5000, manifest.getItems());
+        assertTrue(manifest.isGzip());
+        assertTrue(manifest.getShards().size() > 1);
+
+        List<Item> read = new ArrayList<Item>();
+        for (JsonShardWriter.Shard shard : manifest.getShards()) {
+            assertTrue(shard.getFile().endsWith(".json.gz"));
+            File file = new File(dir, shard.getFile());
+            assertEquals(file.length(), shard.getBytes());
+            List<Item> shardItems = read(file);
+            assertEquals(shard.getItems(), shardItems.size());
+            read.addAll(shardItems);
+        }
+        assertEquals(items, read);
+    }
+
+    @Test
+    public void emptyExportWritesAnEmptyArray() throws IOException {
+        JsonShardWriter writer = new JsonShardWriter(dir, "domain", 0, false);
+        writer.close();
+
+        JsonShardWriter.Manifest manifest = readManifest("domain");
+        assertEquals(0, manifest.getItems());
+        assertEquals(1, manifest.getShards().size());
+        assertTrue(read(new File(dir, "domain.txt")).isEmpty());
+    }
+
+    @Test
+    public void readerAcceptsGsonOutputAndSkipsOtherFields() throws IOException {
+        String json = "[{\"name\":\"a\",\"extra\":{\"x\":[1,2]},\"attributes\":"
+                + "[{\"name\":\"color\",\"value\":\"red\",\"encoding\":\"none\"}]},"
+                + "{\"attributes\":[],\"name\":\"b\"}]";
+        JsonItemReader reader = new JsonItemReader(new ByteArrayInputStream(json.getBytes("UTF-8")));
+        try {
+            assertEquals(item("a", "color", "red"), reader.next());
+            assertEquals(item("b"), reader.next());
+            assertFalse(reader.hasNext());
+        }
+        finally {
+            reader.close();
+        }
+
+        List<Item> items = items(3);
+        reader = new JsonItemReader(new ByteArrayInputStream(new Gson().toJson(items).getBytes("UTF-8")));
+        try {
+            for (Item item : items) {
+                assertEquals(item, reader.next());
+            }
+            assertFalse(reader.hasNext());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readerRejectsAnythingButAnArray() throws IOException {
+        try {
+            new JsonItemReader(new ByteArrayInputStream("{\"name\":\"a\"}".getBytes("UTF-8")));
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private JsonShardWriter.Manifest readManifest(String baseName) throws IOException {
+        FileReader reader = new FileReader(new File(dir, baseName + JsonShardWriter.MANIFEST_SUFFIX));
+        try {
+            return new Gson().fromJson(reader, JsonShardWriter.Manifest.class);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static List<Item> read(File file) throws IOException {
+        List<Item> items = new ArrayList<Item>();
+        JsonItemReader reader = JsonItemReader.open(file);
+        try {
+            while (reader.hasNext()) {
+                items.add(reader.next());
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return items;
+    }
+
+    private static List<Item> items(int count) {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < count; i++) {
+            items.add(item("item-" + i, "type", "order", "note", "quote \" and \u00e9 " + i));
+        }
+        return items;
+    }
+
+    private static Item item(String name, String... pairs) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            attributes.add(new Attribute(pairs[i], pairs[i + 1]));
+        }
+        return new Item(name, attributes);
+    }
+
+}
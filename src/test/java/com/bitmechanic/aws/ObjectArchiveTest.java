@@ -0,0 +1,139 @@
+package com.bitmechanic.aws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectArchiveTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("archive", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void objectsReadBackFromEverySegment() throws Exception {
+        assertFalse(ObjectArchive.exists(dir));
+
+        ObjectArchive archive = new ObjectArchive(dir, 2);
+        ObjectArchive.Segment first = archive.acquire();
+        ObjectArchive.Segment second = archive.acquire();
+        add(first, "a", body(10));
+        add(second, "b", body(200000));
+        add(first, "c", body(0));
+        add(first, "d", body(3000000));
+        archive.release(first);
+        archive.release(second);
+        archive.close();
+
+        assertTrue(ObjectArchive.exists(dir));
+        assertEquals(2, ObjectArchive.indexFiles(dir).length);
+        assertObject("a", body(10));
+        assertObject("b", body(200000));
+        assertObject("c", body(0));
+        assertObject("d", body(3000000));
+        assertNull(ObjectArchive.find(dir, "e"));
+    }
+
+    @Test
+    public void indexListsEntriesInWriteOrder() throws Exception {
+        ObjectArchive archive = new ObjectArchive(dir, 1);
+        ObjectArchive.Segment segment = archive.acquire();
+        add(segment, "z", body(5));
+        add(segment, "y", body(7));
+        archive.release(segment);
+        archive.close();
+
+        ObjectArchive.IndexReader entries = new ObjectArchive.IndexReader(ObjectArchive.indexFiles(dir)[0]);
+        try {
+            ObjectArchive.Entry entry = entries.next();
+            assertEquals("z", entry.getKey());
+            assertEquals("z.obj", entry.getName());
+            assertEquals(0, entry.getOffset());
+            assertEquals(5, entry.getLength());
+            assertEquals("{\"key\":\"z\"}", entry.getMetadata());
+            entry = entries.next();
+            assertEquals("y", entry.getKey());
+            assertEquals(5, entry.getOffset());
+            assertEquals(7, entry.getLength());
+            assertFalse(entries.hasNext());
+        }
+        finally {
+            entries.close();
+        }
+    }
+
+    @Test
+    public void unrecordedWriteIsOverwritten() throws Exception {
+        ObjectArchive archive = new ObjectArchive(dir, 1);
+        ObjectArchive.Segment segment = archive.acquire();
+        // a body written but never added, as when a download fails part way
+        segment.write(new ByteArrayInputStream(new byte[1000]));
+        add(segment, "a", body(100));
+        archive.release(segment);
+        archive.close();
+
+        ObjectArchive.Entry entry = ObjectArchive.find(dir, "a");
+        assertEquals(0, entry.getOffset());
+        assertObject("a", body(100));
+    }
+
+    private static void add(ObjectArchive.Segment segment, String key, byte[] body) throws IOException {
+        long length = segment.write(new ByteArrayInputStream(body));
+        assertEquals(body.length, length);
+        segment.add(key, key + ".obj", length, "{\"key\":\"" + key + "\"}");
+    }
+
+    private void assertObject(String key, byte[] body) throws IOException {
+        ObjectArchive.Entry entry = ObjectArchive.find(dir, key);
+        assertEquals(key, entry.getKey());
+        assertEquals(body.length, entry.getLength());
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream in = ObjectArchive.open(entry);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read.write(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+        assertArrayEquals(body, read.toByteArray());
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + length);
+        }
+        return body;
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleDBSnapshotTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("simpledb", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void itemsReadBackInTheOrderTheyWereWritten() throws IOException {
+        List<Item> items = new ArrayList<Item>();
+        items.add(item("b", "color", "red", "size", "large"));
+        items.add(item("a", "color", "red", "note", "only here"));
+        items.add(item("c"));
+        write(items);
+
+        SimpleDBSnapshot snapshot = SimpleDBSnapshot.open(file);
+        try {
+            assertEquals(3, snapshot.getItemCount());
+            assertEquals(1, snapshot.getBlockCount());
+            Iterator<Item> it = snapshot.iterator();
+            for (Item expected : items) {
+                assertTrue(it.hasNext());
+                assertEquals(expected, it.next());
+            }
+            assertFalse(it.hasNext());
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void largeSnapshotsAreSplitIntoBlocks() throws IOException {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 5000; i++) {
+            items.add(item(String.format("item-%05d", i), "type", "order", "value", "value " + i));
+        }
+        write(items);
+
+        SimpleDBSnapshot snapshot = SimpleDBSnapshot.open(file);
+        try {
+            assertEquals(5000, snapshot.getItemCount());
+            assertTrue(snapshot.getBlockCount() > 1);
+            List<Item> read = new ArrayList<Item>();
+            for (int block = 0; block < snapshot.getBlockCount(); block++) {
+                List<Item> blockItems = snapshot.readBlock(block);
+                assertEquals(snapshot.getBlockItemCount(block), blockItems.size());
+                read.addAll(blockItems);
+            }
+            assertEquals(items, read);
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void getFindsItemsByName() throws IOException {
+        List<Item> items = new ArrayList<Item>();
+        // out of order, so the footer has to sort them
+        for (int i = 4999; i >= 0; i--) {
+            items.add(item(String.format("item-%05d", i), "value", "value " + i));
+        }
+        write(items);
+
+        SimpleDBSnapshot snapshot = SimpleDBSnapshot.open(file);
+        try {
+            assertEquals(item("item-00000", "value", "value 0"), snapshot.get("item-00000"));
+            assertEquals(item("item-02500", "value", "value 2500"), snapshot.get("item-02500"));
+            assertEquals(item("item-04999", "value", "value 4999"), snapshot.get("item-04999"));
+            assertNull(snapshot.get("item-05000"));
+            assertNull(snapshot.get("item-0250"));
+            assertNull(snapshot.get(""));
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void emptySnapshotHasNoItems() throws IOException {
+        write(new ArrayList<Item>());
+
+        SimpleDBSnapshot snapshot = SimpleDBSnapshot.open(file);
+        try {
+            assertEquals(0, snapshot.getItemCount());
+            assertEquals(0, snapshot.getBlockCount());
+            assertFalse(snapshot.iterator().hasNext());
+            assertNull(snapshot.get("a"));
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[64]);
+        }
+        finally {
+            out.close();
+        }
+
+        try {
+            SimpleDBSnapshot.open(file);
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void write(List<Item> items) throws IOException {
+        SimpleDBSnapshot.Writer writer = new SimpleDBSnapshot.Writer(file);
+        for (Item item : items) {
+            writer.add(item);
+        }
+        writer.close();
+    }
+
+    private static Item item(String name, String... pairs) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            attributes.add(new Attribute(pairs[i], pairs[i + 1]));
+        }
+        return new Item(name, attributes);
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.bitmechanic.aws;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncManifestTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("manifest", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "bucket.manifest");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void missingManifestOpensAsNull() throws IOException {
+        assertNull(SyncManifest.open(file));
+    }
+
+    @Test
+    public void recordsReadBackAcrossSegmentsAndBlocks() throws IOException {
+        List<SyncManifest.Segment> segments = new ArrayList<SyncManifest.Segment>();
+        segments.add(segment(0, 3000));
+        segments.add(segment(3000, 6000));
+        SyncManifest.write(file, segments, 2);
+        assertEquals(1, dir.listFiles().length);
+
+        SyncManifest manifest = SyncManifest.open(file);
+        try {
+            assertEquals(2, manifest.getRunsSinceFullListing());
+            Iterator<S3ObjectSummary> it = manifest.iterator(null, null);
+            for (int i = 0; i < 6000; i++) {
+                assertTrue(it.hasNext());
+                S3ObjectSummary summary = it.next();
+                assertEquals(key(i), summary.getKey());
+                assertEquals("etag-" + i, summary.getETag());
+                assertEquals(i * 10L, summary.getSize());
+                assertEquals(new Date(1000000L + i), summary.getLastModified());
+            }
+            assertFalse(it.hasNext());
+        }
+        finally {
+            manifest.close();
+        }
+    }
+
+    @Test
+    public void rangesStartAfterAndEndAtTheirBounds() throws IOException {
+        List<SyncManifest.Segment> segments = new ArrayList<SyncManifest.Segment>();
+        segments.add(segment(0, 6000));
+        SyncManifest.write(file, segments, 0);
+
+        SyncManifest manifest = SyncManifest.open(file);
+        try {
+            assertEquals(keys(4001, 4500), read(manifest.iterator(key(4000), key(4500))));
+            assertEquals(keys(0, 10), read(manifest.iterator(null, key(10))));
+            assertEquals(keys(5990, 5999), read(manifest.iterator(key(5989), null)));
+            // bounds needn't be keys in the manifest
+            assertEquals(keys(1000, 1000), read(manifest.iterator(key(999) + "x", key(1000) + "x")));
+            assertTrue(read(manifest.iterator(key(5999), null)).isEmpty());
+            assertEquals(keys(0, 5999), read(manifest.iterator("", null)));
+        }
+        finally {
+            manifest.close();
+        }
+    }
+
+    @Test
+    public void writeReplacesTheOldManifest() throws IOException {
+        List<SyncManifest.Segment> segments = new ArrayList<SyncManifest.Segment>();
+        segments.add(segment(0, 10));
+        SyncManifest.write(file, segments, 0);
+
+        segments = new ArrayList<SyncManifest.Segment>();
+        segments.add(segment(20, 25));
+        SyncManifest.write(file, segments, 1);
+
+        SyncManifest manifest = SyncManifest.open(file);
+        try {
+            assertEquals(1, manifest.getRunsSinceFullListing());
+            assertEquals(keys(20, 24), read(manifest.iterator(null, null)));
+        }
+        finally {
+            manifest.close();
+        }
+    }
+
+    @Test
+    public void emptyManifestHasNoRecords() throws IOException {
+        List<SyncManifest.Segment> segments = new ArrayList<SyncManifest.Segment>();
+        segments.add(segment(0, 0));
+        SyncManifest.write(file, segments, 0);
+
+        SyncManifest manifest = SyncManifest.open(file);
+        try {
+            assertFalse(manifest.iterator(null, null).hasNext());
+            assertFalse(manifest.iterator("a", "b").hasNext());
+        }
+        finally {
+            manifest.close();
+        }
+    }
+
+    private SyncManifest.Segment segment(int from, int to) throws IOException {
+        SyncManifest.Segment segment = new SyncManifest.Segment(dir);
+        for (int i = from; i < to; i++) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key(i));
+            summary.setETag("etag-" + i);
+            summary.setSize(i * 10L);
+            summary.setLastModified(new Date(1000000L + i));
+            segment.add(summary);
+        }
+        segment.close();
+        return segment;
+    }
+
+    private static String key(int i) {
+        return String.format("photos/%05d.jpg", i);
+    }
+
+    private static List<String> keys(int first, int last) {
+        List<String> keys = new ArrayList<String>();
+        for (int i = first; i <= last; i++) {
+            keys.add(key(i));
+        }
+        return keys;
+    }
+
+    private static List<String> read(Iterator<S3ObjectSummary> it) {
+        List<String> keys = new ArrayList<String>();
+        while (it.hasNext()) {
+            keys.add(it.next().getKey());
+        }
+        return keys;
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.bitmechanic.aws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TransferLanesTest {
+
+    @Test
+    public void smallTasksAreTakenInOrder() {
+        TransferLanes lanes = new TransferLanes(100, 1);
+        lanes.offer(new Task(1));
+        lanes.offer(new Task(3));
+        lanes.offer(new Task(2));
+
+        assertEquals(1, size(lanes.poll()));
+        assertEquals(3, size(lanes.poll()));
+        assertEquals(2, size(lanes.poll()));
+        assertNull(lanes.poll());
+    }
+
+    @Test
+    public void largeTasksAreTakenBiggestFirst() {
+        TransferLanes lanes = new TransferLanes(100, 4);
+        lanes.offer(new Task(100));
+        lanes.offer(new Task(300));
+        lanes.offer(new Task(200));
+
+        assertEquals(300, size(lanes.poll()));
+        assertEquals(200, size(lanes.poll()));
+        assertEquals(100, size(lanes.poll()));
+    }
+
+    @Test
+    public void largeWorkersLeaveTheRestForSmallTasks() {
+        TransferLanes lanes = new TransferLanes(100, 1);
+        lanes.offer(new Task(1));
+        lanes.offer(new Task(200));
+        lanes.offer(new Task(300));
+        lanes.offer(new Task(2));
+
+        Runnable large = lanes.poll();
+        assertEquals(300, size(large));
+        assertEquals(1, lanes.getRunningLarge());
+        // the one large worker is busy, so small tasks go next while there are any
+        assertEquals(1, size(lanes.poll()));
+        assertEquals(2, size(lanes.poll()));
+        // with the small lane empty, any worker takes a large task
+        assertEquals(200, size(lanes.poll()));
+        assertEquals(2, lanes.getRunningLarge());
+
+        large.run();
+        assertEquals(1, lanes.getRunningLarge());
+    }
+
+    @Test
+    public void largeTaskStartsOnceALargeWorkerIsFree() {
+        TransferLanes lanes = new TransferLanes(100, 1);
+        lanes.offer(new Task(200));
+        lanes.offer(new Task(300));
+        lanes.offer(new Task(1));
+
+        Runnable large = lanes.poll();
+        large.run();
+        assertEquals(0, lanes.getRunningLarge());
+        assertEquals(200, size(lanes.poll()));
+        assertEquals(1, size(lanes.poll()));
+    }
+
+    @Test
+    public void tasksWithoutASizeAreSmall() {
+        TransferLanes lanes = new TransferLanes(100, 1);
+        Runnable plain = new Runnable() {
+            public void run() {
+            }
+        };
+        lanes.offer(plain);
+        assertEquals(plain, lanes.poll());
+        assertEquals(0, lanes.getRunningLarge());
+    }
+
+    private static long size(Runnable task) {
+        return ((TransferLanes.Sized) task).getSize();
+    }
+
+    private static class Task implements Runnable, TransferLanes.Sized {
+
+        private final long size;
+
+        Task(long size) {
+            this.size = size;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void run() {
+        }
+    }
+
+}